@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import com.google.common.io.ByteSource;
+import com.google.common.primitives.Bytes;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Demultiplexes 1 MB of Docker stream per operation, so ops/s is MB/s. Run with the GC profiler
+ * (configured in build.gradle); gc.alloc.rate.norm is then bytes allocated per MB of output.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DockerStreamDemuxerBenchmark {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    // Bytes of output per Docker frame.
+    @Param({"64", "1024", "16384", "65536"})
+    public int frameSize;
+
+    // Bytes per Rancher message; not a multiple of the frame size, so frames are split across messages.
+    @Param({"8000"})
+    public int messageSize;
+
+    private List<byte[]> messages;
+
+    private final DockerStreamDemuxer demuxer = new DockerStreamDemuxer();
+
+    @Setup
+    public void setUp() {
+        byte[] line = "line of command output from a container in the Rancher environment\n"
+                .getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(MEGABYTE + MEGABYTE / 8);
+        int written = 0;
+        for (int stdout = 1; written < MEGABYTE; stdout = 3 - stdout) {
+            int size = Math.min(frameSize, MEGABYTE - written);
+            stream.write(ByteBuffer.allocate(MessageReader.HEADER_SIZE).putInt(stdout << 24).putInt(size).array(),
+                    0, MessageReader.HEADER_SIZE);
+            for (int i = 0; i < size; i++) {
+                stream.write(line[i % line.length]);
+            }
+            written += size;
+        }
+        byte[] bytes = stream.toByteArray();
+        messages = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += messageSize) {
+            byte[] message = new byte[Math.min(messageSize, bytes.length - i)];
+            System.arraycopy(bytes, i, message, 0, message.length);
+            messages.add(message);
+        }
+    }
+
+    @Benchmark
+    public void demuxer(Blackhole blackhole) {
+        demuxer.reset();
+        for (byte[] message : messages) {
+            demuxer.feed(ByteBuffer.wrap(message), (stream, payload) -> blackhole.consume(payload.remaining()));
+        }
+    }
+
+    /**
+     * The approach used before DockerStreamDemuxer: prepend a synthetic header and copy each frame.
+     */
+    @Benchmark
+    public void messageReader(Blackhole blackhole) throws IOException {
+        byte[] nextHeader = new byte[0];
+        for (byte[] message : messages) {
+            try (MessageReader reader = new MessageReader(ByteSource.wrap(Bytes.concat(nextHeader, message))
+                    .openStream())) {
+                LogMessage logMessage;
+                while ((logMessage = reader.nextMessage()) != null) {
+                    blackhole.consume(logMessage.content.remaining());
+                    nextHeader = reader.nextHeader();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.bioraft.rundeck.rancher.Constants.STDERR_TOKEN;
+
+/**
+ * Sends 1 MB of command output per operation through RancherWebSocketListener, from websocket message to
+ * ExecutionListener, so ops/s is MB/s. With the GC profiler, gc.alloc.rate.norm is bytes allocated per MB.
+ *
+ * Output is split into Docker frames of up to frameSize bytes, then into Rancher messages. A stderrRatio
+ * fraction of lines is STDERR: marked with STDERR_TOKEN on the STDOUT stream, or on Docker's STDERR stream
+ * when nativeStderr is true.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebSocketOutputBenchmark {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    // Bytes per Rancher message; not a multiple of the frame size, so frames are split across messages.
+    private static final int MESSAGE_SIZE = 8000;
+
+    // Docker stream IDs.
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+
+    @Param({"64", "1024", "16384", "65536"})
+    public int frameSize;
+
+    @Param({"0", "0.1", "0.5"})
+    public double stderrRatio;
+
+    @Param({"false", "true"})
+    public boolean nativeStderr;
+
+    private List<ByteString> binaryMessages;
+
+    private List<String> base64Messages;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(MEGABYTE + MEGABYTE / 4);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(frameSize);
+        int frameStream = STDOUT;
+        int written = 0;
+        for (int i = 0; written < MEGABYTE; i++) {
+            boolean stderr = random.nextDouble() < stderrRatio;
+            int lineStream = stderr && nativeStderr ? STDERR : STDOUT;
+            String line = String.format("line %06d of command output from a container in the environment\n", i);
+            byte[] bytes = ((stderr && !nativeStderr ? STDERR_TOKEN : "") + line).getBytes(StandardCharsets.UTF_8);
+            if (lineStream != frameStream) {
+                writeFrame(stream, frameStream, frame);
+                frameStream = lineStream;
+            }
+            for (int offset = 0; offset < bytes.length; ) {
+                int length = Math.min(bytes.length - offset, frameSize - frame.size());
+                frame.write(bytes, offset, length);
+                offset += length;
+                if (frame.size() == frameSize) {
+                    writeFrame(stream, frameStream, frame);
+                }
+            }
+            written += line.length();
+        }
+        writeFrame(stream, frameStream, frame);
+
+        byte[] bytes = stream.toByteArray();
+        binaryMessages = new ArrayList<>();
+        base64Messages = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += MESSAGE_SIZE) {
+            ByteString message = ByteString.of(bytes, i, Math.min(MESSAGE_SIZE, bytes.length - i));
+            binaryMessages.add(message);
+            base64Messages.add(message.base64());
+        }
+    }
+
+    private static void writeFrame(ByteArrayOutputStream stream, int streamId, ByteArrayOutputStream frame) {
+        if (frame.size() > 0) {
+            stream.write(ByteBuffer.allocate(MessageReader.HEADER_SIZE).putInt(streamId << 24).putInt(frame.size())
+                    .array(), 0, MessageReader.HEADER_SIZE);
+            stream.write(frame.toByteArray(), 0, frame.size());
+            frame.reset();
+        }
+    }
+
+    private RancherWebSocketListener listener(Blackhole blackhole) {
+        ExecutionListener executionListener = (level, message) -> blackhole.consume(message);
+        RancherWebSocketListener listener = new RancherWebSocketListener(executionListener, new StringBuilder());
+        listener.setNativeStderr(nativeStderr);
+        return listener;
+    }
+
+    /**
+     * Binary websocket messages, as sent by the simulator with base64 messages off.
+     */
+    @Benchmark
+    public void binaryMessages(Blackhole blackhole) {
+        RancherWebSocketListener listener = listener(blackhole);
+        for (ByteString message : binaryMessages) {
+            listener.onMessage(null, message);
+        }
+    }
+
+    /**
+     * Base64 text messages, as sent by Rancher.
+     */
+    @Benchmark
+    public void base64Messages(Blackhole blackhole) {
+        RancherWebSocketListener listener = listener(blackhole);
+        for (String message : base64Messages) {
+            listener.onMessage(null, message);
+        }
+    }
+
+    /**
+     * Decoding alone, for comparison with base64Messages.
+     */
+    @Benchmark
+    public void base64Decode(Blackhole blackhole) {
+        Base64.Decoder decoder = Base64.getDecoder();
+        for (String message : base64Messages) {
+            blackhole.consume(decoder.decode(message));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Captures the raw output of a command, keeping it in memory up to a limit and writing the rest to a
+ * temporary file.
+ *
+ * Memory held per capture never exceeds the memory limit, however much the command prints. An optional hard
+ * cap bounds the total; bytes past it are dropped and {@link #isTruncated()} becomes true. Bytes are kept as
+ * received, so characters split between writes are decoded correctly by {@link #reader()}. Close the buffer
+ * to delete its file.
+ *
+ * @code
+ * try (CaptureBuffer capture = socket.thisReadFile(url, accessKey, secretKey, "/var/log/app.log")) {
+ *     BufferedReader lines = new BufferedReader(capture.reader());
+ *     ...
+ * }
+ * @code
+ */
+public class CaptureBuffer implements Closeable {
+
+    public static final int DEFAULT_MEMORY_BYTES = 64 * 1024;
+
+    // No hard cap.
+    public static final long DEFAULT_MAX_BYTES = 0;
+
+    private final int memoryBytes;
+
+    private final long maxBytes;
+
+    // Grows up to memoryBytes.
+    private byte[] memory = new byte[0];
+
+    private int memoryUsed;
+
+    private Path spillPath;
+
+    private FileChannel spill;
+
+    private long size;
+
+    private boolean truncated;
+
+    public CaptureBuffer() {
+        this(DEFAULT_MEMORY_BYTES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param memoryBytes Bytes kept in memory before spilling to a file.
+     * @param maxBytes Total bytes kept; 0 for no limit.
+     */
+    public CaptureBuffer(int memoryBytes, long maxBytes) {
+        this.memoryBytes = Math.max(0, memoryBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends output.
+     *
+     * @param bytes The output; it is consumed.
+     * @return False if the hard cap was reached and some bytes were dropped.
+     * @throws UncheckedIOException When the temporary file cannot be written.
+     */
+    public synchronized boolean write(ByteBuffer bytes) {
+        int end = bytes.limit();
+        if (maxBytes > 0 && size + bytes.remaining() > maxBytes) {
+            truncated = true;
+            bytes.limit(bytes.position() + (int) Math.max(0, maxBytes - size));
+        }
+        int toMemory = Math.min(bytes.remaining(), memoryBytes - memoryUsed);
+        if (toMemory > 0) {
+            ensureMemory(memoryUsed + toMemory);
+            bytes.get(memory, memoryUsed, toMemory);
+            memoryUsed += toMemory;
+            size += toMemory;
+        }
+        try {
+            while (bytes.hasRemaining()) {
+                size += spill().write(bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            // Dropped bytes are consumed too.
+            bytes.limit(end).position(end);
+        }
+        return !truncated;
+    }
+
+    /**
+     * @return Bytes captured (not counting any dropped past the hard cap).
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return True when output went past the memory limit into a temporary file.
+     */
+    public synchronized boolean isSpilled() {
+        return spill != null;
+    }
+
+    /**
+     * @return True when output went past the hard cap and the rest was dropped.
+     */
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Streams the captured bytes, from memory and then from the temporary file. Call it once the command
+     * has ended.
+     *
+     * @return A stream; close it when done.
+     * @throws IOException When the temporary file cannot be read.
+     */
+    public synchronized InputStream inputStream() throws IOException {
+        InputStream head = new ByteArrayInputStream(memory, 0, memoryUsed);
+        if (spill == null) {
+            return head;
+        }
+        FileChannel tail = FileChannel.open(spillPath, StandardOpenOption.READ);
+        return new SequenceInputStream(head, Channels.newInputStream(tail));
+    }
+
+    /**
+     * Streams the captured output as UTF-8 text.
+     *
+     * @return A reader; close it when done.
+     * @throws IOException When the temporary file cannot be read.
+     */
+    public Reader reader() throws IOException {
+        return new InputStreamReader(inputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes all of the captured output. Only for output known to be small, since it is all read into memory.
+     *
+     * @return The output as UTF-8 text.
+     * @throws IOException When the temporary file cannot be read.
+     */
+    public String asString() throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] chars = new char[8192];
+        try (Reader reader = reader()) {
+            for (int read = reader.read(chars); read >= 0; read = reader.read(chars)) {
+                text.append(chars, 0, read);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Deletes the temporary file, if any.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+            Files.deleteIfExists(spillPath);
+            spill = null;
+        }
+        memory = new byte[0];
+        memoryUsed = 0;
+        size = 0;
+    }
+
+    private void ensureMemory(int needed) {
+        if (needed > memory.length) {
+            byte[] grown = new byte[Math.min(memoryBytes, Math.max(needed, memory.length * 2))];
+            System.arraycopy(memory, 0, grown, 0, memoryUsed);
+            memory = grown;
+        }
+    }
+
+    private FileChannel spill() throws IOException {
+        if (spill == null) {
+            spillPath = Files.createTempFile("rancher-capture", ".out");
+            spill = FileChannel.open(spillPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return spill;
+    }
+}
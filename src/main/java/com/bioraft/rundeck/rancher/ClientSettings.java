@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.common.IFramework;
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.IRundeckProject;
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.utils.IPropertyLookup;
+import okhttp3.Protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static com.bioraft.rundeck.rancher.Constants.*;
+import static com.dtolabs.rundeck.core.plugins.configuration.PropertyResolverFactory.FRAMEWORK_PREFIX;
+import static com.dtolabs.rundeck.core.plugins.configuration.PropertyResolverFactory.PROJECT_PREFIX;
+
+/**
+ * Connection settings for the HTTP client used to reach the Rancher API.
+ *
+ * Each value is taken from the node attribute, project property ("project.X"), or framework property
+ * ("framework.X"), in that order; missing or invalid values fall back to defaults. Settings are
+ * values, so equal settings share one client in {@link RancherClientFactory}.
+ */
+public class ClientSettings {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+    public static final int DEFAULT_READ_TIMEOUT = 10;
+    public static final int DEFAULT_WRITE_TIMEOUT = 10;
+    public static final int DEFAULT_CALL_TIMEOUT = 0;
+    public static final int DEFAULT_POOL_SIZE = 5;
+    public static final int DEFAULT_KEEP_ALIVE = 300;
+    // Higher than OkHttp's 5, since many containers' token requests go to the same Rancher server at once.
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 64;
+    public static final String DEFAULT_PROTOCOLS = "h2,http/1.1";
+
+    public static final ClientSettings DEFAULTS = new ClientSettings(name -> null);
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int writeTimeout;
+    private final int callTimeout;
+    private final int poolSize;
+    private final int keepAlive;
+    private final int maxRequestsPerHost;
+    private final List<Protocol> protocols;
+
+    private ClientSettings(Function<String, String> lookup) {
+        connectTimeout = intValue(lookup, RANCHER_CONFIG_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT, 0);
+        readTimeout = intValue(lookup, RANCHER_CONFIG_READ_TIMEOUT, DEFAULT_READ_TIMEOUT, 0);
+        writeTimeout = intValue(lookup, RANCHER_CONFIG_WRITE_TIMEOUT, DEFAULT_WRITE_TIMEOUT, 0);
+        callTimeout = intValue(lookup, RANCHER_CONFIG_CALL_TIMEOUT, DEFAULT_CALL_TIMEOUT, 0);
+        poolSize = intValue(lookup, RANCHER_CONFIG_POOL_SIZE, DEFAULT_POOL_SIZE, 1);
+        keepAlive = intValue(lookup, RANCHER_CONFIG_KEEP_ALIVE, DEFAULT_KEEP_ALIVE, 1);
+        maxRequestsPerHost = intValue(lookup, RANCHER_CONFIG_MAX_REQUESTS_PER_HOST, DEFAULT_MAX_REQUESTS_PER_HOST, 1);
+        String value = lookup.apply(RANCHER_CONFIG_PROTOCOLS);
+        protocols = parseProtocols(value == null ? DEFAULT_PROTOCOLS : value);
+    }
+
+    /**
+     * Resolves settings for a node execution.
+     *
+     * @param context The execution context (may be null).
+     * @param node The node being executed on (may be null for workflow steps).
+     * @return The settings, with defaults for anything not configured.
+     */
+    public static ClientSettings resolve(ExecutionContext context, INodeEntry node) {
+        IFramework framework = context == null ? null : context.getIFramework();
+        IRundeckProject project = null;
+        if (framework != null && framework.getFrameworkProjectMgr() != null) {
+            project = framework.getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject());
+        }
+        IPropertyLookup frameworkProperties = framework == null ? null : framework.getPropertyLookup();
+        IRundeckProject frameworkProject = project;
+        return new ClientSettings(name -> {
+            if (node != null && node.getAttributes() != null && null != node.getAttributes().get(name)) {
+                return node.getAttributes().get(name);
+            } else if (frameworkProject != null && frameworkProject.hasProperty(PROJECT_PREFIX + name)
+                    && !"".equals(frameworkProject.getProperty(PROJECT_PREFIX + name))) {
+                return frameworkProject.getProperty(PROJECT_PREFIX + name);
+            } else if (frameworkProperties != null && frameworkProperties.hasProperty(FRAMEWORK_PREFIX + name)) {
+                return frameworkProperties.getProperty(FRAMEWORK_PREFIX + name);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Builds settings from a map keyed by configuration name (e.g. "rancher-connect-timeout").
+     *
+     * @param properties Configured values.
+     * @return The settings, with defaults for anything not in the map.
+     */
+    public static ClientSettings fromProperties(Map<String, String> properties) {
+        return new ClientSettings(properties::get);
+    }
+
+    private static int intValue(Function<String, String> lookup, String name, int defaultValue, int minimum) {
+        String value = lookup.apply(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(minimum, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parses a list like "h2, http/1.1". Unknown names are ignored and HTTP/1.1 is always included, since
+     * OkHttp needs it as a fallback and Rancher's websockets require it.
+     *
+     * @param value Protocol names separated by commas or spaces.
+     * @return The protocols in order of preference.
+     */
+    static List<Protocol> parseProtocols(String value) {
+        List<Protocol> result = new ArrayList<>();
+        for (String name : value.trim().toLowerCase().split(PERMISSIVE_WHITESPACE_REGEX)) {
+            try {
+                Protocol protocol = Protocol.get(name);
+                if (protocol == Protocol.H2_PRIOR_KNOWLEDGE) {
+                    // Prior knowledge cannot be combined with other protocols.
+                    return Collections.singletonList(protocol);
+                } else if ((protocol == Protocol.HTTP_2 || protocol == Protocol.HTTP_1_1)
+                        && !result.contains(protocol)) {
+                    result.add(protocol);
+                }
+            } catch (IOException e) {
+                // Not a protocol OkHttp knows; skip it.
+            }
+        }
+        if (!result.contains(Protocol.HTTP_1_1)) {
+            result.add(Protocol.HTTP_1_1);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public int getCallTimeout() {
+        return callTimeout;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getKeepAlive() {
+        return keepAlive;
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public List<Protocol> getProtocols() {
+        return protocols;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ClientSettings)) {
+            return false;
+        }
+        ClientSettings other = (ClientSettings) o;
+        return connectTimeout == other.connectTimeout && readTimeout == other.readTimeout
+                && writeTimeout == other.writeTimeout && callTimeout == other.callTimeout
+                && poolSize == other.poolSize && keepAlive == other.keepAlive
+                && maxRequestsPerHost == other.maxRequestsPerHost && protocols.equals(other.protocols);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(connectTimeout, readTimeout, writeTimeout, callTimeout, poolSize, keepAlive,
+                maxRequestsPerHost, protocols);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connect=%ds read=%ds write=%ds call=%ds pool=%d keepAlive=%ds perHost=%d protocols=%s",
+                connectTimeout, readTimeout, writeTimeout, callTimeout, poolSize, keepAlive, maxRequestsPerHost,
+                protocols);
+    }
+}
@@ -37,6 +37,10 @@ public class Constants {
     @SuppressWarnings("SpellCheckingInspection")
     public static final String STDERR_TOKEN = ":v9ZvwThpU1FtyrlIBf4UIC8:";
 
+    // Prefix of the exit status line jobs write to STDOUT when they end; a random suffix is added for each job.
+    @SuppressWarnings("SpellCheckingInspection")
+    public static final String EXIT_STATUS_TOKEN = ":Qm4XrT8bLz2NwKc6JdYh0Ps:";
+
     // These are fields in JSON from Rancher API.
     public static final String NODE_ID = "id";
     public static final String NODE_NAME = "name";
@@ -121,11 +125,102 @@ public class Constants {
     public static final String RANCHER_CONFIG_EXECUTOR_TIMEOUT = "rancher-node-executor-timeout";
     public static final String PROJ_RANCHER_EXECUTOR_TIMEOUT = PROJECT_PREFIX + RANCHER_CONFIG_EXECUTOR_TIMEOUT;
     public static final String FMWK_RANCHER_EXECUTOR_TIMEOUT = FRAMEWORK_PREFIX + RANCHER_CONFIG_EXECUTOR_TIMEOUT;
+    public static final String RANCHER_CONFIG_STDERR_MODE = "rancher-stderr-mode";
+    public static final String PROJ_RANCHER_STDERR_MODE = PROJECT_PREFIX + RANCHER_CONFIG_STDERR_MODE;
+    public static final String FMWK_RANCHER_STDERR_MODE = FRAMEWORK_PREFIX + RANCHER_CONFIG_STDERR_MODE;
+
+    public static final String RANCHER_CONFIG_SERVICE_PARALLELISM = "rancher-service-parallelism";
+    public static final String PROJ_RANCHER_SERVICE_PARALLELISM = PROJECT_PREFIX + RANCHER_CONFIG_SERVICE_PARALLELISM;
+    public static final String FMWK_RANCHER_SERVICE_PARALLELISM = FRAMEWORK_PREFIX + RANCHER_CONFIG_SERVICE_PARALLELISM;
+    public static final String RANCHER_CONFIG_SERVICE_FAILURE_POLICY = "rancher-service-failure-policy";
+    public static final String PROJ_RANCHER_SERVICE_FAILURE_POLICY = PROJECT_PREFIX + RANCHER_CONFIG_SERVICE_FAILURE_POLICY;
+    public static final String FMWK_RANCHER_SERVICE_FAILURE_POLICY = FRAMEWORK_PREFIX + RANCHER_CONFIG_SERVICE_FAILURE_POLICY;
+    public static final String RANCHER_CONFIG_PING_INTERVAL = "rancher-ping-interval";
+    public static final String PROJ_RANCHER_PING_INTERVAL = PROJECT_PREFIX + RANCHER_CONFIG_PING_INTERVAL;
+    public static final String FMWK_RANCHER_PING_INTERVAL = FRAMEWORK_PREFIX + RANCHER_CONFIG_PING_INTERVAL;
+    public static final String RANCHER_CONFIG_IDLE_CHECK = "rancher-idle-check";
+    public static final String PROJ_RANCHER_IDLE_CHECK = PROJECT_PREFIX + RANCHER_CONFIG_IDLE_CHECK;
+    public static final String FMWK_RANCHER_IDLE_CHECK = FRAMEWORK_PREFIX + RANCHER_CONFIG_IDLE_CHECK;
+    public static final String RANCHER_CONFIG_SHELL_SESSION = "rancher-shell-session";
+    public static final String PROJ_RANCHER_SHELL_SESSION = PROJECT_PREFIX + RANCHER_CONFIG_SHELL_SESSION;
+    public static final String FMWK_RANCHER_SHELL_SESSION = FRAMEWORK_PREFIX + RANCHER_CONFIG_SHELL_SESSION;
+    public static final String RANCHER_CONFIG_SESSION_IDLE = "rancher-session-idle";
+    public static final String PROJ_RANCHER_SESSION_IDLE = PROJECT_PREFIX + RANCHER_CONFIG_SESSION_IDLE;
+    public static final String FMWK_RANCHER_SESSION_IDLE = FRAMEWORK_PREFIX + RANCHER_CONFIG_SESSION_IDLE;
+    public static final String RANCHER_CONFIG_HOST_CONCURRENCY = "rancher-host-concurrency";
+    public static final String PROJ_RANCHER_HOST_CONCURRENCY = PROJECT_PREFIX + RANCHER_CONFIG_HOST_CONCURRENCY;
+    public static final String FMWK_RANCHER_HOST_CONCURRENCY = FRAMEWORK_PREFIX + RANCHER_CONFIG_HOST_CONCURRENCY;
+    public static final String RANCHER_CONFIG_CAPTURE_MEMORY = "rancher-capture-memory";
+    public static final String PROJ_RANCHER_CAPTURE_MEMORY = PROJECT_PREFIX + RANCHER_CONFIG_CAPTURE_MEMORY;
+    public static final String FMWK_RANCHER_CAPTURE_MEMORY = FRAMEWORK_PREFIX + RANCHER_CONFIG_CAPTURE_MEMORY;
+    public static final String RANCHER_CONFIG_CAPTURE_MAX = "rancher-capture-max";
+    public static final String PROJ_RANCHER_CAPTURE_MAX = PROJECT_PREFIX + RANCHER_CONFIG_CAPTURE_MAX;
+    public static final String FMWK_RANCHER_CAPTURE_MAX = FRAMEWORK_PREFIX + RANCHER_CONFIG_CAPTURE_MAX;
+    public static final String RANCHER_CONFIG_OUTPUT_DIRECTORY = "rancher-output-directory";
+    public static final String PROJ_RANCHER_OUTPUT_DIRECTORY = PROJECT_PREFIX + RANCHER_CONFIG_OUTPUT_DIRECTORY;
+    public static final String FMWK_RANCHER_OUTPUT_DIRECTORY = FRAMEWORK_PREFIX + RANCHER_CONFIG_OUTPUT_DIRECTORY;
+    public static final String RANCHER_CONFIG_OUTPUT_MAX_MB = "rancher-output-max-mb";
+    public static final String PROJ_RANCHER_OUTPUT_MAX_MB = PROJECT_PREFIX + RANCHER_CONFIG_OUTPUT_MAX_MB;
+    public static final String FMWK_RANCHER_OUTPUT_MAX_MB = FRAMEWORK_PREFIX + RANCHER_CONFIG_OUTPUT_MAX_MB;
+    public static final String RANCHER_CONFIG_OUTPUT_MAX_FILES = "rancher-output-max-files";
+    public static final String PROJ_RANCHER_OUTPUT_MAX_FILES = PROJECT_PREFIX + RANCHER_CONFIG_OUTPUT_MAX_FILES;
+    public static final String FMWK_RANCHER_OUTPUT_MAX_FILES = FRAMEWORK_PREFIX + RANCHER_CONFIG_OUTPUT_MAX_FILES;
+
+    // When a command fails on one container of a service, stop the others or let them finish.
+    public static final String FAILURE_POLICY_FAIL_FAST = "fail-fast";
+    public static final String FAILURE_POLICY_RUN_ALL = "run-all";
+
+    // STDERR is either marked with STDERR_TOKEN by a bash wrapper or read from Docker's STDERR stream.
+    public static final String STDERR_MODE_TOKEN = "token";
+    public static final String STDERR_MODE_NATIVE = "native";
+
+    // HTTP client tuning (timeouts in seconds)
+    public static final String RANCHER_CONFIG_CONNECT_TIMEOUT = "rancher-connect-timeout";
+    public static final String PROJ_RANCHER_CONNECT_TIMEOUT = PROJECT_PREFIX + RANCHER_CONFIG_CONNECT_TIMEOUT;
+    public static final String FMWK_RANCHER_CONNECT_TIMEOUT = FRAMEWORK_PREFIX + RANCHER_CONFIG_CONNECT_TIMEOUT;
+
+    public static final String RANCHER_CONFIG_READ_TIMEOUT = "rancher-read-timeout";
+    public static final String PROJ_RANCHER_READ_TIMEOUT = PROJECT_PREFIX + RANCHER_CONFIG_READ_TIMEOUT;
+    public static final String FMWK_RANCHER_READ_TIMEOUT = FRAMEWORK_PREFIX + RANCHER_CONFIG_READ_TIMEOUT;
+
+    public static final String RANCHER_CONFIG_WRITE_TIMEOUT = "rancher-write-timeout";
+    public static final String PROJ_RANCHER_WRITE_TIMEOUT = PROJECT_PREFIX + RANCHER_CONFIG_WRITE_TIMEOUT;
+    public static final String FMWK_RANCHER_WRITE_TIMEOUT = FRAMEWORK_PREFIX + RANCHER_CONFIG_WRITE_TIMEOUT;
+
+    public static final String RANCHER_CONFIG_CALL_TIMEOUT = "rancher-call-timeout";
+    public static final String PROJ_RANCHER_CALL_TIMEOUT = PROJECT_PREFIX + RANCHER_CONFIG_CALL_TIMEOUT;
+    public static final String FMWK_RANCHER_CALL_TIMEOUT = FRAMEWORK_PREFIX + RANCHER_CONFIG_CALL_TIMEOUT;
+
+    public static final String RANCHER_CONFIG_POOL_SIZE = "rancher-connection-pool-size";
+    public static final String PROJ_RANCHER_POOL_SIZE = PROJECT_PREFIX + RANCHER_CONFIG_POOL_SIZE;
+    public static final String FMWK_RANCHER_POOL_SIZE = FRAMEWORK_PREFIX + RANCHER_CONFIG_POOL_SIZE;
+
+    public static final String RANCHER_CONFIG_KEEP_ALIVE = "rancher-keep-alive";
+    public static final String PROJ_RANCHER_KEEP_ALIVE = PROJECT_PREFIX + RANCHER_CONFIG_KEEP_ALIVE;
+    public static final String FMWK_RANCHER_KEEP_ALIVE = FRAMEWORK_PREFIX + RANCHER_CONFIG_KEEP_ALIVE;
+
+    public static final String RANCHER_CONFIG_MAX_REQUESTS_PER_HOST = "rancher-max-requests-per-host";
+    public static final String PROJ_RANCHER_MAX_REQUESTS_PER_HOST = PROJECT_PREFIX + RANCHER_CONFIG_MAX_REQUESTS_PER_HOST;
+    public static final String FMWK_RANCHER_MAX_REQUESTS_PER_HOST = FRAMEWORK_PREFIX + RANCHER_CONFIG_MAX_REQUESTS_PER_HOST;
+
+    public static final String RANCHER_CONFIG_PROTOCOLS = "rancher-http-protocols";
+    public static final String PROJ_RANCHER_PROTOCOLS = PROJECT_PREFIX + RANCHER_CONFIG_PROTOCOLS;
+    public static final String FMWK_RANCHER_PROTOCOLS = FRAMEWORK_PREFIX + RANCHER_CONFIG_PROTOCOLS;
 
     // File Copier
     public static final String RANCHER_CONFIG_CLI_PATH = "rancher-cli-path";
     public static final String PROJ_RANCHER_CLI_PATH = PROJECT_PREFIX + RANCHER_CONFIG_CLI_PATH;
     public static final String FMWK_RANCHER_CLI_PATH = FRAMEWORK_PREFIX + RANCHER_CONFIG_CLI_PATH;
+    public static final String RANCHER_CONFIG_UPLOAD_MODE = "rancher-upload-mode";
+    public static final String PROJ_RANCHER_UPLOAD_MODE = PROJECT_PREFIX + RANCHER_CONFIG_UPLOAD_MODE;
+    public static final String FMWK_RANCHER_UPLOAD_MODE = FRAMEWORK_PREFIX + RANCHER_CONFIG_UPLOAD_MODE;
+    public static final String UPLOAD_MODE_STDIN = "stdin";
+    public static final String UPLOAD_MODE_CHUNKED = "chunked";
+    public static final String RANCHER_CONFIG_UPLOAD_COMPRESSION = "rancher-upload-compression";
+    public static final String PROJ_RANCHER_UPLOAD_COMPRESSION = PROJECT_PREFIX + RANCHER_CONFIG_UPLOAD_COMPRESSION;
+    public static final String FMWK_RANCHER_UPLOAD_COMPRESSION = FRAMEWORK_PREFIX + RANCHER_CONFIG_UPLOAD_COMPRESSION;
+    public static final String UPLOAD_COMPRESSION_NONE = "none";
+    public static final String UPLOAD_COMPRESSION_GZIP = "gzip";
 
     // Step Plugins
     public static final String PROJ_RANCHER_ENDPOINT = PROJECT_PREFIX + RANCHER_CONFIG_ENDPOINT;
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import com.bioraft.rundeck.rancher.LogMessage.Stream;
+
+import java.nio.ByteBuffer;
+
+import static com.bioraft.rundeck.rancher.MessageReader.FRAME_SIZE_OFFSET;
+import static com.bioraft.rundeck.rancher.MessageReader.HEADER_SIZE;
+
+/**
+ * Splits a Docker multiplexed stream, delivered as a series of Rancher messages, into frame payloads.
+ *
+ * Docker frames do not line up with Rancher messages, so a header or payload may continue in the next
+ * message. The demuxer keeps that state between calls: a partial header is held in one reusable buffer, and
+ * payloads are passed to the consumer as slices of the message, without copying. Payloads split across
+ * messages are delivered in pieces.
+ *
+ * Like {@link MessageReader}, data that does not start with a valid header is passed through as STDOUT.
+ */
+public class DockerStreamDemuxer {
+
+    /**
+     * Receives frame payloads. The slice shares the caller's message and is only valid until the consumer
+     * returns.
+     */
+    @FunctionalInterface
+    public interface FrameConsumer {
+        void accept(Stream stream, ByteBuffer payload);
+    }
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+    private Stream stream = Stream.STDOUT;
+
+    // Payload bytes of the current frame that have not arrived yet.
+    private int remaining;
+
+    // Frame headers read since the last reset.
+    private long frames;
+
+    /**
+     * Passes the payloads in the next message to the consumer.
+     *
+     * @param data The message; it is consumed (its position is advanced to its limit).
+     * @param consumer Receives each payload (or part of a payload).
+     */
+    public void feed(ByteBuffer data, FrameConsumer consumer) {
+        while (data.hasRemaining()) {
+            if (remaining > 0) {
+                remaining -= emit(data, Math.min(remaining, data.remaining()), stream, consumer);
+                continue;
+            }
+            int start = data.position();
+            int held = header.position();
+            while (header.hasRemaining() && data.hasRemaining()) {
+                header.put(data.get());
+                if (!isPlausibleHeader()) {
+                    passThrough(data, start, held, consumer);
+                    return;
+                }
+            }
+            if (header.hasRemaining()) {
+                // The rest of the header is in the next message.
+                return;
+            }
+            stream = Stream.of(header.get(0));
+            remaining = header.getInt(FRAME_SIZE_OFFSET);
+            header.clear();
+            frames++;
+        }
+    }
+
+    /**
+     * Forgets any partial frame, e.g. before reading a new stream.
+     */
+    public void reset() {
+        header.clear();
+        stream = Stream.STDOUT;
+        remaining = 0;
+        frames = 0;
+    }
+
+    /**
+     * @return The number of frame headers read since the last reset.
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return True when a header or payload is incomplete and continues in the next message.
+     */
+    public boolean isPartial() {
+        return remaining > 0 || header.position() > 0;
+    }
+
+    /**
+     * Checks the header bytes read so far: STREAM_TYPE, 0, 0, 0, SIZE1, SIZE2, SIZE3, SIZE4.
+     */
+    private boolean isPlausibleHeader() {
+        int last = header.position() - 1;
+        byte value = header.get(last);
+        if (last == 0) {
+            return value >= 0 && value <= 2;
+        } else if (last < FRAME_SIZE_OFFSET) {
+            return value == 0;
+        } else if (last == FRAME_SIZE_OFFSET) {
+            // Frame sizes are non-negative ints.
+            return value >= 0;
+        }
+        return true;
+    }
+
+    /**
+     * Sends everything from the failed header onward as STDOUT.
+     */
+    private void passThrough(ByteBuffer data, int start, int held, FrameConsumer consumer) {
+        if (held > 0) {
+            // The start of the "header" came in an earlier message.
+            header.flip().limit(held);
+            consumer.accept(Stream.STDOUT, header);
+        }
+        data.position(start);
+        header.clear();
+        emit(data, data.remaining(), Stream.STDOUT, consumer);
+    }
+
+    private static int emit(ByteBuffer data, int length, Stream stream, FrameConsumer consumer) {
+        ByteBuffer payload = data.slice();
+        payload.limit(length);
+        data.position(data.position() + length);
+        consumer.accept(stream, payload);
+        return length;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import okhttp3.HttpUrl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many commands run at once on each Rancher host.
+ *
+ * Each exec websocket is served by the agent on the container's host, and an agent that gets hundreds at
+ * once times out. Governors are kept in a JVM-wide registry keyed by API endpoint and host ID, so every
+ * Rundeck execution shares the same limit. Projects may configure different limits for the same host; the
+ * largest one asked for wins, so one project cannot keep lowering the limit under another. Waiting commands are admitted first come, first served, and the
+ * time each one waits is recorded.
+ *
+ * @code
+ * ExecutionGovernor governor = ExecutionGovernor.forHost(url, hostId, 16);
+ * ExecutionGovernor.Permit permit = governor.acquire(metrics);
+ * try {
+ *     ...
+ * } finally {
+ *     permit.close();
+ * }
+ * @code
+ */
+public class ExecutionGovernor {
+
+    // Commands are not limited unless a limit is configured.
+    public static final int DEFAULT_PERMITS = 0;
+
+    // Host ID used when none is given.
+    public static final String UNKNOWN_HOST = "unknown";
+
+    /**
+     * Returned by {@link #acquire}; closing it lets the next command in.
+     */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Map<String, ExecutionGovernor> governors = new ConcurrentHashMap<>();
+
+    private final String key;
+
+    private final LimitSemaphore semaphore;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private int limit;
+
+    private ExecutionGovernor(String key, int permits) {
+        this.key = key;
+        this.limit = Math.max(1, permits);
+        this.semaphore = new LimitSemaphore(limit);
+    }
+
+    /**
+     * Gets the governor for a host, creating it if needed.
+     *
+     * @param url Any URL on the Rancher API endpoint, e.g. a container's execute URL.
+     * @param hostId The Rancher host ID (a container's hostId), or null if unknown.
+     * @param permits Commands allowed at once; the limit is raised if this is larger, but never lowered.
+     * @return The governor.
+     */
+    public static ExecutionGovernor forHost(String url, String hostId, int permits) {
+        String host = hostId == null || hostId.isEmpty() ? UNKNOWN_HOST : hostId;
+        String key = endpoint(url) + " " + host;
+        ExecutionGovernor governor = governors.computeIfAbsent(key, k -> new ExecutionGovernor(k, permits));
+        governor.raiseLimit(permits);
+        return governor;
+    }
+
+    /**
+     * Get a snapshot of the queue wait of every governor.
+     *
+     * @return Histogram snapshots keyed by endpoint and host.
+     */
+    public static Map<String, LatencyHistogram.Snapshot> queueWaits() {
+        Map<String, LatencyHistogram.Snapshot> result = new TreeMap<>();
+        governors.forEach((key, governor) -> result.put(key, governor.queueWait.snapshot()));
+        return result;
+    }
+
+    /**
+     * Reduces a URL to its scheme, host and port.
+     */
+    static String endpoint(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        if (parsed == null) {
+            return url;
+        }
+        return parsed.scheme() + "://" + parsed.host() + ":" + parsed.port();
+    }
+
+    /**
+     * Waits for a permit. Commands are admitted in the order they asked.
+     *
+     * @param metrics Metrics of the current node execution, or null; the wait is recorded as its queue phase.
+     * @return The permit, to be closed when the command ends.
+     * @throws InterruptedException When interrupted while waiting.
+     */
+    public Permit acquire(ExecutionMetrics metrics) throws InterruptedException {
+        long start = System.nanoTime();
+        semaphore.acquire();
+        long waited = System.nanoTime() - start;
+        queueWait.record(waited);
+        if (metrics != null) {
+            metrics.record(ExecutionMetrics.PHASE_QUEUE, waited);
+        }
+        active.incrementAndGet();
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                active.decrementAndGet();
+                semaphore.release();
+            }
+        };
+    }
+
+    /**
+     * Changes the number of commands allowed at once. Commands already running are not affected.
+     *
+     * @param permits The new limit (at least 1).
+     */
+    public synchronized void setLimit(int permits) {
+        changeLimit(Math.max(1, permits));
+    }
+
+    /**
+     * Raises the number of commands allowed at once, if permits is more than the current limit.
+     *
+     * @param permits The limit asked for.
+     */
+    synchronized void raiseLimit(int permits) {
+        if (permits > limit) {
+            changeLimit(permits);
+        }
+    }
+
+    private void changeLimit(int target) {
+        if (target > limit) {
+            semaphore.release(target - limit);
+        } else if (target < limit) {
+            semaphore.reducePermits(limit - target);
+        }
+        limit = target;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return The number of commands holding a permit.
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return The approximate number of commands waiting for a permit.
+     */
+    public int getQueueLength() {
+        return semaphore.getQueueLength();
+    }
+
+    public LatencyHistogram.Snapshot getQueueWait() {
+        return queueWait.snapshot();
+    }
+
+    /**
+     * A fair semaphore whose permits can be reduced.
+     */
+    private static class LimitSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        LimitSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
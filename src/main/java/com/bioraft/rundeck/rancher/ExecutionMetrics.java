@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the phases of one node execution and counts the output it streams.
+ *
+ * Every observation is also added to a JVM-wide {@link LatencyHistogram} for its phase, and stream sizes to
+ * JVM-wide totals. A service node runs on several containers, so its phases may be observed more than once;
+ * the summary line shows their sums. Methods may be called from any thread.
+ *
+ * @code
+ * ExecutionMetrics metrics = new ExecutionMetrics();
+ * metrics.time(ExecutionMetrics.PHASE_TOKEN, start);
+ * logger.log(DEBUG_LEVEL, metrics.finish(node.getNodename()));
+ * @code
+ */
+public class ExecutionMetrics {
+
+    public static final String PHASE_CREDENTIALS = "credentials";
+    public static final String PHASE_TOKEN = "token";
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_FIRST_BYTE = "first-byte";
+    public static final String PHASE_LOG_DELIVERY = "log-delivery";
+    public static final String PHASE_STATUS = "status";
+    public static final String PHASE_QUEUE = "queue";
+    public static final String PHASE_TOTAL = "total";
+
+    // Order of phases in the summary line.
+    private static final String[] PHASES = {
+            PHASE_CREDENTIALS, PHASE_TOKEN, PHASE_CONNECT, PHASE_FIRST_BYTE, PHASE_LOG_DELIVERY, PHASE_STATUS, PHASE_QUEUE
+    };
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final LongAdder totalExecutions = new LongAdder();
+    private static final LongAdder totalBytes = new LongAdder();
+    private static final LongAdder totalFrames = new LongAdder();
+
+    private final long start = System.nanoTime();
+    private final Map<String, LongAdder> phases = new ConcurrentHashMap<>();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+
+    /**
+     * Get a snapshot of every phase histogram recorded so far.
+     *
+     * @return Histogram snapshots keyed by phase.
+     */
+    public static Map<String, LatencyHistogram.Snapshot> latencies() {
+        Map<String, LatencyHistogram.Snapshot> result = new TreeMap<>();
+        histograms.forEach((phase, histogram) -> result.put(phase, histogram.snapshot()));
+        return result;
+    }
+
+    public static long getTotalExecutions() {
+        return totalExecutions.sum();
+    }
+
+    public static long getTotalBytes() {
+        return totalBytes.sum();
+    }
+
+    public static long getTotalFrames() {
+        return totalFrames.sum();
+    }
+
+    public static void reset() {
+        histograms.clear();
+        totalExecutions.reset();
+        totalBytes.reset();
+        totalFrames.reset();
+    }
+
+    /**
+     * Records a phase that started at the given time and ends now.
+     *
+     * @param phase One of the PHASE_ constants.
+     * @param startNanos When the phase started, from {@link System#nanoTime()}.
+     */
+    public void time(String phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the duration of a phase.
+     *
+     * @param phase One of the PHASE_ constants.
+     * @param nanos Elapsed time in nanoseconds (negative values are ignored).
+     */
+    public void record(String phase, long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        phases.computeIfAbsent(phase, k -> new LongAdder()).add(nanos);
+        histograms.computeIfAbsent(phase, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    /**
+     * Counts bytes received from a command's stream.
+     */
+    public void addBytes(long count) {
+        bytes.add(count);
+        totalBytes.add(count);
+    }
+
+    /**
+     * Counts Docker frames received from a command's stream.
+     */
+    public void addFrames(long count) {
+        frames.add(count);
+        totalFrames.add(count);
+    }
+
+    public long getNanos(String phase) {
+        LongAdder nanos = phases.get(phase);
+        return nanos == null ? -1 : nanos.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    /**
+     * Records the overall duration, from construction until now.
+     *
+     * @param nodeName The node executed on.
+     * @return A one-line summary for the debug log.
+     */
+    public String finish(String nodeName) {
+        time(PHASE_TOTAL, start);
+        totalExecutions.increment();
+        StringBuilder summary = new StringBuilder("Metrics for ").append(nodeName).append(':');
+        for (String phase : PHASES) {
+            summary.append(' ').append(phase).append('=').append(millis(getNanos(phase)));
+        }
+        return summary.append(" bytes=").append(getBytes()).append(" frames=").append(getFrames())
+                .append(" total=").append(millis(getNanos(PHASE_TOTAL))).toString();
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+/**
+ * PID and exit code of a command run on a container.
+ *
+ * Both the job's PID file and the exit status line written at the end of its output use the form "PID CODE".
+ */
+public class ExitStatus {
+
+    private final String pid;
+
+    private final int code;
+
+    public ExitStatus(String pid, int code) {
+        this.pid = pid;
+        this.code = code;
+    }
+
+    /**
+     * Parses text of the form "PID CODE".
+     *
+     * @param text The status as written by the job wrapper.
+     * @return The status, or null if the text does not include an exit code.
+     */
+    public static ExitStatus parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        String[] fields = text.trim().split("\\s+");
+        if (fields.length < 2) {
+            return null;
+        }
+        try {
+            return new ExitStatus(fields[0], Integer.parseInt(fields[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public boolean isSuccess() {
+        return code == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Process " + pid + " status " + code;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A small cache of facts learned about remote containers, e.g. whether they have gunzip.
+ *
+ * Each value is forgotten ttl after it was put, so a container that changes is eventually checked again,
+ * and once maxEntries values are held the oldest is dropped, so the cache cannot grow with the number of
+ * containers a long-running server has seen.
+ */
+public class ExpiringCache<K, V> {
+
+    private final long ttlNanos;
+
+    private final int maxEntries;
+
+    private final LongSupplier clock;
+
+    // In the order values were put, so the oldest is first.
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>();
+
+    public ExpiringCache(long ttl, TimeUnit unit, int maxEntries) {
+        this(ttl, unit, maxEntries, System::nanoTime);
+    }
+
+    ExpiringCache(long ttl, TimeUnit unit, int maxEntries, LongSupplier clock) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * @param key The key to look up.
+     * @return The value, or null if there is none or it has expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (clock.getAsLong() - entry.expiresAt >= 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Stores a value, replacing (and restarting the time to live of) any value already held for the key.
+     *
+     * @param key The key.
+     * @param value The value.
+     */
+    public synchronized void put(K key, V value) {
+        long now = clock.getAsLong();
+        entries.remove(key);
+        entries.put(key, new Entry<>(value, now + ttlNanos));
+        Iterator<Map.Entry<K, Entry<V>>> oldest = entries.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<K, Entry<V>> next = oldest.next();
+            if (entries.size() > maxEntries || now - next.getValue().expiresAt >= 0) {
+                oldest.remove();
+            } else {
+                // Later entries were put later, so they expire later too.
+                break;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of buffers for decoding websocket messages.
+ *
+ * Rancher sends command output as Base64 text messages. Decoding each one into a new array made garbage in
+ * proportion to the output; instead, {@link #decodeBase64} decodes straight from the message text into a
+ * pooled buffer, which goes back to the pool once its frames have been delivered. Messages larger than a
+ * pooled buffer get a buffer of their own, and buffers released when the pool is full are left to the
+ * garbage collector, so the pool never holds more than maxBuffers times bufferBytes.
+ *
+ * Buffers are heap buffers: the output is decoded to text by a CharsetDecoder, which is much faster on
+ * array-backed buffers.
+ *
+ * @code
+ * ByteBuffer message = FrameBufferPool.shared().decodeBase64(text);
+ * try {
+ *     demuxer.feed(message, consumer);
+ * } finally {
+ *     FrameBufferPool.shared().release(message);
+ * }
+ * @code
+ */
+public class FrameBufferPool {
+
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+    public static final int DEFAULT_MAX_BUFFERS = 64;
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    // Value of each ASCII character in the Base64 alphabet, or -1.
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            VALUES[ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    private static final FrameBufferPool shared = new FrameBufferPool(DEFAULT_BUFFER_BYTES, DEFAULT_MAX_BUFFERS);
+
+    private final int bufferBytes;
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * @param bufferBytes Capacity of each pooled buffer.
+     * @param maxBuffers Most buffers kept for reuse.
+     */
+    public FrameBufferPool(int bufferBytes, int maxBuffers) {
+        this.bufferBytes = bufferBytes;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxBuffers));
+    }
+
+    /**
+     * @return The pool shared by every websocket in the JVM.
+     */
+    public static FrameBufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one.
+     *
+     * @param bytes The capacity needed.
+     * @return A cleared buffer; pass it to {@link #release} when done.
+     */
+    public ByteBuffer acquire(int bytes) {
+        if (bytes > bufferBytes) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocate(bytes);
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = ByteBuffer.allocate(bufferBytes);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Nothing may use it afterwards, including slices of it.
+     *
+     * @param buffer A buffer from {@link #acquire}.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferBytes) {
+            buffer.clear();
+            free.offer(buffer);
+        }
+    }
+
+    /**
+     * Decodes Base64 text (RFC 4648, padding optional) into a pooled buffer.
+     *
+     * @param text The encoded text.
+     * @return The decoded bytes, ready to read; pass the buffer to {@link #release} when done.
+     * @throws IllegalArgumentException When the text is not valid Base64.
+     */
+    public ByteBuffer decodeBase64(CharSequence text) {
+        int end = text.length();
+        if (end > 0 && text.charAt(end - 1) == '=') {
+            end -= end > 1 && text.charAt(end - 2) == '=' ? 2 : 1;
+        }
+        ByteBuffer buffer = acquire(end / 4 * 3 + Math.max(0, end % 4 - 1));
+        try {
+            decode(text, end, buffer);
+        } catch (IllegalArgumentException e) {
+            release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return Buffers allocated because none were free, including those for oversized messages.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return Buffers waiting in the pool.
+     */
+    public int getFree() {
+        return free.size();
+    }
+
+    private static void decode(CharSequence text, int end, ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        int out = buffer.arrayOffset() + buffer.position();
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Illegal base64 character " + Integer.toHexString(c));
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                bytes[out++] = (byte) (bits >> 16);
+                bytes[out++] = (byte) (bits >> 8);
+                bytes[out++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 1) {
+            throw new IllegalArgumentException("Last unit does not have enough valid bits");
+        } else if (count == 2) {
+            bytes[out++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            bytes[out++] = (byte) (bits >> 10);
+            bytes[out++] = (byte) (bits >> 2);
+        }
+        buffer.position(out - buffer.arrayOffset());
+    }
+}
@@ -6,25 +6,70 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import okhttp3.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.dtolabs.rundeck.core.Constants.DEBUG_LEVEL;
 
 public class HttpClient {
 
+    // GET requests in flight (or recently completed) keyed by a digest of the credentials and the URL, shared
+    // JVM-wide.
+    private static final ConcurrentHashMap<String, SharedGet> sharedGets = new ConcurrentHashMap<>();
+
+    // Removes each completed GET once its reuse window has passed.
+    private static final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rancher-shared-get");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Longest wait for another caller's GET when the client has no timeouts.
+    private static final long DEFAULT_SHARED_WAIT_MILLIS = 60000;
+
     private String accessKey;
     private String secretKey;
 
+    // How long a completed GET may be handed to later callers (0 only shares requests still in flight).
+    private long reuseWindowMillis = 0;
+
     private ExecutionLogger logger;
-    protected final OkHttpClient client;
+    protected OkHttpClient client;
+
+    // Clients passed to the constructor are kept even when settings are configured.
+    private final boolean injected;
 
     public HttpClient() {
-        this.client = new OkHttpClient();
+        this.client = RancherClientFactory.getClient();
+        this.injected = false;
     }
 
     public HttpClient(OkHttpClient client) {
         this.client = client;
+        this.injected = true;
+    }
+
+    /**
+     * Use the shared client for the given connection settings, unless a client was injected.
+     *
+     * @param settings Connection settings resolved for the current execution.
+     */
+    public void configure(ClientSettings settings) {
+        if (!injected) {
+            this.client = RancherClientFactory.getClient(settings);
+        }
     }
 
     public void setAccessKey(String accessKey) {
@@ -39,17 +84,97 @@ public class HttpClient {
         this.logger = logger;
     }
 
+    /**
+     * Allow a completed GET to satisfy identical requests for a short time after it returns.
+     *
+     * @param reuseWindowMillis Milliseconds a result may be reused; 0 shares only requests still in flight.
+     */
+    public void setReuseWindow(long reuseWindowMillis) {
+        this.reuseWindowMillis = Math.max(0, reuseWindowMillis);
+    }
+
     protected JsonNode get(String url) throws IOException {
         return this.get(url, null);
     }
 
+    /**
+     * GETs a URL, coalescing concurrent requests for the same URL and credentials into one API call.
+     *
+     * Each caller receives its own copy of the parsed document, so callers may modify the result. A caller
+     * waits for another's request no longer than the client's timeouts allow, then makes its own.
+     *
+     * @param url The URL to fetch.
+     * @param query Query parameters to add to the URL (may be null).
+     * @return The parsed JSON document.
+     * @throws IOException When the request fails or returns an error status.
+     */
     protected JsonNode get(String url, Map<String, String> query) throws IOException {
         HttpUrl.Builder urlBuilder = Objects.requireNonNull(HttpUrl.parse(url)).newBuilder();
         if (query != null) {
             query.forEach(urlBuilder::addQueryParameter);
         }
-        Request.Builder builder = new Request.Builder().url(urlBuilder.build().toString());
-        builder.addHeader("Authorization", Credentials.basic(accessKey, secretKey));
+        String target = urlBuilder.build().toString();
+        String authorization = Credentials.basic(accessKey, secretKey);
+        String key = credentialDigest() + " " + target;
+
+        SharedGet shared = new SharedGet();
+        SharedGet existing;
+        while ((existing = sharedGets.putIfAbsent(key, shared)) != null) {
+            if (existing.isReusable(reuseWindowMillis)) {
+                JsonNode result = existing.await(sharedWaitMillis());
+                // Null if the other request is taking too long; this one is then not shared.
+                return result == null ? fetch(target, authorization) : result.deepCopy();
+            }
+            sharedGets.remove(key, existing);
+        }
+
+        boolean completed = false;
+        try {
+            JsonNode result = fetch(target, authorization);
+            shared.complete(result);
+            completed = true;
+            return result.deepCopy();
+        } catch (IOException | RuntimeException | Error e) {
+            shared.fail(e);
+            throw e;
+        } finally {
+            if (completed && reuseWindowMillis > 0) {
+                expiry.schedule(() -> sharedGets.remove(key, shared), reuseWindowMillis, TimeUnit.MILLISECONDS);
+            } else {
+                sharedGets.remove(key, shared);
+            }
+        }
+    }
+
+    /**
+     * Identifies the credentials without keeping them, or the Authorization header made from them, in the map.
+     */
+    private String credentialDigest() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((accessKey + ":" + secretKey).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The client's call timeout, or if it has none, the sum of its other timeouts.
+     */
+    private long sharedWaitMillis() {
+        long millis = client.callTimeoutMillis();
+        if (millis == 0) {
+            millis = (long) client.connectTimeoutMillis() + client.readTimeoutMillis() + client.writeTimeoutMillis();
+        }
+        return millis > 0 ? millis : DEFAULT_SHARED_WAIT_MILLIS;
+    }
+
+    private JsonNode fetch(String target, String authorization) throws IOException {
+        Request.Builder builder = new Request.Builder().url(target);
+        builder.addHeader("Authorization", authorization);
+        builder.tag(ExecutionLogger.class, logger);
         Response response = client.newCall(builder.build()).execute();
         // Since URL comes from the Rancher server itself, assume there are no redirects.
         if (response.code() >= 300) {
@@ -73,6 +198,7 @@ public class HttpClient {
         RequestBody postBody = RequestBody.create(MediaType.parse("application/json"), data);
         Request.Builder builder = new Request.Builder().url(url).post(postBody);
         builder.addHeader("Authorization", Credentials.basic(accessKey, secretKey));
+        builder.tag(ExecutionLogger.class, logger);
         Response response = client.newCall(builder.build()).execute();
         // Since URL comes from the Rancher server itself, assume there are no redirects.
         if (response.code() >= 300) {
@@ -108,4 +234,56 @@ public class HttpClient {
             body.close();
         }
     }
+
+    /**
+     * A GET request whose parsed result is shared by every caller that asks for it while it is
+     * in flight or inside its reuse window.
+     */
+    private static class SharedGet {
+        private final CompletableFuture<JsonNode> result = new CompletableFuture<>();
+        private volatile long completedAt;
+
+        void complete(JsonNode node) {
+            completedAt = System.nanoTime();
+            result.complete(node);
+        }
+
+        void fail(Throwable t) {
+            result.completeExceptionally(t);
+        }
+
+        boolean isReusable(long windowMillis) {
+            if (!result.isDone()) {
+                return true;
+            }
+            return !result.isCompletedExceptionally() && age() <= windowMillis;
+        }
+
+        private long age() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - completedAt);
+        }
+
+        /**
+         * @param timeoutMillis Longest time to wait.
+         * @return The shared result, or null if it did not arrive in time.
+         */
+        JsonNode await(long timeoutMillis) throws IOException {
+            try {
+                return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for shared request");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
 }
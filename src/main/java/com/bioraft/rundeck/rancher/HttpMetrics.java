@@ -0,0 +1,271 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionLogger;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.dtolabs.rundeck.core.Constants.DEBUG_LEVEL;
+
+/**
+ * Records per-phase latency and status codes of Rancher API calls through an OkHttp {@link EventListener}.
+ *
+ * Histograms are kept JVM-wide, by operation type ("list", "get", "action", "execute-token", "create")
+ * and phase ("dns", "connect", "tls", "ttfb", "body", "total"), and by normalized endpoint, where Rancher
+ * IDs are replaced by "{id}" (e.g. "GET /v2-beta/projects/{id}/services"). If a request is tagged with an
+ * {@link ExecutionLogger}, a one-line timing summary is also written to that log at debug level.
+ *
+ * @code
+ * OkHttpClient client = new OkHttpClient.Builder().eventListenerFactory(HttpMetrics.FACTORY).build();
+ * Map<String, LatencyHistogram.Snapshot> latencies = HttpMetrics.latencies();
+ * @code
+ */
+public class HttpMetrics extends EventListener {
+
+    public static final String OP_LIST = "list";
+    public static final String OP_GET = "get";
+    public static final String OP_ACTION = "action";
+    public static final String OP_EXECUTE_TOKEN = "execute-token";
+    public static final String OP_CREATE = "create";
+
+    public static final String PHASE_DNS = "dns";
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_TLS = "tls";
+    public static final String PHASE_TTFB = "ttfb";
+    public static final String PHASE_BODY = "body";
+    public static final String PHASE_TOTAL = "total";
+
+    // Status code reported for calls that failed without a response.
+    public static final int STATUS_FAILED = 0;
+
+    // Matches Rancher resource IDs like 1a10, 1s56, 1i234 or 1st5.
+    private static final String RANCHER_ID_REGEX = "[0-9]+[a-z]+[0-9]+";
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, Map<Integer, LongAdder>> statusCodes = new ConcurrentHashMap<>();
+
+    public static final EventListener.Factory FACTORY = call -> new HttpMetrics();
+
+    private long callStart;
+    private long dnsStart;
+    private long dnsNanos = -1;
+    private long connectStart;
+    private long connectNanos = -1;
+    private long secureConnectStart;
+    private long tlsNanos = -1;
+    private long requestSent;
+    private long ttfbNanos = -1;
+    private long bodyStart;
+    private long bodyNanos = -1;
+    private int status = STATUS_FAILED;
+
+    /**
+     * Get a snapshot of every latency histogram recorded so far, keyed by "operation phase" and
+     * "METHOD endpoint".
+     *
+     * @return Histogram snapshots sorted by key.
+     */
+    public static Map<String, LatencyHistogram.Snapshot> latencies() {
+        Map<String, LatencyHistogram.Snapshot> result = new TreeMap<>();
+        histograms.forEach((key, histogram) -> result.put(key, histogram.snapshot()));
+        return result;
+    }
+
+    /**
+     * Get the number of responses seen for each operation type and status code.
+     *
+     * @return Counts keyed by operation, then status code ({@link #STATUS_FAILED} for failed calls).
+     */
+    public static Map<String, Map<Integer, Long>> statusCounts() {
+        Map<String, Map<Integer, Long>> result = new TreeMap<>();
+        statusCodes.forEach((operation, counts) -> {
+            Map<Integer, Long> copy = new TreeMap<>();
+            counts.forEach((code, adder) -> copy.put(code, adder.sum()));
+            result.put(operation, copy);
+        });
+        return result;
+    }
+
+    public static void reset() {
+        histograms.clear();
+        statusCodes.clear();
+    }
+
+    /**
+     * Classifies a request as one of the operation types used to key histograms.
+     *
+     * @param request The HTTP request.
+     * @return The operation type.
+     */
+    static String operation(Request request) {
+        String action = request.url().queryParameter("action");
+        if (Constants.NODE_ACTION_EXECUTE.equals(action)) {
+            return OP_EXECUTE_TOKEN;
+        } else if (action != null) {
+            return OP_ACTION;
+        } else if (!request.method().equals("GET")) {
+            return OP_CREATE;
+        }
+        List<String> segments = request.url().pathSegments();
+        String last = segments.isEmpty() ? "" : segments.get(segments.size() - 1);
+        if (last.isEmpty() && segments.size() > 1) {
+            last = segments.get(segments.size() - 2);
+        }
+        return last.matches(RANCHER_ID_REGEX) ? OP_GET : OP_LIST;
+    }
+
+    /**
+     * Builds an endpoint name with Rancher IDs replaced so that calls to similar resources share a histogram.
+     *
+     * @param request The HTTP request.
+     * @return Method and normalized path, plus the action if there is one.
+     */
+    static String endpoint(Request request) {
+        StringBuilder path = new StringBuilder();
+        for (String segment : request.url().pathSegments()) {
+            if (!segment.isEmpty()) {
+                path.append('/').append(segment.matches(RANCHER_ID_REGEX) ? "{id}" : segment);
+            }
+        }
+        String action = request.url().queryParameter("action");
+        if (action != null) {
+            path.append("?action=").append(action);
+        }
+        return request.method() + " " + path;
+    }
+
+    private static void record(String key, long nanos) {
+        if (nanos >= 0) {
+            histograms.computeIfAbsent(key, k -> new LatencyHistogram()).record(nanos);
+        }
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        dnsNanos = System.nanoTime() - dnsStart;
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        tlsNanos = System.nanoTime() - secureConnectStart;
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectNanos = System.nanoTime() - connectStart;
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        requestSent = System.nanoTime();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        requestSent = System.nanoTime();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        ttfbNanos = System.nanoTime() - requestSent;
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        status = response.code();
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+        bodyStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        bodyNanos = System.nanoTime() - bodyStart;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        finish(call);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        status = STATUS_FAILED;
+        finish(call);
+    }
+
+    private void finish(Call call) {
+        long totalNanos = System.nanoTime() - callStart;
+        Request request = call.request();
+        String operation = operation(request);
+        String endpoint = endpoint(request);
+
+        record(operation + " " + PHASE_DNS, dnsNanos);
+        record(operation + " " + PHASE_CONNECT, connectNanos);
+        record(operation + " " + PHASE_TLS, tlsNanos);
+        record(operation + " " + PHASE_TTFB, ttfbNanos);
+        record(operation + " " + PHASE_BODY, bodyNanos);
+        record(operation + " " + PHASE_TOTAL, totalNanos);
+        record(endpoint, totalNanos);
+        statusCodes.computeIfAbsent(operation, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(status, k -> new LongAdder()).increment();
+
+        ExecutionLogger logger = request.tag(ExecutionLogger.class);
+        if (logger != null) {
+            logger.log(DEBUG_LEVEL, String.format("%s %s %d dns=%s connect=%s tls=%s ttfb=%s body=%s total=%s",
+                    operation, endpoint, status, millis(dnsNanos), millis(connectNanos), millis(tlsNanos),
+                    millis(ttfbNanos), millis(bodyNanos), millis(totalNanos)));
+        }
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+    }
+}
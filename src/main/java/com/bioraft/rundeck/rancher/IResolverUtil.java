@@ -40,10 +40,12 @@ public class IResolverUtil {
     {
         if (null != node.getAttributes().get(nodeAttribute)) {
             return node.getAttributes().get(nodeAttribute);
-        } else if (frameworkProject.hasProperty(JschNodeExecutor.PROJ_PROP_PREFIX + nodeAttribute)
+        } else if (null != frameworkProject
+                && frameworkProject.hasProperty(JschNodeExecutor.PROJ_PROP_PREFIX + nodeAttribute)
                 && !"".equals(frameworkProject.getProperty(JschNodeExecutor.PROJ_PROP_PREFIX + nodeAttribute))) {
             return frameworkProject.getProperty(JschNodeExecutor.PROJ_PROP_PREFIX + nodeAttribute);
-        } else if (framework.getPropertyLookup().hasProperty(JschNodeExecutor.FWK_PROP_PREFIX + nodeAttribute)) {
+        } else if (null != framework && null != framework.getPropertyLookup()
+                && framework.getPropertyLookup().hasProperty(JschNodeExecutor.FWK_PROP_PREFIX + nodeAttribute)) {
             return framework.getPropertyLookup().getProperty(JschNodeExecutor.FWK_PROP_PREFIX + nodeAttribute);
         } else {
             return defaultValue;
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with fixed, roughly logarithmic buckets in milliseconds.
+ *
+ * Recording never allocates, so it is safe to call from OkHttp and websocket threads.
+ */
+public class LatencyHistogram {
+
+    // Upper bounds (inclusive) of each bucket in milliseconds; the last bucket is unbounded.
+    static final long[] BOUNDS_MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record one observation.
+     *
+     * @param nanos Elapsed time in nanoseconds (negative values are ignored).
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BOUNDS_MILLIS.length && millis > BOUNDS_MILLIS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, count.sum(), sumNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * A point-in-time copy of a histogram.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+        private final long maxNanos;
+
+        Snapshot(long[] counts, long count, long sumNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long[] getBucketCounts() {
+            return counts.clone();
+        }
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : sumNanos / 1e6 / count;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket that contains it.
+         *
+         * @param percentile A value between 0 and 100.
+         * @return The estimated latency in milliseconds (the maximum for the unbounded bucket).
+         */
+        public double getPercentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i < BOUNDS_MILLIS.length ? Math.min(BOUNDS_MILLIS[i], getMaxMillis()) : getMaxMillis();
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1fms p50=%.0fms p90=%.0fms p99=%.0fms max=%.1fms", count,
+                    getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99),
+                    getMaxMillis());
+        }
+    }
+}
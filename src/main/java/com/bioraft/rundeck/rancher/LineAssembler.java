@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Decodes UTF-8 output that arrives in pieces and splits it into lines.
+ *
+ * A character or line split across Docker frames is kept until the rest arrives, so each line is emitted
+ * whole, without its line terminator. Use one assembler per stream.
+ */
+public class LineAssembler {
+
+    // A line longer than this is emitted in pieces rather than held indefinitely.
+    public static final int MAX_LINE_CHARS = 64 * 1024;
+
+    private static final int BUFFER_CHARS = 8192;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_CHARS);
+
+    // Bytes of a character that continues in the next frame (at most 3 for UTF-8).
+    private final ByteBuffer carry = ByteBuffer.allocate(8);
+
+    // The start of a line that continues in the next frame.
+    private final StringBuilder partial = new StringBuilder();
+
+    // A carriage return ended the last frame; a line feed that follows it belongs to the same terminator.
+    private boolean afterCarriageReturn;
+
+    /**
+     * Decodes the next piece of output and emits each line it completes.
+     *
+     * @param bytes The output; it is consumed.
+     * @param lines Receives complete lines.
+     */
+    public void feed(ByteBuffer bytes, Consumer<String> lines) {
+        // Finish a character split across frames, one byte at a time.
+        while (carry.position() > 0 && bytes.hasRemaining()) {
+            carry.put(bytes.get());
+            carry.flip();
+            decode(carry, false, lines);
+            carry.compact();
+        }
+        decode(bytes, false, lines);
+        if (bytes.hasRemaining()) {
+            carry.put(bytes);
+        }
+    }
+
+    /**
+     * Emits whatever is left at the end of the stream, and resets for the next one.
+     *
+     * @param lines Receives the last line, if it did not end with a line feed.
+     */
+    public void flush(Consumer<String> lines) {
+        carry.flip();
+        decode(carry, true, lines);
+        decoder.flush(chars);
+        scan(lines);
+        if (partial.length() > 0) {
+            lines.accept(partial.toString());
+        }
+        reset();
+    }
+
+    /**
+     * Drops any partial line or character.
+     */
+    public void reset() {
+        decoder.reset();
+        chars.clear();
+        carry.clear();
+        partial.setLength(0);
+        afterCarriageReturn = false;
+    }
+
+    private void decode(ByteBuffer bytes, boolean endOfInput, Consumer<String> lines) {
+        while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+            scan(lines);
+        }
+        scan(lines);
+    }
+
+    /**
+     * Emits the complete lines in the decoded characters and keeps the rest.
+     */
+    private void scan(Consumer<String> lines) {
+        char[] array = chars.array();
+        int end = chars.position();
+        int start = 0;
+        if (afterCarriageReturn && end > 0 && array[0] == '\n') {
+            start = 1;
+        }
+        afterCarriageReturn = false;
+        for (int i = start; i < end; i++) {
+            char c = array[i];
+            if (c == '\n' || c == '\r') {
+                emit(array, start, i, lines);
+                if (c == '\r' && i + 1 < end && array[i + 1] == '\n') {
+                    i++;
+                } else if (c == '\r' && i + 1 == end) {
+                    afterCarriageReturn = true;
+                }
+                start = i + 1;
+            }
+        }
+        partial.append(array, start, end - start);
+        chars.clear();
+        while (partial.length() >= MAX_LINE_CHARS) {
+            lines.accept(partial.substring(0, MAX_LINE_CHARS));
+            partial.delete(0, MAX_LINE_CHARS);
+        }
+    }
+
+    private void emit(char[] array, int start, int end, Consumer<String> lines) {
+        if (partial.length() == 0) {
+            lines.accept(new String(array, start, end - start));
+        } else {
+            partial.append(array, start, end - start);
+            lines.accept(partial.toString());
+            partial.setLength(0);
+        }
+    }
+}
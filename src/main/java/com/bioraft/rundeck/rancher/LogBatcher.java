@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.dtolabs.rundeck.core.Constants.ERR_LEVEL;
+
+/**
+ * Collects log lines and sends them to Rundeck in batches.
+ *
+ * Consecutive lines with the same level are joined into one message of up to maxChars characters, and no
+ * line waits longer than maxDelayMillis. A batch that is full, or ended by a line of another level, is sent
+ * on the thread that logs the next line, so when Rundeck falls behind, the thread reading the websocket waits
+ * instead of buffering without limit. A batch whose time runs out is sent by one timer thread shared by every
+ * batcher, so no batcher needs a thread of its own.
+ *
+ * A batch the listener fails to take is dropped so delivery can go on; failures are counted and reported to
+ * the listener at ERR level when the batcher closes.
+ */
+public class LogBatcher implements Closeable {
+
+    public static final int DEFAULT_MAX_CHARS = 64 * 1024;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 200;
+
+    // Sends batches whose time limit has passed.
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rancher-log-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ExecutionListener listener;
+
+    private final int maxChars;
+
+    private final long maxDelayNanos;
+
+    private final StringBuilder batch = new StringBuilder();
+
+    // Lines in the batch, and their level.
+    private int lines;
+    private int level;
+
+    // Sends the batch when its time limit passes; null while the batch is empty.
+    private ScheduledFuture<?> due;
+
+    private int failures;
+
+    private boolean closed;
+
+    public LogBatcher(ExecutionListener listener) {
+        this(listener, DEFAULT_MAX_CHARS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param listener Log listener from Rundeck.
+     * @param maxChars Largest batch, in characters (a single longer line is sent alone).
+     * @param maxDelayMillis Longest time a line waits for more lines to join it.
+     */
+    public LogBatcher(ExecutionListener listener, int maxChars, long maxDelayMillis) {
+        this.listener = listener;
+        this.maxChars = maxChars;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    /**
+     * Adds a line to the batch, first sending the batch if the line cannot join it. After close, lines are
+     * sent directly.
+     *
+     * @param level Log level.
+     * @param message The line, without a line feed.
+     */
+    public synchronized void log(int level, String message) {
+        if (closed) {
+            send(level, message);
+            return;
+        }
+        if (lines > 0 && (level != this.level || batch.length() + message.length() >= maxChars)) {
+            sendBatch();
+        }
+        if (lines == 0) {
+            this.level = level;
+            due = timer.schedule(this::sendDue, maxDelayNanos, TimeUnit.NANOSECONDS);
+        } else {
+            batch.append('\n');
+        }
+        batch.append(message);
+        lines++;
+    }
+
+    /**
+     * @return The number of batches dropped because the listener threw an exception.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Sends the batch, and reports any batches the listener failed to take. Later lines are sent directly.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        sendBatch();
+        if (failures > 0) {
+            send(ERR_LEVEL, "Output was lost: Rundeck failed to log " + failures + " batch(es) of lines");
+        }
+    }
+
+    private synchronized void sendDue() {
+        sendBatch();
+    }
+
+    private void sendBatch() {
+        if (due != null) {
+            due.cancel(false);
+            due = null;
+        }
+        if (lines == 0) {
+            return;
+        }
+        if (!send(level, batch.toString())) {
+            failures++;
+        }
+        batch.setLength(0);
+        lines = 0;
+    }
+
+    private boolean send(int level, String message) {
+        try {
+            // Batchers for several containers may share one listener.
+            synchronized (listener) {
+                listener.log(level, message);
+            }
+            return true;
+        } catch (RuntimeException e) {
+            // Keep going so the websocket reader is never stopped by the listener.
+            return false;
+        }
+    }
+}
@@ -45,6 +45,9 @@ import java.nio.ByteBuffer;
  * theRest = reader.nextHeader(); // Prepend this to next Rancher message. 
  * @code
  *
+ * RancherWebSocketListener uses {@link DockerStreamDemuxer}, which keeps partial
+ * frames between messages without copying them.
+ *
  * @author Karl DeBisschop <kdebisschop@gmail.com>
  * @since 2019-12-12
  */
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static com.dtolabs.rundeck.core.Constants.DEBUG_LEVEL;
+import static com.dtolabs.rundeck.core.Constants.ERR_LEVEL;
+import static com.dtolabs.rundeck.core.Constants.VERBOSE_LEVEL;
+import static com.dtolabs.rundeck.core.Constants.WARN_LEVEL;
+
+/**
+ * Writes the output lines of one node to its own file, alongside the normal Rundeck log.
+ *
+ * Each line is written as "LEVEL text", where LEVEL is the Rundeck log level (NORMAL for STDOUT, WARN for
+ * STDERR), the same layout split-log.pl produced from the combined log. Lines are buffered and written through
+ * a FileChannel; the file is closed and the buffer freed whenever it is flushed, at the end of each command,
+ * so idle nodes hold no file handles or buffers. When the file reaches its size limit it is compressed to
+ * NAME.log.1.gz and older files move up by one, keeping at most the configured number.
+ *
+ * Sinks are shared by every command on a node (e.g. all containers of a service), so writes are synchronized.
+ * Sinks left idle for IDLE_MINUTES are forgotten; a command still holding one writes through the node's
+ * current sink instead, so there is never more than one sink writing a file.
+ */
+public class NodeOutputSink {
+
+    public static final long DEFAULT_MAX_BYTES = 100L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    // Time after its last flush at which a sink is dropped from the map, which forNode sweeps.
+    private static final long IDLE_MINUTES = 10;
+
+    private static final Map<Path, NodeOutputSink> sinks = new ConcurrentHashMap<>();
+
+    private final Path path;
+
+    private long maxBytes;
+
+    private int maxFiles;
+
+    // Allocated when the file is opened, and freed when it is flushed.
+    private ByteBuffer buffer;
+
+    private FileChannel channel;
+
+    // Bytes in the current file, including those still buffered.
+    private long size;
+
+    // When the sink was last flushed or handed out, from System.nanoTime().
+    private long usedAt = System.nanoTime();
+
+    // Set once the sink is dropped from the map; it then takes no more lines.
+    private boolean evicted;
+
+    private NodeOutputSink(Path path, long maxBytes, int maxFiles) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Gets the sink for a node, creating it if needed. The limits given replace those of an existing sink, so
+     * changes to the configuration apply to the next command.
+     *
+     * @param directory Directory for the node's files; it is created if missing.
+     * @param nodeName The node; characters unsafe in file names are replaced.
+     * @param maxBytes Size at which the file is rotated; 0 to never rotate.
+     * @param maxFiles Compressed files kept after rotation.
+     * @return The sink.
+     */
+    public static NodeOutputSink forNode(Path directory, String nodeName, long maxBytes, int maxFiles) {
+        Path path = directory.resolve(fileName(nodeName)).toAbsolutePath().normalize();
+        evictIdle(System.nanoTime());
+        // Marked as used inside compute, so it cannot be evicted before it is returned.
+        return sinks.compute(path, (p, sink) -> {
+            if (sink == null) {
+                return new NodeOutputSink(p, maxBytes, maxFiles);
+            }
+            sink.use(maxBytes, maxFiles);
+            return sink;
+        });
+    }
+
+    /**
+     * Forgets sinks that are closed and have not been used for IDLE_MINUTES.
+     *
+     * @param now The current time, from System.nanoTime().
+     */
+    static void evictIdle(long now) {
+        for (Path path : sinks.keySet()) {
+            // Checked again inside computeIfPresent, so a sink handed out meanwhile is kept.
+            sinks.computeIfPresent(path, (p, sink) -> sink.evictIfIdle(now) ? null : sink);
+        }
+    }
+
+    static int count() {
+        return sinks.size();
+    }
+
+    private synchronized void use(long maxBytes, int maxFiles) {
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        usedAt = System.nanoTime();
+    }
+
+    private synchronized void touch() {
+        usedAt = System.nanoTime();
+    }
+
+    private synchronized boolean evictIfIdle(long now) {
+        evicted = channel == null && now - usedAt >= TimeUnit.MINUTES.toNanos(IDLE_MINUTES);
+        return evicted;
+    }
+
+    /**
+     * @return The sink now registered for this sink's file, creating one with this sink's limits if none is.
+     */
+    private NodeOutputSink current() {
+        return sinks.compute(path, (p, sink) -> {
+            if (sink == null) {
+                return new NodeOutputSink(p, maxBytes, maxFiles);
+            }
+            sink.touch();
+            return sink;
+        });
+    }
+
+    synchronized boolean isBuffered() {
+        return buffer != null;
+    }
+
+    static String fileName(String nodeName) {
+        return nodeName.replaceAll("[^A-Za-z0-9._-]", "_") + ".log";
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Appends a line. If this sink has been evicted, the line goes to the node's current sink.
+     *
+     * @param level Rundeck log level of the line.
+     * @param line The line, without its terminator.
+     * @throws IOException When the file cannot be written.
+     */
+    public void write(int level, String line) throws IOException {
+        NodeOutputSink sink = this;
+        while (!sink.append(level, line)) {
+            sink = sink.current();
+        }
+    }
+
+    /**
+     * @return False if the sink has been evicted, and the line was not written.
+     */
+    private synchronized boolean append(int level, String line) throws IOException {
+        if (evicted) {
+            return false;
+        }
+        byte[] bytes = (levelName(level) + ' ' + line + '\n').getBytes(StandardCharsets.UTF_8);
+        open();
+        if (maxBytes > 0 && size > 0 && size + bytes.length > maxBytes) {
+            rotate();
+            open();
+        }
+        if (bytes.length > buffer.remaining()) {
+            drain();
+        }
+        if (bytes.length > buffer.capacity()) {
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+        size += bytes.length;
+        return true;
+    }
+
+    /**
+     * Writes buffered lines, then closes the file and frees the buffer until the next line arrives. If this sink
+     * has been evicted, the node's current sink, which took its lines, is flushed instead.
+     *
+     * @throws IOException When the file cannot be written.
+     */
+    public void flush() throws IOException {
+        if (!close()) {
+            NodeOutputSink sink = sinks.get(path);
+            if (sink != null) {
+                sink.flush();
+            }
+        }
+    }
+
+    /**
+     * @return False if the sink has been evicted, and there was nothing to close.
+     */
+    private synchronized boolean close() throws IOException {
+        if (evicted) {
+            return false;
+        }
+        try {
+            drain();
+        } finally {
+            buffer = null;
+            usedAt = System.nanoTime();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+        return true;
+    }
+
+    private void drain() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer.flip();
+        if (buffer.hasRemaining()) {
+            write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void open() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(path.getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            size = channel.size() + (buffer == null ? 0 : buffer.position());
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Compresses the current file to NAME.1.gz, after moving NAME.N.gz to NAME.N+1.gz.
+     */
+    private void rotate() throws IOException {
+        flush();
+        if (maxFiles > 0) {
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(rotated(1)))) {
+                Files.copy(path, out);
+            }
+        }
+        Files.delete(path);
+        size = 0;
+    }
+
+    private Path rotated(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index + ".gz");
+    }
+
+    private static String levelName(int level) {
+        switch (level) {
+            case ERR_LEVEL:
+                return "ERROR";
+            case WARN_LEVEL:
+                return "WARN";
+            case VERBOSE_LEVEL:
+                return "VERBOSE";
+            case DEBUG_LEVEL:
+                return "DEBUG";
+            default:
+                return "NORMAL";
+        }
+    }
+}
@@ -140,6 +140,7 @@ public class RancherAddService implements StepPlugin {
             client.setAccessKey(storage.loadStoragePathData(accessKeyPath));
             String secretKeyPath = cfgFromRancherProjectOrFramework(framework, project, CONFIG_SECRETKEY_PATH);
             client.setSecretKey(storage.loadStoragePathData(secretKeyPath));
+            client.configure(ClientSettings.resolve(context.getExecutionContext(), null));
         } catch (IOException e) {
             throw new StepException("Could not get secret storage path", e, IO_EXCEPTION);
         }
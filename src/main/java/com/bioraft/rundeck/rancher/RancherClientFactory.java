@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the OkHttp clients used for Rancher API calls and websockets.
+ *
+ * One client is kept per distinct {@link ClientSettings}, so every plugin instance with the same settings
+ * shares a connection pool and dispatcher. All clients record {@link HttpMetrics}.
+ *
+ * A command's websocket holds a dispatcher slot for as long as the command runs, so websockets are opened
+ * through {@link #streamClient}, whose dispatcher has no limits. The dispatcher limits of the shared clients
+ * only apply to API calls; concurrent commands are limited by {@link ExecutionGovernor}.
+ */
+public class RancherClientFactory {
+
+    private static final Map<ClientSettings, OkHttpClient> clients = new ConcurrentHashMap<>();
+
+    // Runs every command stream in the JVM.
+    private static final Dispatcher streams = new Dispatcher();
+
+    static {
+        streams.setMaxRequests(Integer.MAX_VALUE);
+        streams.setMaxRequestsPerHost(Integer.MAX_VALUE);
+    }
+
+    private RancherClientFactory() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @return The shared client with default settings.
+     */
+    public static OkHttpClient getClient() {
+        return getClient(ClientSettings.DEFAULTS);
+    }
+
+    /**
+     * @param settings Connection settings.
+     * @return The shared client for these settings.
+     */
+    public static OkHttpClient getClient(ClientSettings settings) {
+        return clients.computeIfAbsent(settings, RancherClientFactory::build);
+    }
+
+    /**
+     * Derives the client for command websockets from a client for API calls.
+     *
+     * @param client A client, normally from {@link #getClient}.
+     * @return A client with the same settings and connection pool, whose dispatcher does not limit streams.
+     */
+    public static OkHttpClient streamClient(OkHttpClient client) {
+        return client.dispatcher() == streams ? client : client.newBuilder().dispatcher(streams).build();
+    }
+
+    private static OkHttpClient build(ClientSettings settings) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), settings.getMaxRequestsPerHost()));
+        dispatcher.setMaxRequestsPerHost(settings.getMaxRequestsPerHost());
+        return new OkHttpClient.Builder()
+                .connectTimeout(settings.getConnectTimeout(), TimeUnit.SECONDS)
+                .readTimeout(settings.getReadTimeout(), TimeUnit.SECONDS)
+                .writeTimeout(settings.getWriteTimeout(), TimeUnit.SECONDS)
+                .callTimeout(settings.getCallTimeout(), TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(settings.getPoolSize(), settings.getKeepAlive(), TimeUnit.SECONDS))
+                .protocols(settings.getProtocols())
+                .dispatcher(dispatcher)
+                .eventListenerFactory(HttpMetrics.FACTORY)
+                .build();
+    }
+}
@@ -43,6 +43,7 @@ import com.dtolabs.rundeck.plugins.descriptions.PluginDescription;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
@@ -75,8 +76,20 @@ public class RancherFileCopier implements FileCopier, Describable {
                 "A search path on the Rundeck host that finds rancher, docker, sh, and base64 (e.g., /usr/local/bin:/usr/bin:/bin)",
                 false, ""));
 
+        builder.property(PropertyUtil.select(RANCHER_CONFIG_UPLOAD_MODE, "Upload mode",
+                "How files are sent through the Rancher API: through the STDIN of one command (falling back to chunks if Rancher does not pass STDIN through), or one command per chunk",
+                false, UPLOAD_MODE_STDIN, Arrays.asList(UPLOAD_MODE_STDIN, UPLOAD_MODE_CHUNKED)));
+
+        builder.property(PropertyUtil.select(RANCHER_CONFIG_UPLOAD_COMPRESSION, "Upload compression",
+                "Compress files with gzip before sending them through the Rancher API; containers without gunzip get them uncompressed",
+                false, UPLOAD_COMPRESSION_NONE, Arrays.asList(UPLOAD_COMPRESSION_NONE, UPLOAD_COMPRESSION_GZIP)));
+
         builder.mapping(RANCHER_CONFIG_CLI_PATH, PROJ_RANCHER_CLI_PATH);
         builder.frameworkMapping(RANCHER_CONFIG_CLI_PATH, FMWK_RANCHER_CLI_PATH);
+        builder.mapping(RANCHER_CONFIG_UPLOAD_MODE, PROJ_RANCHER_UPLOAD_MODE);
+        builder.frameworkMapping(RANCHER_CONFIG_UPLOAD_MODE, FMWK_RANCHER_UPLOAD_MODE);
+        builder.mapping(RANCHER_CONFIG_UPLOAD_COMPRESSION, PROJ_RANCHER_UPLOAD_COMPRESSION);
+        builder.frameworkMapping(RANCHER_CONFIG_UPLOAD_COMPRESSION, FMWK_RANCHER_UPLOAD_COMPRESSION);
 
         DESC = builder.build();
     }
@@ -138,11 +151,26 @@ public class RancherFileCopier implements FileCopier, Describable {
         } else if (framework.getPropertyLookup().hasProperty(FMWK_RANCHER_CLI_PATH)) {
             searchPath = framework.getPropertyLookup().getProperty(FMWK_RANCHER_CLI_PATH);
         }
+        String uploadMode = UPLOAD_MODE_STDIN;
+        if (project.hasProperty(PROJ_RANCHER_UPLOAD_MODE)) {
+            uploadMode = project.getProperty(PROJ_RANCHER_UPLOAD_MODE);
+        } else if (framework.getPropertyLookup().hasProperty(FMWK_RANCHER_UPLOAD_MODE)) {
+            uploadMode = framework.getPropertyLookup().getProperty(FMWK_RANCHER_UPLOAD_MODE);
+        }
+        String compression = UPLOAD_COMPRESSION_NONE;
+        if (project.hasProperty(PROJ_RANCHER_UPLOAD_COMPRESSION)) {
+            compression = project.getProperty(PROJ_RANCHER_UPLOAD_COMPRESSION);
+        } else if (framework.getPropertyLookup().hasProperty(FMWK_RANCHER_UPLOAD_COMPRESSION)) {
+            compression = framework.getPropertyLookup().getProperty(FMWK_RANCHER_UPLOAD_COMPRESSION);
+        }
 
         try {
             String result;
             // Use API for multiple containers for now, because we do not have externalId list in service-type of node.
             if (searchPath == null || searchPath.equals("") || nodeAttributes.get("type").equals("service")) {
+                webSocketListener.setTransport(RancherClientFactory.getClient(ClientSettings.resolve(context, node)));
+                webSocketListener.setStdinUpload(!UPLOAD_MODE_CHUNKED.equals(uploadMode));
+                webSocketListener.setGzipUpload(UPLOAD_COMPRESSION_GZIP.equals(compression));
                 result = copyViaApi(context, nodeAttributes, localTempFile, remoteFile);
             } else {
                 CliCopier cliCopier = new CliCopier(localTempFile, searchPath, context, nodeAttributes);
@@ -79,6 +79,10 @@ public class RancherManageService implements NodeStepPlugin {
 			secretKey = storage.loadStoragePathData(attributes.get(CONFIG_SECRETKEY_PATH));
 			client.setAccessKey(accessKey);
 			client.setSecretKey(secretKey);
+			client.configure(ClientSettings.resolve(executionContext, node));
+			// Only GETs still in flight are shared: a completed document could hide another node's action
+			// from the state check below.
+			client.setReuseWindow(0);
 		} catch (IOException e) {
 			throw new NodeStepException("Could not get secret storage path", e, IO_EXCEPTION, nodeName);
 		}
@@ -94,6 +94,7 @@ public class RancherNewStack implements StepPlugin {
             client.setAccessKey(accessKey);
             String secretKey = storage.loadStoragePathData(secretKeyPath);
             client.setSecretKey(secretKey);
+            client.configure(ClientSettings.resolve(context.getExecutionContext(), null));
         } catch (IOException e) {
             throw new StepException("Could not get secret storage path", e, IO_EXCEPTION);
         }
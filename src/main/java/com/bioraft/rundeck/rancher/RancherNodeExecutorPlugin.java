@@ -17,8 +17,21 @@
 package com.bioraft.rundeck.rancher;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import com.dtolabs.rundeck.core.common.INodeEntry;
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
@@ -32,6 +45,7 @@ import com.dtolabs.rundeck.core.plugins.Plugin;
 import com.dtolabs.rundeck.core.plugins.configuration.*;
 import com.dtolabs.rundeck.plugins.ServiceNameConstants;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
+import okhttp3.OkHttpClient;
 
 import static com.dtolabs.rundeck.core.Constants.DEBUG_LEVEL;
 import static com.bioraft.rundeck.rancher.Constants.*;
@@ -60,17 +74,152 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
 		builder.mapping(RANCHER_CONFIG_EXECUTOR_TIMEOUT, PROJ_RANCHER_EXECUTOR_TIMEOUT);
 		builder.frameworkMapping(RANCHER_CONFIG_EXECUTOR_TIMEOUT, FMWK_RANCHER_EXECUTOR_TIMEOUT);
 
+        builder.property(PropertyUtil.select(RANCHER_CONFIG_STDERR_MODE, "STDERR handling",
+                "\"token\" marks STDERR lines with a bash wrapper; \"native\" uses Docker's STDERR stream, "
+                        + "for Rancher versions that forward it (on others, STDERR is logged as STDOUT). "
+                        + "Commands run under bash either way", false, STDERR_MODE_TOKEN,
+                Arrays.asList(STDERR_MODE_TOKEN, STDERR_MODE_NATIVE)));
+        builder.mapping(RANCHER_CONFIG_STDERR_MODE, PROJ_RANCHER_STDERR_MODE);
+        builder.frameworkMapping(RANCHER_CONFIG_STDERR_MODE, FMWK_RANCHER_STDERR_MODE);
+
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_PING_INTERVAL, "Ping interval",
+                "Seconds between websocket pings while a command runs; the command fails if Rancher stops "
+                        + "answering (0 to disable)", false, String.valueOf(RancherWebSocketListener.DEFAULT_PING_INTERVAL)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_IDLE_CHECK, "Idle container check",
+                "Seconds without output before checking that the container is still running; the command "
+                        + "fails if it is not (0 to disable)", false, String.valueOf(RancherWebSocketListener.DEFAULT_IDLE_CHECK)));
+        builder.mapping(RANCHER_CONFIG_PING_INTERVAL, PROJ_RANCHER_PING_INTERVAL);
+        builder.frameworkMapping(RANCHER_CONFIG_PING_INTERVAL, FMWK_RANCHER_PING_INTERVAL);
+        builder.mapping(RANCHER_CONFIG_IDLE_CHECK, PROJ_RANCHER_IDLE_CHECK);
+        builder.frameworkMapping(RANCHER_CONFIG_IDLE_CHECK, FMWK_RANCHER_IDLE_CHECK);
+
+        builder.property(PropertyUtil.bool(RANCHER_CONFIG_SHELL_SESSION, "Shell sessions",
+                "Run the steps of an execution in one shell per container instead of starting a process for "
+                        + "each step", false, "false"));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_SESSION_IDLE, "Shell session idle timeout",
+                "Seconds without a step after which a shell session is closed", false,
+                String.valueOf(ShellSession.DEFAULT_IDLE_SECONDS)));
+        builder.mapping(RANCHER_CONFIG_SHELL_SESSION, PROJ_RANCHER_SHELL_SESSION);
+        builder.frameworkMapping(RANCHER_CONFIG_SHELL_SESSION, FMWK_RANCHER_SHELL_SESSION);
+        builder.mapping(RANCHER_CONFIG_SESSION_IDLE, PROJ_RANCHER_SESSION_IDLE);
+        builder.frameworkMapping(RANCHER_CONFIG_SESSION_IDLE, FMWK_RANCHER_SESSION_IDLE);
+
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_HOST_CONCURRENCY, "Host concurrency",
+                "Commands that may run at once on one Rancher host, across all executions (e.g. 16; 0 for no limit). "
+                        + "If projects set different values, the largest applies.",
+                false, String.valueOf(ExecutionGovernor.DEFAULT_PERMITS)));
+        builder.mapping(RANCHER_CONFIG_HOST_CONCURRENCY, PROJ_RANCHER_HOST_CONCURRENCY);
+        builder.frameworkMapping(RANCHER_CONFIG_HOST_CONCURRENCY, FMWK_RANCHER_HOST_CONCURRENCY);
+
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_CAPTURE_MEMORY, "Capture memory",
+                "Bytes of captured command output (e.g. the exit status file) kept in memory before the rest is "
+                        + "written to a temporary file", false, String.valueOf(CaptureBuffer.DEFAULT_MEMORY_BYTES)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_CAPTURE_MAX, "Capture limit",
+                "Bytes of captured command output after which the command fails (0 for no limit)", false,
+                String.valueOf(CaptureBuffer.DEFAULT_MAX_BYTES)));
+        builder.mapping(RANCHER_CONFIG_CAPTURE_MEMORY, PROJ_RANCHER_CAPTURE_MEMORY);
+        builder.frameworkMapping(RANCHER_CONFIG_CAPTURE_MEMORY, FMWK_RANCHER_CAPTURE_MEMORY);
+        builder.mapping(RANCHER_CONFIG_CAPTURE_MAX, PROJ_RANCHER_CAPTURE_MAX);
+        builder.frameworkMapping(RANCHER_CONFIG_CAPTURE_MAX, FMWK_RANCHER_CAPTURE_MAX);
+
+        builder.property(PropertyUtil.string(RANCHER_CONFIG_OUTPUT_DIRECTORY, "Node output directory",
+                "Also write each node's output to its own file in this directory (blank to only log it)", false,
+                ""));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_OUTPUT_MAX_MB, "Node output file size",
+                "Megabytes at which a node's output file is compressed and a new one started (0 to never rotate)",
+                false, String.valueOf(NodeOutputSink.DEFAULT_MAX_BYTES / (1024 * 1024))));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_OUTPUT_MAX_FILES, "Node output files kept",
+                "Compressed output files kept for each node", false,
+                String.valueOf(NodeOutputSink.DEFAULT_MAX_FILES)));
+        builder.mapping(RANCHER_CONFIG_OUTPUT_DIRECTORY, PROJ_RANCHER_OUTPUT_DIRECTORY);
+        builder.frameworkMapping(RANCHER_CONFIG_OUTPUT_DIRECTORY, FMWK_RANCHER_OUTPUT_DIRECTORY);
+        builder.mapping(RANCHER_CONFIG_OUTPUT_MAX_MB, PROJ_RANCHER_OUTPUT_MAX_MB);
+        builder.frameworkMapping(RANCHER_CONFIG_OUTPUT_MAX_MB, FMWK_RANCHER_OUTPUT_MAX_MB);
+        builder.mapping(RANCHER_CONFIG_OUTPUT_MAX_FILES, PROJ_RANCHER_OUTPUT_MAX_FILES);
+        builder.frameworkMapping(RANCHER_CONFIG_OUTPUT_MAX_FILES, FMWK_RANCHER_OUTPUT_MAX_FILES);
+
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_SERVICE_PARALLELISM, "Service parallelism",
+                "Number of a service's containers to run the command on at once (1 runs them in turn)", false,
+                "1"));
+        builder.property(PropertyUtil.select(RANCHER_CONFIG_SERVICE_FAILURE_POLICY, "Service failure policy",
+                "When the command fails on one of a service's containers, stop the others (fail-fast) or let "
+                        + "them finish (run-all)", false, FAILURE_POLICY_FAIL_FAST,
+                Arrays.asList(FAILURE_POLICY_FAIL_FAST, FAILURE_POLICY_RUN_ALL)));
+        builder.mapping(RANCHER_CONFIG_SERVICE_PARALLELISM, PROJ_RANCHER_SERVICE_PARALLELISM);
+        builder.frameworkMapping(RANCHER_CONFIG_SERVICE_PARALLELISM, FMWK_RANCHER_SERVICE_PARALLELISM);
+        builder.mapping(RANCHER_CONFIG_SERVICE_FAILURE_POLICY, PROJ_RANCHER_SERVICE_FAILURE_POLICY);
+        builder.frameworkMapping(RANCHER_CONFIG_SERVICE_FAILURE_POLICY, FMWK_RANCHER_SERVICE_FAILURE_POLICY);
+
+        // HTTP client tuning, shared with the file copier and step plugins.
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_CONNECT_TIMEOUT, "Connect timeout",
+                "Seconds to wait for a connection to the Rancher API (0 for no limit)", false,
+                Integer.toString(ClientSettings.DEFAULT_CONNECT_TIMEOUT)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_READ_TIMEOUT, "Read timeout",
+                "Seconds to wait for data from the Rancher API (0 for no limit)", false,
+                Integer.toString(ClientSettings.DEFAULT_READ_TIMEOUT)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_WRITE_TIMEOUT, "Write timeout",
+                "Seconds to wait while sending data to the Rancher API (0 for no limit)", false,
+                Integer.toString(ClientSettings.DEFAULT_WRITE_TIMEOUT)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_CALL_TIMEOUT, "Call timeout",
+                "Maximum seconds for a complete API call (0 for no limit; never applied to running commands)", false,
+                Integer.toString(ClientSettings.DEFAULT_CALL_TIMEOUT)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_POOL_SIZE, "Connection pool size",
+                "Maximum idle connections kept open to the Rancher API", false,
+                Integer.toString(ClientSettings.DEFAULT_POOL_SIZE)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_KEEP_ALIVE, "Keep-alive",
+                "Seconds an idle connection is kept open", false,
+                Integer.toString(ClientSettings.DEFAULT_KEEP_ALIVE)));
+        builder.property(PropertyUtil.integer(RANCHER_CONFIG_MAX_REQUESTS_PER_HOST, "Max requests per host",
+                "Maximum concurrent commands and asynchronous requests to one Rancher host", false,
+                Integer.toString(ClientSettings.DEFAULT_MAX_REQUESTS_PER_HOST)));
+        builder.property(PropertyUtil.string(RANCHER_CONFIG_PROTOCOLS, "HTTP protocols",
+                "Preferred protocols, e.g. \"h2, http/1.1\" (http/1.1 is always allowed)", false,
+                ClientSettings.DEFAULT_PROTOCOLS));
+
+        builder.mapping(RANCHER_CONFIG_CONNECT_TIMEOUT, PROJ_RANCHER_CONNECT_TIMEOUT);
+        builder.frameworkMapping(RANCHER_CONFIG_CONNECT_TIMEOUT, FMWK_RANCHER_CONNECT_TIMEOUT);
+        builder.mapping(RANCHER_CONFIG_READ_TIMEOUT, PROJ_RANCHER_READ_TIMEOUT);
+        builder.frameworkMapping(RANCHER_CONFIG_READ_TIMEOUT, FMWK_RANCHER_READ_TIMEOUT);
+        builder.mapping(RANCHER_CONFIG_WRITE_TIMEOUT, PROJ_RANCHER_WRITE_TIMEOUT);
+        builder.frameworkMapping(RANCHER_CONFIG_WRITE_TIMEOUT, FMWK_RANCHER_WRITE_TIMEOUT);
+        builder.mapping(RANCHER_CONFIG_CALL_TIMEOUT, PROJ_RANCHER_CALL_TIMEOUT);
+        builder.frameworkMapping(RANCHER_CONFIG_CALL_TIMEOUT, FMWK_RANCHER_CALL_TIMEOUT);
+        builder.mapping(RANCHER_CONFIG_POOL_SIZE, PROJ_RANCHER_POOL_SIZE);
+        builder.frameworkMapping(RANCHER_CONFIG_POOL_SIZE, FMWK_RANCHER_POOL_SIZE);
+        builder.mapping(RANCHER_CONFIG_KEEP_ALIVE, PROJ_RANCHER_KEEP_ALIVE);
+        builder.frameworkMapping(RANCHER_CONFIG_KEEP_ALIVE, FMWK_RANCHER_KEEP_ALIVE);
+        builder.mapping(RANCHER_CONFIG_MAX_REQUESTS_PER_HOST, PROJ_RANCHER_MAX_REQUESTS_PER_HOST);
+        builder.frameworkMapping(RANCHER_CONFIG_MAX_REQUESTS_PER_HOST, FMWK_RANCHER_MAX_REQUESTS_PER_HOST);
+        builder.mapping(RANCHER_CONFIG_PROTOCOLS, PROJ_RANCHER_PROTOCOLS);
+        builder.frameworkMapping(RANCHER_CONFIG_PROTOCOLS, FMWK_RANCHER_PROTOCOLS);
+
         DESC = builder.build();
     }
 
     private final RancherWebSocketListener socketListener;
     private final RancherWebSocketListener fileCopier;
     private final Storage storage;
+    private final Supplier<RancherWebSocketListener> listenerFactory;
     private String accessKey;
     private String secretKey;
     private ExecutionListener listener;
     private ExecutionLogger logger;
     private INodeEntry node;
+    private OkHttpClient transport;
+    private boolean nativeStderr;
+    private int pingInterval;
+    private int idleCheck;
+    private ExecutionMetrics metrics;
+    private String executionId;
+    // Seconds a shell session may stay idle; 0 when steps do not run in sessions.
+    private int sessionIdle;
+    // Commands allowed at once on the node's host; 0 for no limit.
+    private int hostConcurrency;
+    // Memory limit and hard cap for captured output such as the PID file.
+    private int captureMemory;
+    private int captureMax;
+    // Receives the node's output lines; null when they are only logged.
+    private NodeOutputSink outputSink;
 
     /**
      * Constructor called by RunDeck.
@@ -79,6 +228,7 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
         socketListener = new RancherWebSocketListener();
         fileCopier = new RancherWebSocketListener();
         this.storage = new Storage();
+        this.listenerFactory = RancherWebSocketListener::new;
     }
 
     /**
@@ -89,9 +239,22 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
      * @param storage                  Rancher secret storage service.
      */
     public RancherNodeExecutorPlugin(RancherWebSocketListener rancherWebSocketListener, RancherWebSocketListener webSocketFileCopier, Storage storage) {
+        this(rancherWebSocketListener, webSocketFileCopier, storage, RancherWebSocketListener::new);
+    }
+
+    /**
+     * Constructor used for injecting unit testing mocks.
+     *
+     * @param rancherWebSocketListener Socket used to execute the command.
+     * @param webSocketFileCopier      Socket used to fetch the PID + status file.
+     * @param storage                  Rancher secret storage service.
+     * @param listenerFactory          Supplies a socket for each container when a service runs in parallel.
+     */
+    public RancherNodeExecutorPlugin(RancherWebSocketListener rancherWebSocketListener, RancherWebSocketListener webSocketFileCopier, Storage storage, Supplier<RancherWebSocketListener> listenerFactory) {
         socketListener = rancherWebSocketListener;
         fileCopier = webSocketFileCopier;
         this.storage = storage;
+        this.listenerFactory = listenerFactory;
     }
 
     @Override
@@ -102,9 +265,22 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
     @Override
     public NodeExecutorResult executeCommand(final ExecutionContext context, final String[] command,
                                              final INodeEntry node) {
+        listener = context.getExecutionListener();
+        logger = context.getExecutionLogger();
+        metrics = new ExecutionMetrics();
+        NodeExecutorResult result = execute(context, command, node);
+        if (logger != null) {
+            logger.log(DEBUG_LEVEL, metrics.finish(node.getNodename()));
+        }
+        return result;
+    }
+
+    private NodeExecutorResult execute(final ExecutionContext context, final String[] command,
+                                       final INodeEntry node) {
         this.node = node;
         Map<String, String> nodeAttributes = node.getAttributes();
 
+        long credentialsStart = System.nanoTime();
         try {
             storage.setExecutionContext(context);
             accessKey = storage.loadStoragePathData(nodeAttributes.get(CONFIG_ACCESSKEY_PATH));
@@ -112,12 +288,11 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
         } catch (IOException e) {
             return NodeExecutorResultImpl.createFailure(StepFailureReason.IOFailure, e.getMessage(), node);
         }
-
-        listener = context.getExecutionListener();
-        logger = context.getExecutionLogger();
+        metrics.time(ExecutionMetrics.PHASE_CREDENTIALS, credentialsStart);
 
         Map<String, String> jobContext = context.getDataContext().get("job");
         String temp = this.baseName(command, jobContext);
+        executionId = jobContext.get("execid");
 
         int timeout = IResolverUtil.resolveIntProperty(
                 RANCHER_CONFIG_EXECUTOR_TIMEOUT,
@@ -127,15 +302,101 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
                 context.getIFramework()
         );
 
+        String stderrMode = IResolverUtil.resolveProperty(
+                RANCHER_CONFIG_STDERR_MODE,
+                STDERR_MODE_TOKEN,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+
+        transport = RancherClientFactory.getClient(ClientSettings.resolve(context, node));
+        pingInterval = IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_PING_INTERVAL,
+                RancherWebSocketListener.DEFAULT_PING_INTERVAL,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+        idleCheck = IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_IDLE_CHECK,
+                RancherWebSocketListener.DEFAULT_IDLE_CHECK,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+
+        boolean shellSession = Boolean.parseBoolean(IResolverUtil.resolveProperty(
+                RANCHER_CONFIG_SHELL_SESSION,
+                "false",
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        ));
+        sessionIdle = !shellSession ? 0 : Math.max(1, IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_SESSION_IDLE,
+                ShellSession.DEFAULT_IDLE_SECONDS,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        ));
+
+        hostConcurrency = IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_HOST_CONCURRENCY,
+                ExecutionGovernor.DEFAULT_PERMITS,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+
+        captureMemory = IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_CAPTURE_MEMORY,
+                CaptureBuffer.DEFAULT_MEMORY_BYTES,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+        captureMax = IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_CAPTURE_MAX,
+                (int) CaptureBuffer.DEFAULT_MAX_BYTES,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+
+        outputSink = this.outputSink(context);
+
+        nativeStderr = STDERR_MODE_NATIVE.equals(stderrMode);
+        configure(socketListener, null);
+        fileCopier.setTransport(transport);
+        fileCopier.setCaptureLimits(captureMemory, captureMax);
+
         if (nodeAttributes.get("type").equals("service")) {
             // "self": "https://rancher.example.com/v2-beta/projects/1a10/services/1s56"
             // "execute": "https://rancher.example.com/v2-beta/projects/1a10/containers/1i234/?action=execute",
             String self = nodeAttributes.get(NODE_ATT_SELF);
             String[] instanceIds = nodeAttributes.get("instanceIds").split(",");
+            int parallelism = IResolverUtil.resolveIntProperty(
+                    RANCHER_CONFIG_SERVICE_PARALLELISM,
+                    1,
+                    node,
+                    context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                    context.getIFramework()
+            );
+            if (parallelism > 1 && instanceIds.length > 1) {
+                String policy = IResolverUtil.resolveProperty(
+                        RANCHER_CONFIG_SERVICE_FAILURE_POLICY,
+                        FAILURE_POLICY_FAIL_FAST,
+                        node,
+                        context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                        context.getIFramework()
+                );
+                return runParallel(self, instanceIds, command, temp, timeout, parallelism,
+                        !FAILURE_POLICY_RUN_ALL.equals(policy));
+            }
             NodeExecutorResult result = NodeExecutorResultImpl.createFailure(StepFailureReason.PluginFailed, "No containers in node", node);
             for (String instance: instanceIds) {
-                String url = self.replaceFirst("/services/[0-9]+s[0-9]+", "/containers/" + instance + "/?action=execute");
-                result = runJob(url, command, temp, timeout);
+                result = runJob(socketListener, fileCopier, containerUrl(self, instance), command, temp, timeout);
                 if (!result.isSuccess()) {
                     break;
                 }
@@ -143,27 +404,211 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
             return result;
         } else {
             String url = nodeAttributes.get("execute");
-            return runJob(url, command, temp, timeout);
+            return runJob(socketListener, fileCopier, url, command, temp, timeout);
         }
     }
 
-    private NodeExecutorResult runJob(String url, String[] command, String temp, int timeout) {
+    /**
+     * Applies this execution's settings to a socket.
+     *
+     * @param socket The socket.
+     * @param linePrefix Prefix for each line of output, or null for none.
+     * @return The socket.
+     */
+    private RancherWebSocketListener configure(RancherWebSocketListener socket, String linePrefix) {
+        socket.setTransport(transport);
+        socket.setNativeStderr(nativeStderr);
+        socket.setLiveness(pingInterval, idleCheck);
+        socket.setMetrics(metrics);
+        socket.setLinePrefix(linePrefix);
+        socket.setOutputSink(outputSink);
+        return socket;
+    }
+
+    /**
+     * Gets the sink for this node's output file, if one is configured.
+     *
+     * @param context The execution context.
+     * @return The sink, or null when output is only logged.
+     */
+    private NodeOutputSink outputSink(ExecutionContext context) {
+        String directory = IResolverUtil.resolveProperty(
+                RANCHER_CONFIG_OUTPUT_DIRECTORY,
+                "",
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+        if (directory == null || directory.trim().isEmpty()) {
+            return null;
+        }
+        int maxMegabytes = IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_OUTPUT_MAX_MB,
+                (int) (NodeOutputSink.DEFAULT_MAX_BYTES / (1024 * 1024)),
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+        int maxFiles = IResolverUtil.resolveIntProperty(
+                RANCHER_CONFIG_OUTPUT_MAX_FILES,
+                NodeOutputSink.DEFAULT_MAX_FILES,
+                node,
+                context.getIFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()),
+                context.getIFramework()
+        );
+        return NodeOutputSink.forNode(Paths.get(directory.trim()), node.getNodename(),
+                maxMegabytes * 1024L * 1024L, maxFiles);
+    }
+
+    private static String containerUrl(String self, String instance) {
+        return self.replaceFirst("/services/[0-9]+s[0-9]+", "/containers/" + instance + "/?action=execute");
+    }
+
+    /**
+     * Runs the command on several of a service's containers at once, each with its own socket. Output lines
+     * are prefixed with the container ID.
+     *
+     * @param self        The service's API URL.
+     * @param instanceIds The service's containers.
+     * @param command     The command to run.
+     * @param temp        A unique temporary file for this job.
+     * @param timeout     Maximum seconds the command may run on each container.
+     * @param parallelism Maximum number of containers to run on at once.
+     * @param failFast    Stop the remaining containers after the first failure.
+     * @return Success if the command succeeded everywhere, else a failure listing the containers that failed.
+     */
+    private NodeExecutorResult runParallel(String self, String[] instanceIds, String[] command, String temp,
+                                           int timeout, int parallelism, boolean failFast) {
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, instanceIds.length),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "rancher-exec-" + node.getNodename() + "-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        CompletionService<NodeExecutorResult> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<NodeExecutorResult>, String> instances = new HashMap<>();
+        for (String instance : instanceIds) {
+            RancherWebSocketListener socket = configure(listenerFactory.get(), "[" + instance + "] ");
+            RancherWebSocketListener copier = listenerFactory.get();
+            copier.setTransport(transport);
+            copier.setCaptureLimits(captureMemory, captureMax);
+            String url = containerUrl(self, instance);
+            instances.put(completionService.submit(() -> runJob(socket, copier, url, command, temp, timeout)), instance);
+        }
+
+        List<String> failures = new ArrayList<>();
+        StepFailureReason reason = null;
+        int completed = 0;
         try {
-            logger.log(DEBUG_LEVEL, "Running " + String.join(" ", command));
-            socketListener.thisRunJob(url, accessKey, secretKey, command, listener, temp, timeout);
-            logger.log(DEBUG_LEVEL, "Ran " + String.join(" ", command));
+            while (completed < instanceIds.length && (reason == null || !failFast)) {
+                Future<NodeExecutorResult> future = completionService.take();
+                completed++;
+                NodeExecutorResult result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    result = NodeExecutorResultImpl.createFailure(StepFailureReason.PluginFailed,
+                            e.getCause().getMessage(), node);
+                }
+                if (!result.isSuccess()) {
+                    failures.add(instances.get(future) + ": " + result.getFailureMessage());
+                    reason = reason == null ? (StepFailureReason) result.getFailureReason() : reason;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.Interrupted, e.getMessage(), node);
+        } finally {
+            // Interrupting a running command closes its socket.
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+
+        if (reason == null) {
+            return NodeExecutorResultImpl.createSuccess(node);
+        }
+        String message = "Failed on " + failures.size() + " of " + instanceIds.length + " containers: "
+                + String.join("; ", failures);
+        if (completed < instanceIds.length) {
+            message += "; stopped " + (instanceIds.length - completed) + " after the first failure";
+        }
+        return NodeExecutorResultImpl.createFailure(reason, message, node);
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the shell session for this execution on a container, opening it if needed.
+     *
+     * @param socketListener The socket the command would otherwise run on; the session copies its line prefix.
+     * @param url The container's execute URL.
+     * @return The session, or null if a shell could not be opened.
+     * @throws InterruptedException When interrupted.
+     */
+    private ShellSession session(RancherWebSocketListener socketListener, String url) throws InterruptedException {
+        try {
+            return ShellSession.acquire(executionId, url, sessionIdle, () -> {
+                RancherWebSocketListener shell = configure(listenerFactory.get(), socketListener.getLinePrefix());
+                shell.openSession(url, accessKey, secretKey);
+                return shell;
+            });
         } catch (IOException e) {
-            return NodeExecutorResultImpl.createFailure(StepFailureReason.IOFailure, e.getMessage(), node);
+            logger.log(DEBUG_LEVEL, "Running without a shell session: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Runs a command on a container once its host has room for it. Commands on containers whose host is
+     * unknown are not limited.
+     */
+    private NodeExecutorResult runJob(RancherWebSocketListener socketListener, RancherWebSocketListener fileCopier,
+                                      String url, String[] command, String temp, int timeout) {
+        if (hostConcurrency <= 0) {
+            return runAdmitted(socketListener, fileCopier, url, command, temp, timeout);
+        }
+        // A container node's hostname is its host ID; a service node only names its containers.
+        String hostId = "service".equals(node.getAttributes().get("type"))
+                ? socketListener.thisGetHostId(url, accessKey, secretKey) : node.getHostname();
+        if (hostId == null || hostId.isEmpty()) {
+            logger.log(DEBUG_LEVEL, "Host of " + url + " is unknown; running without a host limit");
+            return runAdmitted(socketListener, fileCopier, url, command, temp, timeout);
+        }
+        ExecutionGovernor governor = ExecutionGovernor.forHost(url, hostId, hostConcurrency);
+        ExecutionGovernor.Permit permit;
+        try {
+            permit = governor.acquire(metrics);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             return NodeExecutorResultImpl.createFailure(StepFailureReason.Interrupted, e.getMessage(), node);
         }
+        try {
+            return runAdmitted(socketListener, fileCopier, url, command, temp, timeout);
+        } finally {
+            permit.close();
+        }
+    }
 
-        String statusFileContents;
-        String file = temp + ".pid";
-        logger.log(DEBUG_LEVEL, "Reading '" + file + "' on " + url);
+    private NodeExecutorResult runAdmitted(RancherWebSocketListener socketListener, RancherWebSocketListener fileCopier,
+                                           String url, String[] command, String temp, int timeout) {
+        ExitStatus status;
         try {
-            statusFileContents = fileCopier.thisGetFile(url, accessKey, secretKey, file);
+            logger.log(DEBUG_LEVEL, "Running " + String.join(" ", command));
+            ShellSession session = sessionIdle > 0 ? session(socketListener, url) : null;
+            if (session != null) {
+                status = session.run(command, listener, metrics, timeout);
+            } else {
+                status = socketListener.thisRunJob(url, accessKey, secretKey, command, listener, temp, timeout);
+            }
+            logger.log(DEBUG_LEVEL, "Ran " + String.join(" ", command));
         } catch (IOException e) {
             return NodeExecutorResultImpl.createFailure(StepFailureReason.IOFailure, e.getMessage(), node);
         } catch (InterruptedException e) {
@@ -171,15 +616,32 @@ public class RancherNodeExecutorPlugin implements NodeExecutor, Describable {
             return NodeExecutorResultImpl.createFailure(StepFailureReason.Interrupted, e.getMessage(), node);
         }
 
-        String[] pidFile = statusFileContents.split(" ");
-        if (pidFile.length < 2) {
-            String message = "Process " + statusFileContents + " did not return a status.";
-            return NodeExecutorResultImpl.createFailure(StepFailureReason.PluginFailed, message, node);
-        } else if (Integer.parseInt(pidFile[1]) == 0) {
+        if (status == null) {
+            // The status line was not seen in the output, so fall back to the PID file.
+            String statusFileContents;
+            String file = temp + ".pid";
+            logger.log(DEBUG_LEVEL, "Reading '" + file + "' on " + url);
+            long statusStart = System.nanoTime();
+            try {
+                statusFileContents = fileCopier.thisGetFile(url, accessKey, secretKey, file);
+                metrics.time(ExecutionMetrics.PHASE_STATUS, statusStart);
+            } catch (IOException e) {
+                return NodeExecutorResultImpl.createFailure(StepFailureReason.IOFailure, e.getMessage(), node);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return NodeExecutorResultImpl.createFailure(StepFailureReason.Interrupted, e.getMessage(), node);
+            }
+            status = ExitStatus.parse(statusFileContents);
+            if (status == null) {
+                String message = "Process " + statusFileContents + " did not return a status.";
+                return NodeExecutorResultImpl.createFailure(StepFailureReason.PluginFailed, message, node);
+            }
+        }
+
+        if (status.isSuccess()) {
             return NodeExecutorResultImpl.createSuccess(node);
         } else {
-            String message = "Process " + pidFile[0] + " status " + pidFile[1];
-            return NodeExecutorResultImpl.createFailure(StepFailureReason.PluginFailed, message, node);
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.PluginFailed, status.toString(), node);
         }
     }
 
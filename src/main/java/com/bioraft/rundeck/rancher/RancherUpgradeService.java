@@ -18,6 +18,7 @@ package com.bioraft.rundeck.rancher;
 import com.dtolabs.rundeck.core.Constants;
 import com.dtolabs.rundeck.core.common.INodeEntry;
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.execution.ExecutionLogger;
 import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepException;
 import com.dtolabs.rundeck.core.plugins.Plugin;
 import com.dtolabs.rundeck.plugins.PluginLogger;
@@ -96,7 +97,13 @@ public class RancherUpgradeService implements NodeStepPlugin {
 
 	private PluginLogger logger;
 
-	final OkHttpClient client;
+	OkHttpClient client;
+
+	// Wraps client so identical concurrent GETs from parallel node steps share one request.
+	HttpClient httpClient;
+
+	// A client passed to the constructor is used as is, whatever the connection settings.
+	private final boolean injected;
 
 	JsonNode launchConfig;
 
@@ -105,11 +112,15 @@ public class RancherUpgradeService implements NodeStepPlugin {
 	private int sleepInterval = 5000;
 
 	public RancherUpgradeService() {
-		client = new OkHttpClient();
+		client = RancherClientFactory.getClient();
+		httpClient = new HttpClient(client);
+		injected = false;
 	}
 
 	public RancherUpgradeService(OkHttpClient client) {
 		this.client = client;
+		httpClient = new HttpClient(client);
+		injected = true;
 	}
 
 	@Override
@@ -131,6 +142,10 @@ public class RancherUpgradeService implements NodeStepPlugin {
 		} catch (IOException e) {
 			throw new NodeStepException("Could not get secret storage path", e, IO_EXCEPTION, this.nodeName);
 		}
+		if (!injected) {
+			client = RancherClientFactory.getClient(ClientSettings.resolve(executionContext, node));
+			httpClient = new HttpClient(client);
+		}
 
 		JsonNode service;
 		if (attributes.get("type").equals("container")) {
@@ -272,18 +287,10 @@ public class RancherUpgradeService implements NodeStepPlugin {
 	 */
 	private JsonNode apiGet(String accessKey, String secretKey, String url) throws NodeStepException {
 		try {
-			Builder builder = new Request.Builder().url(url);
-			builder.addHeader("Authorization", Credentials.basic(accessKey, secretKey));
-			Response response = client.newCall(builder.build()).execute();
-			// Since URL comes from the Rancher server itself, assume there are no redirects.
-			if (response.code() >= 300) {
-				throw new IOException("API get failed" + response.message());
-			}
-			ObjectMapper mapper = new ObjectMapper();
-			if (response.body() == null) {
-				return mapper.readTree("");
-			}
-			return mapper.readTree(response.body().string());
+			httpClient.setAccessKey(accessKey);
+			httpClient.setSecretKey(secretKey);
+			httpClient.setLogger(logger);
+			return httpClient.get(url);
 		} catch (IOException e) {
 			throw new NodeStepException(e.getMessage(), e, NO_SERVICE_OBJECT, nodeName);
 		}
@@ -304,6 +311,7 @@ public class RancherUpgradeService implements NodeStepPlugin {
 		try {
 			Builder builder = new Request.Builder().url(url).post(postBody);
 			builder.addHeader("Authorization", Credentials.basic(accessKey, secretKey));
+			builder.tag(ExecutionLogger.class, logger);
 			Response response = client.newCall(builder.build()).execute();
 			// Since URL comes from the Rancher server itself, assume there are no redirects.
 			if (response.code() >= 300) {
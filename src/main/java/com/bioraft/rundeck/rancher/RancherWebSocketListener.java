@@ -24,22 +24,40 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.io.ByteSource;
-import com.google.common.primitives.Bytes;
+import com.bioraft.rundeck.rancher.LogMessage.Stream;
 import okhttp3.*;
 import okio.ByteString;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
 
+import static com.bioraft.rundeck.rancher.Constants.EXIT_STATUS_TOKEN;
 import static com.bioraft.rundeck.rancher.Constants.STDERR_TOKEN;
 import static com.dtolabs.rundeck.core.Constants.ERR_LEVEL;
 
@@ -54,15 +72,68 @@ public class RancherWebSocketListener extends WebSocketListener {
 	// These are used to reconstruct STDERR since it is lost in the stream from Rancher.
 	private static final int STDERR_TOKEN_LENGTH = STDERR_TOKEN.length();
 
+	// Maximum time for short commands (reading the PID file, copying a chunk of a file).
+	private static final int COMMAND_TIMEOUT_SECONDS = 30;
+
+	// Maximum time for the command that stops a killed job's processes; the job's thread waits for it.
+	private static final int KILL_TIMEOUT_SECONDS = 5;
+
+	// Rate at which an upload through STDIN is expected to progress at worst, added to its timeout.
+	private static final int UPLOAD_BYTES_PER_SECOND = 256 * 1024;
+
+	// Bytes of a file per STDIN message; a multiple of 3, so each message is encoded without padding.
+	private static final int STDIN_CHUNK_BYTES = 48 * 1024;
+
+	// Bytes that may wait in the web socket's send queue before an upload waits for it to drain.
+	private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+	// Maximum time for the probe that checks whether STDIN reaches commands; it hangs if STDIN never arrives.
+	private static final int PROBE_TIMEOUT_SECONDS = 10;
+
+	// Bytes the probe sends through STDIN.
+	private static final byte[] PROBE_BYTES = "ping".getBytes(StandardCharsets.US_ASCII);
+
+	// How long, and for how many end points or containers, the results of probes are kept.
+	private static final int PROBE_CACHE_MINUTES = 10;
+	private static final int PROBE_CACHE_ENTRIES = 1000;
+
+	// Whether each Rancher end point passes STDIN through to commands.
+	private static final ExpiringCache<String, Boolean> STDIN = new ExpiringCache<>(PROBE_CACHE_MINUTES,
+			TimeUnit.MINUTES, PROBE_CACHE_ENTRIES);
+
+	// Whether each container (by API URL) has gunzip to decompress uploads.
+	private static final ExpiringCache<String, Boolean> GUNZIP = new ExpiringCache<>(PROBE_CACHE_MINUTES,
+			TimeUnit.MINUTES, PROBE_CACHE_ENTRIES);
+
+	// Bytes compression must save to be worth the extra command that checks for gunzip.
+	private static final long MIN_GZIP_SAVING_BYTES = 4096;
+
+	public static final int DEFAULT_PING_INTERVAL = 10;
+	public static final int DEFAULT_IDLE_CHECK = 15;
+
+	// Rancher container states in which a running command cannot finish normally.
+	private static final Set<String> DEAD_STATES = new HashSet<>(Arrays.asList(
+			"stopping", "stopped", "removing", "removed", "purging", "purged", "error"));
+
 	// Log listener from Rundeck.
 	private ExecutionListener listener;
 
 	// A buffer used to accumulate output from the Rancher message stream.
 	private StringBuilder output;
 
+	// Receives the raw output of a command run by run(); null otherwise.
+	private volatile CaptureBuffer capture;
+
+	// Memory limit and hard cap of the buffers that capture command output.
+	private int captureMemoryBytes = CaptureBuffer.DEFAULT_MEMORY_BYTES;
+	private long captureMaxBytes = CaptureBuffer.DEFAULT_MAX_BYTES;
+
 	// Try to use a single HTTP client across methods.
 	private OkHttpClient client;
 
+	// Client whose settings (and connection pool) are used for every request; null for the shared default.
+	private OkHttpClient transport;
+
 	// URL of the Rancher API end point.
 	private String url;
 
@@ -75,18 +146,82 @@ public class RancherWebSocketListener extends WebSocketListener {
 	// The command for the job being run.
 	private String[] commandList;
 
-	// Docker message frames do not necessarily coincide with Rancher. When a Docker
-	// frame is continued in the next Rancher message, this header allows us to
-	// decode
-	// the rest of the Docker frame.
-	private byte[] nextHeader;
+	// Docker message frames do not necessarily coincide with Rancher messages, so
+	// the demuxer keeps partial frames between messages.
+	private final DockerStreamDemuxer demuxer = new DockerStreamDemuxer();
+
+	// Characters and lines may also span frames, so they are assembled per stream.
+	private final LineAssembler stdoutLines = new LineAssembler();
+	private final LineAssembler stderrLines = new LineAssembler();
 
 	private int currentOutputChannel = -1;
 
+	// Completed when the socket for the current command closes or fails.
+	private CompletableFuture<Void> completion;
+
+	// Marks the exit status line written by the job wrapper; null when not running a job.
+	private String exitMarker;
+
+	// Exit status of the job, once its status line has been read.
+	private ExitStatus exitStatus;
+
+	// Route output by Docker stream instead of marking STDERR lines with STDERR_TOKEN.
+	private boolean nativeStderr;
+
+	// Send files through the STDIN of one command instead of one command per chunk.
+	private boolean stdinUpload = true;
+
+	// Compress files with gzip before uploading them to containers that have gunzip.
+	private boolean gzipUpload;
+
+	// Batches job output on its way to the listener; null outside of runJob.
+	private volatile LogBatcher batcher;
+
+	// Prepended to each line of job output, e.g. to tell containers apart when they share a listener.
+	private String linePrefix = "";
+
+	// Seconds between websocket pings during a job; a missing pong fails the socket.
+	private int pingInterval = DEFAULT_PING_INTERVAL;
+
+	// Seconds without output after which the container's state is checked; 0 to never check.
+	private int idleCheck = DEFAULT_IDLE_CHECK;
+
+	// API URL of the container running the current job; null when its state is not checked.
+	private String containerUrl;
+
+	// When the last message arrived from the current command.
+	private volatile long lastFrameNanos;
+
+	// Receives timings and stream sizes of subsequent jobs; null to not record them.
+	private ExecutionMetrics metrics;
+
+	// The metrics of the job being run; null outside of runJob.
+	private volatile ExecutionMetrics jobMetrics;
+
+	// When the current command's web socket was requested, and whether its first message is still awaited.
+	private long socketStart;
+	private boolean awaitingFirstByte;
+
+	// Time the current job's reading thread spent handing output to the log listener.
+	private long logDeliveryNanos;
+
+	// The shell opened by openSession; null when there is none.
+	private volatile WebSocket session;
+
+	// Completed with the exit status of the command running in the session; null between commands.
+	private volatile CompletableFuture<ExitStatus> sessionStatus;
+
+	// PID of the session's shell, from its first status line.
+	private String sessionPid;
+
+	// Also receives each output line; null when output only goes to the listener.
+	private volatile NodeOutputSink outputSink;
+
 	public RancherWebSocketListener() { }
 
 	public RancherWebSocketListener(OkHttpClient client) {
 		this.client = client;
+		this.transport = client;
 	}
 
 	public RancherWebSocketListener(ExecutionListener listener, StringBuilder output) {
@@ -94,9 +229,110 @@ public class RancherWebSocketListener extends WebSocketListener {
 		this.output = output;
 	}
 
+	/**
+	 * Use the given client's settings and connection pool for subsequent commands.
+	 *
+	 * @param transport A client, normally from {@link RancherClientFactory}.
+	 */
+	public void setTransport(OkHttpClient transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Choose how STDERR is separated from STDOUT for subsequent jobs.
+	 *
+	 * When true, the job is run without the bash wrapper that marks STDERR lines, and output is logged by
+	 * the Docker stream it arrives on. This requires a Rancher version that forwards Docker's STDERR stream.
+	 *
+	 * @param nativeStderr True to use Docker's stream IDs, false to mark lines with STDERR_TOKEN.
+	 */
+	public void setNativeStderr(boolean nativeStderr) {
+		this.nativeStderr = nativeStderr;
+	}
+
+	/**
+	 * Choose how subsequent uploads are sent.
+	 *
+	 * When true, a file is written to the STDIN of a single command, falling back to chunks for Rancher
+	 * end points that do not pass STDIN through. When false, each chunk of the file is sent by its own command.
+	 *
+	 * @param stdinUpload True to upload through STDIN, false to upload in chunks.
+	 */
+	public void setStdinUpload(boolean stdinUpload) {
+		this.stdinUpload = stdinUpload;
+	}
+
+	/**
+	 * Choose whether subsequent uploads are compressed.
+	 *
+	 * When true, a file is compressed with gzip and decompressed by gunzip on the container. Containers
+	 * without gunzip, and files that do not get smaller, are sent as they are.
+	 *
+	 * @param gzipUpload True to compress uploads.
+	 */
+	public void setGzipUpload(boolean gzipUpload) {
+		this.gzipUpload = gzipUpload;
+	}
+
+	/**
+	 * Prefix each line of job output, e.g. with the container ID when several containers log to one listener.
+	 *
+	 * @param linePrefix Text prepended to each line; empty for none.
+	 */
+	public void setLinePrefix(String linePrefix) {
+		this.linePrefix = linePrefix == null ? "" : linePrefix;
+	}
+
+	public String getLinePrefix() {
+		return linePrefix;
+	}
+
+	/**
+	 * Choose how subsequent jobs detect a container or connection that has gone away without closing the
+	 * stream, so they fail instead of waiting for the job timeout.
+	 *
+	 * @param pingInterval Seconds between websocket pings; the job fails if a pong does not arrive before the
+	 *                     next ping. 0 disables pings.
+	 * @param idleCheck Seconds without output after which the container's state is checked through the API;
+	 *                  the job fails if it has stopped or been removed. 0 disables the check.
+	 */
+	public void setLiveness(int pingInterval, int idleCheck) {
+		this.pingInterval = Math.max(0, pingInterval);
+		this.idleCheck = Math.max(0, idleCheck);
+	}
+
+	/**
+	 * Record timings and stream sizes of subsequent jobs.
+	 *
+	 * @param metrics The metrics of the current node execution, or null.
+	 */
+	public void setMetrics(ExecutionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Also write each line of job output to a node's own file.
+	 *
+	 * @param outputSink The node's sink, or null to only log output.
+	 */
+	public void setOutputSink(NodeOutputSink outputSink) {
+		this.outputSink = outputSink;
+	}
+
+	/**
+	 * Limits the memory used to capture the output of commands such as {@link #thisReadFile}.
+	 *
+	 * @param memoryBytes Bytes kept in memory; the rest is written to a temporary file.
+	 * @param maxBytes Bytes after which the command is stopped and fails; 0 for no limit.
+	 */
+	public void setCaptureLimits(int memoryBytes, long maxBytes) {
+		this.captureMemoryBytes = memoryBytes;
+		this.captureMaxBytes = maxBytes;
+	}
+
 	/**
 	 * Runs the overall job step: sends output to a listener; saves PID and exit
-	 * status to a temporary file.
+	 * status to a temporary file and reports them at the end of the output.
 	 *
 	 * @param url The URL the listener should use to launch the job.
 	 * @param accessKey Rancher credentials AccessKey.
@@ -104,13 +340,14 @@ public class RancherWebSocketListener extends WebSocketListener {
 	 * @param command The command to run.
 	 * @param listener Log listener from Rundeck.
 	 * @param temp A unique temporary file for this job (".pid" will be appended to the file name)
-	 * @throws IOException When job fails.
+	 * @param timeout Maximum seconds the job may run; the socket is closed when it expires.
+	 * @return The exit status, or null if the job's output did not include it.
+	 * @throws IOException When job fails or times out.
 	 * @throws InterruptedException When job is interrupted.
 	 */
-	public static void runJob(String url, String accessKey, String secretKey, String[] command,
+	public static ExitStatus runJob(String url, String accessKey, String secretKey, String[] command,
 			ExecutionListener listener, String temp, int timeout) throws IOException, InterruptedException {
-		String[] cmd = remoteCommand(command, temp);
-		(new RancherWebSocketListener()).runJob(url, accessKey, secretKey, listener, cmd, timeout);
+		return (new RancherWebSocketListener()).runJob(url, accessKey, secretKey, listener, command, temp, timeout);
 	}
 
 	/**
@@ -118,25 +355,146 @@ public class RancherWebSocketListener extends WebSocketListener {
 	 *
 	 * @param command The command to run.
 	 * @param temp A unique temporary file for this job (".pid" will be appended to the file name)
+	 * @param marker Prefix for the exit status line written to STDOUT when the command ends.
+	 * @param nativeStderr Leave STDERR on its own stream instead of marking its lines.
 	 * @return The command vector to be sent to the remote server.
 	 */
-	private static String[] remoteCommand(String[] command, String temp) {
+	static String[] remoteCommand(String[] command, String temp, String marker, boolean nativeStderr) {
 		String file = temp + ".pid; ";
-		// Prefix STDERR lines with STDERR_TOKEN to decode in logging step.
 		String cmd = "( " + String.join(" ", command) + " )";
+		// The status goes to the PID file and, so it is known when the stream closes, to STDOUT.
+		String status = ";rc=$?;printf ' %s' $rc >>" + file + "printf '%s %s %s\\n' " + marker + " $$ $rc";
+		// Commands run under bash in both modes; only the marking of STDERR differs.
+		if (nativeStderr) {
+			return new String[]{ "bash", "-c", "printf $$ >>" + file + cmd + status };
+		}
+		// Prefix STDERR lines with STDERR_TOKEN to decode in logging step.
 		String sed = " 2> >(while IFS= read -r line || [ -n \"$line\" ]; do echo " + STDERR_TOKEN + "$line ; done)";
-		// Note that bash is required to support adding a prefix token to STDERR.
-		return new String[]{ "bash", "-c", "printf $$ >>" + file + cmd + sed + ";printf ' %s' $? >>" + file };
+		return new String[]{ "bash", "-c", "printf $$ >>" + file + cmd + sed + status };
+	}
+
+	/**
+	 * Constructs the line sent to a session's shell to run one command and report its exit status.
+	 *
+	 * The command's STDIN is closed so it cannot read the commands that follow. In token mode, STDERR is
+	 * marked through a pipe rather than a process substitution, so all of its lines are written before the
+	 * status.
+	 *
+	 * @param command The command to run.
+	 * @param marker Prefix for the exit status line written to STDOUT when the command ends.
+	 * @param nativeStderr Leave STDERR on its own stream instead of marking its lines.
+	 * @return The line for the shell (without its line feed).
+	 */
+	static String sessionCommand(String[] command, String marker, boolean nativeStderr) {
+		String cmd = "( " + String.join(" ", command) + " ) </dev/null";
+		String status = "printf '%s %s %s\\n' " + marker + " $$ $rc";
+		if (nativeStderr) {
+			return cmd + "; rc=$?; " + status;
+		}
+		String sed = "while IFS= read -r line || [ -n \"$line\" ]; do echo " + STDERR_TOKEN + "$line ; done";
+		return "{ " + cmd + " 2>&1 1>&3 3>&- | " + sed + "; rc=${PIPESTATUS[0]}; } 3>&1; " + status;
+	}
+
+	/**
+	 * Constructs the command that stops a job started by {@link #remoteCommand}. The wrapper's PID is read
+	 * from the PID file; if the file already has an exit status, the job has ended and nothing is signalled.
+	 *
+	 * @param pidFile The job's PID file.
+	 * @return The command vector to be sent to the remote server.
+	 */
+	static String[] killJobCommand(String pidFile) {
+		return new String[]{ "sh", "-c",
+				"set -- $(cat " + pidFile + " 2>/dev/null); [ $# -eq 1 ] || exit 0; " + signal("$1") };
+	}
+
+	/**
+	 * Constructs the command that stops a session's shell and the command running in it.
+	 *
+	 * @param pid PID of the session's shell.
+	 * @return The command vector to be sent to the remote server.
+	 */
+	static String[] killSessionCommand(String pid) {
+		return new String[]{ "sh", "-c", signal(pid) };
+	}
+
+	/**
+	 * Sends SIGTERM to a process group, or, if the process does not lead one (a command run by Rancher usually
+	 * does not), to the process and all of its descendants. These are found by reading each process's parent
+	 * from /proc, since slim images often lack pgrep, and pgrep -P only finds direct children.
+	 */
+	private static String signal(String pid) {
+		String descendants = "p=" + pid + "; all=; while [ -n \"$p\" ]; do all=\"$all $p\"; n=; "
+				+ "for f in /proc/[0-9]*/stat; do read -r l 2>/dev/null <\"$f\" || continue; set -- ${l##*)}; "
+				+ "case \" $p \" in *\" $2 \"*) f=${f%/stat}; n=\"$n ${f#/proc/}\";; esac; done; p=$n; done; ";
+		return "kill -TERM -- -" + pid + " 2>/dev/null || { " + descendants + "kill -TERM $all 2>/dev/null; }; exit 0";
+	}
+
+	/**
+	 * Runs a command that stops the processes of a killed job. Failures are logged, not thrown, so the job
+	 * still ends with its original error.
+	 *
+	 * @param command The kill command.
+	 */
+	private void stopRemote(String[] command) {
+		// The timeout also bounds the execute token request.
+		OkHttpClient killClient = baseClient().newBuilder().callTimeout(KILL_TIMEOUT_SECONDS, TimeUnit.SECONDS).build();
+		try (CaptureBuffer ignored = new CaptureBuffer()) {
+			new RancherWebSocketListener(killClient).run(url, accessKey, secretKey, ignored, command, KILL_TIMEOUT_SECONDS);
+		} catch (IOException | RuntimeException e) {
+			log(Constants.WARN_LEVEL, "Could not stop the remote process: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void onOpen(WebSocket webSocket, Response response) {
+		ExecutionMetrics current = jobMetrics;
+		if (current != null) {
+			current.time(ExecutionMetrics.PHASE_CONNECT, socketStart);
+		}
 	}
 
 	@Override
 	public void onMessage(WebSocket webSocket, String text) {
-		logDockerStream(Bytes.concat(nextHeader, Base64.getDecoder().decode(text)));
+		FrameBufferPool pool = FrameBufferPool.shared();
+		ByteBuffer message = pool.decodeBase64(text);
+		try {
+			received(webSocket, message);
+		} finally {
+			// Frames are delivered (and partial lines copied) before received() returns.
+			pool.release(message);
+		}
 	}
 
 	@Override
 	public void onMessage(WebSocket webSocket, ByteString bytes) {
-		logDockerStream(Bytes.concat(nextHeader, bytes.toByteArray()));
+		received(webSocket, bytes.asByteBuffer());
+	}
+
+	private void received(WebSocket webSocket, ByteBuffer message) {
+		lastFrameNanos = System.nanoTime();
+		ExecutionMetrics current = jobMetrics;
+		if (current != null) {
+			if (awaitingFirstByte) {
+				awaitingFirstByte = false;
+				current.record(ExecutionMetrics.PHASE_FIRST_BYTE, lastFrameNanos - socketStart);
+			}
+			current.addBytes(message.remaining());
+		}
+		try {
+			logDockerStream(message);
+		} catch (UncheckedIOException e) {
+			// The capture's temporary file could not be written.
+			completion.completeExceptionally(e.getCause());
+			webSocket.cancel();
+			return;
+		}
+		CaptureBuffer captured = capture;
+		if (captured != null && captured.isTruncated()) {
+			completion.completeExceptionally(new IOException("Output exceeded " + captured.getMaxBytes() + " bytes"));
+			webSocket.cancel();
+		}
 	}
 
 	@Override
@@ -147,18 +505,49 @@ public class RancherWebSocketListener extends WebSocketListener {
 
 	@Override
 	public void onClosed(WebSocket webSocket, int code, String reason) {
+		this.flushLines();
 		this.log(Constants.VERBOSE_LEVEL, reason);
+		this.closeBatcher();
+		this.failSession(new IOException("Shell session closed: " + reason));
+		if (completion != null) {
+			completion.complete(null);
+		}
 	}
 
 	@Override
 	public void onFailure(WebSocket webSocket, Throwable t, Response response) {
 		this.log(Constants.ERR_LEVEL, t.getMessage());
+		this.closeBatcher();
+		this.failSession(t);
+		if (completion != null) {
+			completion.completeExceptionally(t);
+		}
+	}
+
+	private void failSession(Throwable t) {
+		CompletableFuture<ExitStatus> pending = sessionStatus;
+		if (pending != null) {
+			pending.completeExceptionally(t);
+		}
 	}
 
-	public void thisRunJob(String url, String accessKey, String secretKey, String[] command,
+	/**
+	 * Runs the overall job step with this listener's transport.
+	 *
+	 * @param url The URL the listener should use to launch the job.
+	 * @param accessKey Rancher credentials AccessKey.
+	 * @param secretKey Rancher credentials SecretKey.
+	 * @param command The command to run.
+	 * @param listener Log listener from Rundeck.
+	 * @param temp A unique temporary file for this job (".pid" will be appended to the file name)
+	 * @param timeout Maximum seconds the job may run; the socket is closed when it expires.
+	 * @return The exit status, or null if the job's output did not include it (read the PID file instead).
+	 * @throws IOException When job fails or times out.
+	 * @throws InterruptedException When job is interrupted.
+	 */
+	public ExitStatus thisRunJob(String url, String accessKey, String secretKey, String[] command,
 						   ExecutionListener listener, String temp, int timeout) throws IOException, InterruptedException {
-		String[] cmd = remoteCommand(command, temp);
-		this.runJob(url, accessKey, secretKey, listener, cmd, timeout);
+		return this.runJob(url, accessKey, secretKey, listener, command, temp, timeout);
 	}
 
 	/**
@@ -173,10 +562,33 @@ public class RancherWebSocketListener extends WebSocketListener {
 	 */
 	public String thisGetFile(String url, String accessKey, String secretKey, String file)
 			throws IOException, InterruptedException {
+		try (CaptureBuffer contents = this.thisReadFile(url, accessKey, secretKey, file)) {
+			return contents.asString();
+		}
+	}
+
+	/**
+	 * Get contents of a file from server without holding more than the capture memory limit in memory.
+	 *
+	 * @param url The URL the listener should use to launch the job.
+	 * @param accessKey Rancher credentials AccessKey.
+	 * @param secretKey Rancher credentials SecretKey.
+	 * @param file The file to fetch/cat from the remote container.
+	 * @return The contents; close it to delete any temporary file.
+	 * @throws IOException When job fails or the file is larger than the capture limit.
+	 * @throws InterruptedException When job is interrupted.
+	 */
+	public CaptureBuffer thisReadFile(String url, String accessKey, String secretKey, String file)
+			throws IOException, InterruptedException {
 		String[] command = { "cat", file };
-		StringBuilder stringBuilder = new StringBuilder();
-		this.run(url, accessKey, secretKey, stringBuilder, command);
-		return stringBuilder.toString();
+		CaptureBuffer contents = new CaptureBuffer(captureMemoryBytes, captureMaxBytes);
+		try {
+			this.run(url, accessKey, secretKey, contents, command, COMMAND_TIMEOUT_SECONDS);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			contents.close();
+			throw e;
+		}
+		return contents;
 	}
 
 	/**
@@ -192,80 +604,283 @@ public class RancherWebSocketListener extends WebSocketListener {
 	 */
 	public void putFile(String url, String accessKey, String secretKey, File file, String destination)
 			throws IOException, InterruptedException {
-		(new RancherWebSocketListener()).put(url, accessKey, secretKey, file, destination);
+		RancherWebSocketListener uploader = new RancherWebSocketListener(transport);
+		uploader.setStdinUpload(stdinUpload);
+		uploader.setGzipUpload(gzipUpload);
+		uploader.put(url, accessKey, secretKey, file, destination);
 	}
 
 	/**
-	 * Runs a command and passes output back to an external listener.
-	 * Exit status is read after completion from the job's PID file in /tmp.
+	 * Runs a command and passes output back to an external listener, returning when its stream ends and
+	 * all output has been delivered. Lines are sent in batches by a {@link LogBatcher}. The exit status line
+	 * is removed from the output and returned; it is also saved in the job's PID file in /tmp.
 	 *
 	 * @param url The URL the listener should use to launch the job.
 	 * @param accessKey Rancher credentials AccessKey.
 	 * @param secretKey Rancher credentials SecretKey.
 	 * @param listener Log listener from Rundeck.
 	 * @param command The command to run.
-	 * @throws IOException When job fails.
+	 * @param temp A unique temporary file for this job (".pid" will be appended to the file name)
+	 * @param timeout Maximum seconds the job may run; the socket is closed when it expires.
+	 * @return The exit status, or null if the job's output did not include it.
+	 * @throws IOException When job fails or times out.
 	 * @throws InterruptedException When job is interrupted.
 	 */
-	private void runJob(String url, String accessKey, String secretKey, ExecutionListener listener, String[] command,
-			int timeout) throws IOException, InterruptedException {
-		client = new OkHttpClient.Builder().pingInterval(50, TimeUnit.SECONDS).callTimeout(0, TimeUnit.HOURS).build();
+	private ExitStatus runJob(String url, String accessKey, String secretKey, ExecutionListener listener,
+			String[] command, String temp, int timeout) throws IOException, InterruptedException {
+		client = baseClient().newBuilder().pingInterval(pingInterval, TimeUnit.SECONDS).callTimeout(0, TimeUnit.HOURS).build();
 
 		this.url = url;
+		this.containerUrl = idleCheck > 0 ? containerUrl(url) : null;
 		this.accessKey = accessKey;
 		this.secretKey = secretKey;
-		this.commandList = command;
+		this.exitMarker = EXIT_STATUS_TOKEN + UUID.randomUUID().toString().replace("-", "");
+		this.commandList = remoteCommand(command, temp, exitMarker, nativeStderr);
 		this.listener = listener;
-		this.nextHeader = new byte[0];
+		this.demuxer.reset();
+		this.stdoutLines.reset();
+		this.stderrLines.reset();
+		this.exitStatus = null;
 
 		// Even though we are passing data back to an external listener, we
 		// need to buffer the message stream so we can pick out lines that
 		// are part of STDERR.
 		output = new StringBuilder();
 
-		client.newWebSocket(this.buildRequest(true), this);
+		this.batcher = new LogBatcher(listener);
+		this.jobMetrics = metrics;
+		this.logDeliveryNanos = 0;
+		try {
+			long tokenStart = System.nanoTime();
+			Request request = this.buildRequest(true);
+			if (metrics != null) {
+				metrics.time(ExecutionMetrics.PHASE_TOKEN, tokenStart);
+			}
+			this.execute(request, timeout);
+		} catch (InterruptedException | InterruptedIOException e) {
+			// The job was killed or timed out; its socket is closed, but its processes are still running.
+			this.stopRemote(killJobCommand(temp + ".pid"));
+			throw e;
+		} finally {
+			long closeStart = System.nanoTime();
+			this.flushOutputSink();
+			this.closeBatcher();
+			this.batcher = null;
+			this.containerUrl = null;
+			this.jobMetrics = null;
+			if (metrics != null) {
+				metrics.record(ExecutionMetrics.PHASE_LOG_DELIVERY, logDeliveryNanos + System.nanoTime() - closeStart);
+				metrics.addFrames(demuxer.getFrames());
+			}
+		}
+		return exitStatus;
+	}
 
-		// Trigger shutdown of the dispatcher's executor so process exits cleanly.
-		client.dispatcher().executorService().shutdown();
-		// Any job will terminate after this time. Should be configurable?
-		client.dispatcher().executorService().awaitTermination(timeout, TimeUnit.SECONDS);
+	/**
+	 * Derives the container's API URL from its execute action URL.
+	 *
+	 * @param url E.g. "https://rancher.example.com/v2-beta/projects/1a10/containers/1i234/?action=execute".
+	 * @return E.g. "https://rancher.example.com/v2-beta/projects/1a10/containers/1i234".
+	 */
+	static String containerUrl(String url) {
+		return url.replaceFirst("/?\\?.*$", "");
 	}
 
 	/**
-	 * Runs a command, capturing output in a StringBuffer injected on invocation.
+	 * Opens a shell on a container that reads commands from its STDIN, for {@link #runInSession}. One
+	 * command is run to check that Rancher passes STDIN through.
+	 *
+	 * @param url The URL the listener should use to launch the shell.
+	 * @param accessKey Rancher credentials AccessKey.
+	 * @param secretKey Rancher credentials SecretKey.
+	 * @throws IOException When the shell cannot be started or does not run commands.
+	 * @throws InterruptedException When interrupted.
+	 */
+	public void openSession(String url, String accessKey, String secretKey) throws IOException, InterruptedException {
+		client = baseClient().newBuilder().pingInterval(pingInterval, TimeUnit.SECONDS).callTimeout(0, TimeUnit.HOURS).build();
+
+		this.url = url;
+		this.accessKey = accessKey;
+		this.secretKey = secretKey;
+		// Commands run under bash whether or not STDERR lines are marked.
+		this.commandList = new String[]{ "bash" };
+		this.listener = null;
+		this.output = new StringBuilder();
+		this.demuxer.reset();
+		this.completion = new CompletableFuture<>();
+
+		long tokenStart = System.nanoTime();
+		Request request = socketRequest(readToken(client.newCall(tokenRequest(commandList, true, true)).execute()));
+		if (metrics != null) {
+			metrics.time(ExecutionMetrics.PHASE_TOKEN, tokenStart);
+		}
+		this.jobMetrics = metrics;
+		this.socketStart = System.nanoTime();
+		this.session = RancherClientFactory.streamClient(client).newWebSocket(request, this);
+		ExitStatus status;
+		try {
+			status = runInSession(new String[]{ "true" }, null, COMMAND_TIMEOUT_SECONDS);
+		} catch (IOException e) {
+			closeSession();
+			throw new IOException("Shell session did not start: " + e.getMessage(), e);
+		}
+		if (!status.isSuccess()) {
+			closeSession();
+			throw new IOException("Shell session did not start: " + status);
+		}
+		sessionPid = status.getPid();
+	}
+
+	/**
+	 * Runs a command in the shell opened by {@link #openSession} and sends its output to a listener. Returns
+	 * when the command's exit status arrives, leaving the shell open for the next command.
+	 *
+	 * @param command The command to run.
+	 * @param listener Log listener from Rundeck, or null to discard the output.
+	 * @param timeout Maximum seconds the command may run; the session is closed when it expires.
+	 * @return The exit status.
+	 * @throws IOException When the session has closed or the command times out.
+	 * @throws InterruptedException When interrupted; the session is closed.
+	 */
+	public ExitStatus runInSession(String[] command, ExecutionListener listener, int timeout)
+			throws IOException, InterruptedException {
+		WebSocket shell = session;
+		if (shell == null || completion.isDone()) {
+			throw new IOException("Shell session is closed");
+		}
+		this.listener = listener;
+		this.output = new StringBuilder();
+		this.stdoutLines.reset();
+		this.stderrLines.reset();
+		this.exitStatus = null;
+		this.exitMarker = EXIT_STATUS_TOKEN + UUID.randomUUID().toString().replace("-", "");
+		this.batcher = listener == null ? null : new LogBatcher(listener);
+		this.jobMetrics = metrics;
+		this.logDeliveryNanos = 0;
+		long framesBefore = demuxer.getFrames();
+		CompletableFuture<ExitStatus> status = new CompletableFuture<>();
+		sessionStatus = status;
+		try {
+			String line = sessionCommand(command, exitMarker, nativeStderr) + "\n";
+			socketStart = System.nanoTime();
+			awaitingFirstByte = true;
+			if (!shell.send(Base64.getEncoder().encodeToString(line.getBytes(StandardCharsets.UTF_8)))) {
+				throw new IOException("Shell session is closed");
+			}
+			return timeout > 0 ? status.get(timeout, TimeUnit.SECONDS) : status.get();
+		} catch (TimeoutException e) {
+			shell.cancel();
+			session = null;
+			stopSession();
+			throw new InterruptedIOException("Command did not finish within " + timeout + " seconds");
+		} catch (InterruptedException e) {
+			shell.cancel();
+			session = null;
+			stopSession();
+			throw e;
+		} catch (ExecutionException e) {
+			session = null;
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+		} finally {
+			sessionStatus = null;
+			long closeStart = System.nanoTime();
+			this.flushOutputSink();
+			this.closeBatcher();
+			this.batcher = null;
+			this.jobMetrics = null;
+			// Stray output between commands is not sent to this command's listener.
+			this.listener = null;
+			if (metrics != null) {
+				metrics.record(ExecutionMetrics.PHASE_LOG_DELIVERY, logDeliveryNanos + System.nanoTime() - closeStart);
+				metrics.addFrames(demuxer.getFrames() - framesBefore);
+			}
+		}
+	}
+
+	/**
+	 * Stops the processes of a session whose command was killed or timed out.
+	 */
+	private void stopSession() {
+		if (sessionPid != null) {
+			stopRemote(killSessionCommand(sessionPid));
+		}
+	}
+
+	/**
+	 * @return True while the shell opened by {@link #openSession} can run commands.
+	 */
+	public boolean isSessionOpen() {
+		return session != null && completion != null && !completion.isDone();
+	}
+
+	/**
+	 * Asks the session's shell to exit and closes its web socket.
+	 */
+	public void closeSession() {
+		WebSocket shell = session;
+		session = null;
+		if (shell != null) {
+			shell.send(Base64.getEncoder().encodeToString("exit\n".getBytes(StandardCharsets.UTF_8)));
+			shell.close(1000, null);
+		}
+	}
+
+	/**
+	 * Delivers all batched output to the listener; later output is sent directly.
+	 */
+	private void closeBatcher() {
+		LogBatcher logBatcher = batcher;
+		if (logBatcher != null) {
+			logBatcher.close();
+		}
+	}
+
+	/**
+	 * Runs a command, capturing output in a buffer injected on invocation.
 	 * This is used to get the contents of the PID file when the job ends and
 	 * determine the exit status.
 	 *
 	 * @param url The URL the listener should use to launch the job.
 	 * @param accessKey Rancher credentials AccessKey.
 	 * @param secretKey Rancher credentials SecretKey.
-	 * @param output An output buffer used to accumulate results of the command.
+	 * @param capture A buffer used to accumulate results of the command.
 	 * @param command The command to run.
-	 * @throws IOException When job fails.
+	 * @param timeout Maximum seconds the command may run.
+	 * @throws IOException When job fails or its output exceeds the capture's hard cap.
 	 * @throws InterruptedException When job is interrupted.
 	 */
-	private void run(String url, String accessKey, String secretKey, StringBuilder output, String[] command)
-			throws IOException, InterruptedException {
-		client = new OkHttpClient.Builder().build();
+	private void run(String url, String accessKey, String secretKey, CaptureBuffer capture, String[] command,
+			int timeout) throws IOException, InterruptedException {
+		client = baseClient();
 
 		this.url = url;
 		this.accessKey = accessKey;
 		this.secretKey = secretKey;
 		this.commandList = command;
-		this.output = output;
-		this.nextHeader = new byte[0];
-
-		client.newWebSocket(this.buildRequest(true), this);
+		this.output = new StringBuilder();
+		this.capture = capture;
+		this.demuxer.reset();
+		this.stdoutLines.reset();
+		this.stderrLines.reset();
+		this.exitMarker = null;
 
-		// Trigger shutdown of the dispatcher's executor so process exits cleanly.
-		client.dispatcher().executorService().shutdown();
-		client.dispatcher().executorService().awaitTermination(30, TimeUnit.SECONDS);
+		try {
+			this.execute(this.buildRequest(true), timeout);
+		} finally {
+			this.capture = null;
+		}
 	}
 
 	/**
 	 * Put a file onto the server.
-	 * Neither STDIN nor STDOUT are attached. The file is sent as a payload with the
-	 * post command.
+	 *
+	 * The file is written to the STDIN of one command when the end point supports it. Otherwise neither
+	 * STDIN nor STDOUT are attached, and each chunk of the file is sent as a payload with its own post command.
+	 *
+	 * Either way, the file is read and Base64-encoded one chunk at a time as it is sent, so memory used does
+	 * not depend on the size of the file. A compressed upload is first written to a temporary file, whose
+	 * size the STDIN command needs to know.
 	 *
 	 * @param url The URL the listener should use to launch the job.
 	 * @param accessKey Rancher credentials AccessKey.
@@ -277,53 +892,481 @@ public class RancherWebSocketListener extends WebSocketListener {
 	 */
 	private void put(String url, String accessKey, String secretKey, File input, String file)
 			throws IOException, InterruptedException {
-		// Create a random UUID to use as a marker for a HEREDOC and as a temporary file
-		// name.
-		String marker = UUID.randomUUID().toString();
-
-		Base64.Encoder encoder = Base64.getEncoder();
-		String encoded = encoder.encodeToString(Files.readAllBytes(input.toPath()));
 		output = new StringBuilder();
 
 		this.url = url;
 		this.accessKey = accessKey;
 		this.secretKey = secretKey;
 
-		int encodedSize = encoded.length();
-		int chunkSize = 5000;
-		String redirection = ">";
-		for (int i = 0; i < encodedSize; i = i + chunkSize) {
-			String text = encoded.substring(i, Math.min(i + chunkSize, encodedSize));
+		// Fails before anything is sent if the file is missing.
+		long size = Files.size(input.toPath());
+		File compressed = gzipUpload ? gzip(input) : null;
+		if (compressed != null && !hasGunzip()) {
+			Files.deleteIfExists(compressed.toPath());
+			compressed = null;
+		}
+		try {
+			File upload = compressed == null ? input : compressed;
+			if (stdinUpload && stdinSupported()) {
+				putThroughStdin(upload, file, compressed != null, size);
+				return;
+			}
+
+			try (UploadCommands commands = new UploadCommands(upload, file, compressed != null)) {
+				this.runCommands(commands);
+			} catch (UncheckedIOException e) {
+				// The file could not be read.
+				throw e.getCause();
+			}
+		} finally {
+			if (compressed != null) {
+				Files.deleteIfExists(compressed.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the current Rancher end point passes STDIN through to commands. A definite answer is kept
+	 * for a while; if the probe gives none (e.g. it times out), this upload is sent in chunks and the next one
+	 * probes again.
+	 *
+	 * @return True if files can be uploaded through STDIN.
+	 * @throws InterruptedException When the probe is interrupted.
+	 */
+	private boolean stdinSupported() throws InterruptedException {
+		String endpoint = ExecutionGovernor.endpoint(url);
+		Boolean supported = STDIN.get(endpoint);
+		if (supported == null) {
+			supported = probeStdin();
+			if (supported != null) {
+				STDIN.put(endpoint, supported);
+			}
+			if (!Boolean.TRUE.equals(supported)) {
+				log(Constants.VERBOSE_LEVEL, "STDIN is not passed through by " + endpoint + "; uploading in chunks");
+			}
+		}
+		return Boolean.TRUE.equals(supported);
+	}
+
+	/**
+	 * Sends a few bytes through the STDIN of a command that counts them.
+	 *
+	 * @return True if the command received them all, false if it received none, which is what happens when
+	 * Rancher does not pass STDIN through, or null if the probe gave no clear answer.
+	 * @throws InterruptedException When the probe is interrupted.
+	 */
+	private Boolean probeStdin() throws InterruptedException {
+		try (CaptureBuffer count = new CaptureBuffer()) {
+			client = baseClient();
+			this.commandList = new String[]{ "sh", "-c", "head -c " + PROBE_BYTES.length + " | wc -c" };
+			this.demuxer.reset();
+			this.exitMarker = null;
+			this.capture = count;
+			try {
+				Request request = socketRequest(readToken(client.newCall(tokenRequest(commandList, true, true)).execute()));
+				this.execute(request, PROBE_TIMEOUT_SECONDS, Channels.newChannel(new ByteArrayInputStream(PROBE_BYTES)));
+			} finally {
+				this.capture = null;
+			}
+			String reply = count.asString().trim();
+			if (reply.equals(Integer.toString(PROBE_BYTES.length))) {
+				return true;
+			}
+			return reply.equals("0") ? false : null;
+		} catch (IOException e) {
+			// Timed out or failed: the command may still be waiting for STDIN, which proves nothing.
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether the current container has gunzip. The answer is kept for a while for later uploads; if
+	 * the check fails, this upload is not compressed and the next one checks again.
+	 *
+	 * @return True if uploads to the container can be compressed.
+	 * @throws InterruptedException When the check is interrupted.
+	 */
+	private boolean hasGunzip() throws InterruptedException {
+		String container = containerUrl(url);
+		Boolean found = GUNZIP.get(container);
+		if (found == null) {
+			try (CaptureBuffer path = new CaptureBuffer()) {
+				run(url, accessKey, secretKey, path, new String[]{ "sh", "-c", "command -v gunzip" }, PROBE_TIMEOUT_SECONDS);
+				found = !path.asString().trim().isEmpty();
+				GUNZIP.put(container, found);
+			} catch (IOException e) {
+				found = false;
+			}
+			if (!found) {
+				log(Constants.VERBOSE_LEVEL, "gunzip was not found; uploads to " + container + " are not compressed");
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Compresses a file for upload.
+	 *
+	 * @param input The file to compress.
+	 * @return A temporary file with the compressed contents, or null if they are not at least a tenth and
+	 * MIN_GZIP_SAVING_BYTES smaller than the file.
+	 * @throws IOException When the file cannot be read or the temporary file cannot be written.
+	 */
+	private static File gzip(File input) throws IOException {
+		File compressed = File.createTempFile("rancher-upload", ".gz");
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), STDIN_CHUNK_BYTES)) {
+			Files.copy(input.toPath(), out);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(compressed.toPath());
+			throw e;
+		}
+		long saved = input.length() - compressed.length();
+		if (saved < MIN_GZIP_SAVING_BYTES || saved < input.length() / 10) {
+			Files.deleteIfExists(compressed.toPath());
+			return null;
+		}
+		return compressed;
+	}
+
+	/**
+	 * Writes a file to the STDIN of a command that copies it to the destination.
+	 *
+	 * Rancher cannot close a command's STDIN, so the command reads exactly the size of the file with head,
+	 * then prints a line with the marker, its exit status and the size of the file it wrote. That line
+	 * acknowledges the upload once every byte has been written.
+	 *
+	 * @param input The file to put on the target container.
+	 * @param destination The name of the destination file on the target container.
+	 * @param gunzip True if the file is compressed and must be decompressed with gunzip.
+	 * @param expected The size the destination file should have.
+	 * @throws IOException When the file cannot be read, the destination cannot be written, or the upload is
+	 * not acknowledged in time with the whole file written.
+	 * @throws InterruptedException When the upload is interrupted.
+	 */
+	private void putThroughStdin(File input, String destination, boolean gunzip, long expected)
+			throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+				CaptureBuffer acknowledgement = new CaptureBuffer()) {
+			long size = channel.size();
+			String marker = UUID.randomUUID().toString();
+			client = baseClient();
+			this.commandList = new String[]{ "sh", "-c", "head -c " + size + (gunzip ? " | gunzip" : "") + " > " + destination
+					+ "; rc=$?; printf '%s %s %s\\n' " + marker + " $rc $(wc -c < " + destination + ")" };
+			this.demuxer.reset();
+			this.exitMarker = null;
+			this.capture = acknowledgement;
+			try {
+				Request request = socketRequest(readToken(client.newCall(tokenRequest(commandList, true, true)).execute()));
+				this.execute(request, COMMAND_TIMEOUT_SECONDS + (int) (size / UPLOAD_BYTES_PER_SECOND), channel);
+			} finally {
+				this.capture = null;
+			}
+
+			String reply = acknowledgement.asString();
+			int start = reply.indexOf(marker);
+			if (start < 0) {
+				throw new IOException("Upload of " + destination + " was not acknowledged");
+			}
+			String[] status = reply.substring(start + marker.length()).trim().split("\\s+");
+			if (!status[0].equals("0")) {
+				throw new IOException("Could not write " + destination + ": " + reply.substring(0, start).trim());
+			}
+			if (status.length < 2 || !status[1].equals(Long.toString(expected))) {
+				throw new IOException("Upload of " + destination + " is incomplete: "
+						+ (status.length < 2 ? "?" : status[1]) + " of " + expected + " bytes written");
+			}
+		}
+	}
+
+	/**
+	 * Runs commands on a remote container one after another, waiting for each to finish.
+	 *
+	 * Opening a command's web socket starts it, so the commands themselves cannot overlap. The execute token
+	 * for the next command is requested while the current one runs, which saves one round trip per command.
+	 *
+	 * @param commands The commands to run, in order; each is only built when its token is requested.
+	 * @throws IOException When a command fails.
+	 * @throws InterruptedException When a command is interrupted.
+	 */
+	private void runCommands(Iterator<String[]> commands) throws IOException, InterruptedException {
+		client = baseClient();
+		PendingToken next = commands.hasNext() ? new PendingToken(commands.next()) : null;
+		try {
+			while (next != null) {
+				PendingToken current = next;
+				JsonNode token = current.get();
+				next = commands.hasNext() ? new PendingToken(commands.next()) : null;
+				this.commandList = current.command;
+				this.execute(socketRequest(token), COMMAND_TIMEOUT_SECONDS, null);
+			}
+		} finally {
+			if (next != null) {
+				next.cancel();
+			}
+		}
+	}
+
+	/**
+	 * The commands that copy a file to a container: each cats a chunk of the Base64-encoded file to a
+	 * temporary file, and the last decodes (and, for a compressed file, decompresses) it to the destination.
+	 */
+	private static class UploadCommands implements Iterator<String[]>, Closeable {
+
+		// Bytes of the file per command; a multiple of 3, so the encoded chunks join without padding.
+		static final int CHUNK_BYTES = 3750;
+
+		// A random UUID, used as a marker for the HEREDOC and as the temporary file name.
+		private final String marker = UUID.randomUUID().toString();
+
+		private final String destination;
+
+		// Appended to the decode command to decompress the file; empty if it is not compressed.
+		private final String decompress;
+
+		private final FileChannel channel;
+
+		private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+
+		private final byte[] encoded = new byte[CHUNK_BYTES / 3 * 4];
+
+		private final Base64.Encoder encoder = Base64.getEncoder();
+
+		private String redirection = ">";
+
+		private boolean decoded;
+
+		UploadCommands(File input, String destination, boolean gunzip) throws IOException {
+			this.destination = destination;
+			this.decompress = gunzip ? " | gunzip" : "";
+			this.channel = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !decoded;
+		}
+
+		/**
+		 * @throws UncheckedIOException When the file cannot be read.
+		 */
+		@Override
+		public String[] next() {
+			if (decoded) {
+				throw new NoSuchElementException();
+			}
+			try {
+				chunk.clear();
+				while (chunk.hasRemaining() && channel.read(chunk) >= 0) {
+					// Keep reading until the chunk is full or the file ends.
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (chunk.position() == 0) {
+				decoded = true;
+				return new String[]{ "sh", "-c",
+						"base64 -d /tmp/" + marker + decompress + " > " + destination + "; rm /tmp/" + marker };
+			}
+			byte[] bytes = chunk.hasRemaining() ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+			int length = encoder.encode(bytes, encoded);
+			String text = new String(encoded, 0, length, StandardCharsets.US_ASCII);
 			// The command cats a HEREDOC to the desired file. Note the quote that ensures
 			// the contents are not interpreted as shell variables.
 			String[] command = { "sh", "-c",
 					"cat <<'" + marker + "'" + redirection + "/tmp/" + marker + "\n" + text + "\n" + marker };
-			this.runCommand(command, 50);
 			redirection = ">>";
+			return command;
 		}
 
-		String[] command = { "sh", "-c", "base64 -d /tmp/" + marker + " > " + file + "; rm /tmp/" + marker };
-		this.runCommand(command, 1);
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
 	}
 
 	/**
-	 * Runs a command on a remote container.
+	 * Opens the web socket and waits until the remote command's stream ends. On timeout or interrupt the
+	 * socket is cancelled so no thread is left waiting on it.
 	 *
-	 * @param command The command to run.
-	 * @param timeout Time to wait before closing unresponsive connections.
-	 * @throws IOException When job fails.
-	 * @throws InterruptedException When job is interrupted.
+	 * While a job is quiet, its container's state is checked every idleCheck seconds, and the socket is
+	 * cancelled if the container has stopped or been removed.
+	 *
+	 * @param request The web socket request.
+	 * @param timeout Seconds to wait for the command to finish; 0 or less waits indefinitely.
+	 * @throws IOException When the socket fails or the command does not finish in time.
+	 * @throws InterruptedException When the thread is interrupted.
 	 */
-	private void runCommand(String[] command, int timeout) throws IOException, InterruptedException {
-		client = new OkHttpClient.Builder().build();
-		this.commandList = command;
-		client.newWebSocket(this.buildRequest(false), this);
-		client.dispatcher().executorService().shutdown();
-		if (timeout > 0) {
-			client.dispatcher().executorService().awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	private void execute(Request request, int timeout) throws IOException, InterruptedException {
+		execute(request, timeout, null);
+	}
+
+	/**
+	 * Opens the web socket, sends a file to the command's STDIN, and waits until its stream ends.
+	 *
+	 * @param request The web socket request; the command must have STDIN attached if stdin is not null.
+	 * @param timeout Seconds to wait for the command to finish; 0 or less waits indefinitely.
+	 * @param stdin The file to send, or null.
+	 * @throws IOException When the socket fails, the file cannot be read, or the command does not finish in time.
+	 * @throws InterruptedException When the thread is interrupted.
+	 */
+	private void execute(Request request, int timeout, ReadableByteChannel stdin) throws IOException, InterruptedException {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		completion = done;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+		long idleNanos = TimeUnit.SECONDS.toNanos(idleCheck);
+		boolean checkContainer = containerUrl != null;
+		lastFrameNanos = System.nanoTime();
+		socketStart = lastFrameNanos;
+		awaitingFirstByte = true;
+		WebSocket webSocket = RancherClientFactory.streamClient(client).newWebSocket(request, this);
+		try {
+			if (stdin != null) {
+				sendStdin(webSocket, stdin, done, deadline, timeout);
+			}
+			while (true) {
+				long now = System.nanoTime();
+				if (timeout > 0 && now - deadline >= 0) {
+					webSocket.cancel();
+					throw new InterruptedIOException("Command did not finish within " + timeout + " seconds");
+				}
+				if (checkContainer && now - lastFrameNanos >= idleNanos) {
+					// Quiet for a while: make sure the container is still there to finish the command.
+					lastFrameNanos = now;
+					String state = containerState();
+					if (state != null && DEAD_STATES.contains(state)) {
+						webSocket.cancel();
+						throw new IOException("Container " + containerUrl + " is " + state);
+					}
+				}
+				long wait = timeout > 0 ? deadline - now : Long.MAX_VALUE;
+				if (checkContainer) {
+					wait = Math.min(wait, lastFrameNanos + idleNanos - now);
+				}
+				try {
+					done.get(wait, TimeUnit.NANOSECONDS);
+					return;
+				} catch (TimeoutException e) {
+					// Check the deadline and the container again.
+				}
+			}
+		} catch (InterruptedException e) {
+			webSocket.cancel();
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Sends a file to a command's STDIN as Base64 text messages, waiting whenever the socket's send queue is
+	 * full so that only a bounded part of the file is in memory. Stops early if the socket closes.
+	 *
+	 * @param webSocket The command's web socket.
+	 * @param stdin The file to send.
+	 * @param done Completed when the socket closes or fails.
+	 * @param deadline When the command must be finished, from System.nanoTime().
+	 * @param timeout Seconds the command may run; 0 or less if the deadline does not apply.
+	 * @throws IOException When the file cannot be read or the deadline passes.
+	 * @throws InterruptedException When the thread is interrupted.
+	 */
+	private static void sendStdin(WebSocket webSocket, ReadableByteChannel stdin, CompletableFuture<Void> done, long deadline,
+			int timeout) throws IOException, InterruptedException {
+		ByteBuffer chunk = ByteBuffer.allocate(STDIN_CHUNK_BYTES);
+		byte[] encoded = new byte[STDIN_CHUNK_BYTES / 3 * 4];
+		Base64.Encoder encoder = Base64.getEncoder();
+		while (!done.isDone()) {
+			chunk.clear();
+			while (chunk.hasRemaining() && stdin.read(chunk) >= 0) {
+				// Keep reading until the chunk is full or the file ends.
+			}
+			if (chunk.position() == 0) {
+				return;
+			}
+			while (webSocket.queueSize() > MAX_QUEUED_BYTES && !done.isDone()) {
+				if (timeout > 0 && System.nanoTime() - deadline >= 0) {
+					webSocket.cancel();
+					throw new InterruptedIOException("Command did not finish within " + timeout + " seconds");
+				}
+				TimeUnit.MILLISECONDS.sleep(5);
+			}
+			byte[] bytes = chunk.hasRemaining() ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+			int length = encoder.encode(bytes, encoded);
+			if (!webSocket.send(new String(encoded, 0, length, StandardCharsets.US_ASCII))) {
+				// The socket is closing; the command's result says why.
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads the state of the container running the current job.
+	 *
+	 * @return Its Rancher state (e.g. "running"), "removed" if the API no longer knows it, or null if the
+	 * state could not be read.
+	 */
+	private String containerState() {
+		try {
+			JsonNode container = readContainer(containerUrl, accessKey, secretKey);
+			if (container == null) {
+				return "removed";
+			}
+			return container.hasNonNull("state") ? container.path("state").asText() : null;
+		} catch (IOException e) {
+			// The API is unreachable too; leave it to the pings and the timeout.
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the ID of the Rancher host a container runs on.
+	 *
+	 * @param url The container's execute URL.
+	 * @param accessKey Rancher credentials AccessKey.
+	 * @param secretKey Rancher credentials SecretKey.
+	 * @return The host ID (e.g. "1h3"), or null if it could not be read.
+	 */
+	public String thisGetHostId(String url, String accessKey, String secretKey) {
+		try {
+			JsonNode container = readContainer(containerUrl(url), accessKey, secretKey);
+			return container != null && container.hasNonNull("hostId") ? container.path("hostId").asText() : null;
+		} catch (IOException e) {
+			return null;
 		}
 	}
 
+	/**
+	 * Reads a container resource from the API.
+	 *
+	 * @param containerUrl The container's API URL.
+	 * @param accessKey Rancher credentials AccessKey.
+	 * @param secretKey Rancher credentials SecretKey.
+	 * @return The container, or null if the API no longer knows it.
+	 * @throws IOException When the request fails or returns another error.
+	 */
+	private JsonNode readContainer(String containerUrl, String accessKey, String secretKey) throws IOException {
+		Request request = new Request.Builder().url(containerUrl)
+				.addHeader("Authorization", Credentials.basic(accessKey, secretKey)).build();
+		try (Response response = baseClient().newCall(request).execute()) {
+			if (response.code() == 404) {
+				return null;
+			} else if (!response.isSuccessful() || response.body() == null) {
+				throw new IOException("API get failed: " + response.message());
+			}
+			return new ObjectMapper().readTree(response.body().string());
+		}
+	}
+
+	/**
+	 * Gets the client for this listener's API calls. Command streams use its settings and connection pool,
+	 * but not its dispatcher, so its max-requests-per-host setting does not limit concurrent commands.
+	 *
+	 * @return The transport, or the shared default client.
+	 */
+	private OkHttpClient baseClient() {
+		return transport == null ? RancherClientFactory.getClient() : transport;
+	}
+
 	/**
 	 * Builds the web socket request.
 	 *
@@ -332,7 +1375,10 @@ public class RancherWebSocketListener extends WebSocketListener {
 	 * @throws IOException When connection to the container fails.
 	 */
 	private Request buildRequest(boolean attachStdout) throws IOException {
-		JsonNode token = this.getToken(attachStdout);
+		return socketRequest(this.getToken(attachStdout));
+	}
+
+	private static Request socketRequest(JsonNode token) {
 		String path = token.path("url").asText() + "?token=" + token.path("token").asText();
 		return new Request.Builder().url(path).build();
 	}
@@ -345,39 +1391,57 @@ public class RancherWebSocketListener extends WebSocketListener {
 	 * @throws IOException When connection to the container fails.
 	 */
 	private JsonNode getToken(boolean attachStdout) throws IOException {
-		HttpUrl.Builder urlBuilder = Objects.requireNonNull(HttpUrl.parse(url)).newBuilder();
-		String path = urlBuilder.build().toString();
-		String content = this.apiData(attachStdout);
 		try {
-			RequestBody body = RequestBody.create(MediaType.parse("application/json"), content);
-			Request request = new Request.Builder().url(path).post(body)
-					.addHeader("Authorization", Credentials.basic(accessKey, secretKey)).build();
-			Response response = client.newCall(request).execute();
-			ObjectMapper mapper = new ObjectMapper();
-			if (response.body() != null) {
-				return mapper.readTree(response.body().string());
-			} else {
-				throw new IOException("WebSocket response was null");
-			}
+			return readToken(client.newCall(tokenRequest(commandList, false, attachStdout)).execute());
 		} catch (IOException e) {
 			log(ERR_LEVEL, e.getMessage());
 			throw e;
 		}
 	}
 
+	/**
+	 * Builds the execute request that returns a web socket token for a command.
+	 *
+	 * @param command The command to run.
+	 * @param attachStdin Should Rancher pass web socket messages to the command's StdIn?
+	 * @param attachStdout Should Rancher attach a TTY to StdOut?
+	 * @return The request.
+	 * @throws JsonProcessingException When JSON is invalid.
+	 */
+	private Request tokenRequest(String[] command, boolean attachStdin, boolean attachStdout)
+			throws JsonProcessingException {
+		HttpUrl.Builder urlBuilder = Objects.requireNonNull(HttpUrl.parse(url)).newBuilder();
+		String path = urlBuilder.build().toString();
+		RequestBody body = RequestBody.create(MediaType.parse("application/json"), apiData(command, attachStdin, attachStdout));
+		return new Request.Builder().url(path).post(body)
+				.addHeader("Authorization", Credentials.basic(accessKey, secretKey)).build();
+	}
+
+	private static JsonNode readToken(Response response) throws IOException {
+		try (ResponseBody body = response.body()) {
+			if (body == null) {
+				throw new IOException("WebSocket response was null");
+			}
+			return new ObjectMapper().readTree(body.string());
+		}
+	}
+
 	/**
 	 * Builds JSON string of API data.
 	 *
+	 * @param commandList The command to run.
+	 * @param attachStdin Should Rancher pass web socket messages to the command's StdIn?
 	 * @param attachStdout Should Rancher attach a TTY to StdOut?
 	 * @return API Token to use in rancher connections.
 	 * @throws JsonMappingException When JSON is invalid.
 	 * @throws JsonProcessingException When JSON is invalid.
 	 */
-	private String apiData(boolean attachStdout) throws JsonProcessingException {
+	private static String apiData(String[] commandList, boolean attachStdin, boolean attachStdout)
+			throws JsonProcessingException {
 		ObjectMapper mapper = new ObjectMapper();
 		JsonNode root = mapper.readTree("{}");
 		((ObjectNode) root).put("tty", false);
-		((ObjectNode) root).put("attachStdin", false);
+		((ObjectNode) root).put("attachStdin", attachStdin);
 		((ObjectNode) root).put("attachStdout", attachStdout);
 		ArrayNode command = ((ObjectNode) root).putArray("command");
 		for (String atom : commandList) {
@@ -386,31 +1450,75 @@ public class RancherWebSocketListener extends WebSocketListener {
 		return root.toString();
 	}
 
+	/**
+	 * An execute token requested ahead of the command that will use it.
+	 */
+	private class PendingToken implements Callback {
+		private final CompletableFuture<JsonNode> token = new CompletableFuture<>();
+		private final Call call;
+		final String[] command;
+
+		PendingToken(String[] command) throws IOException {
+			this.command = command;
+			call = client.newCall(tokenRequest(command, false, false));
+			call.enqueue(this);
+		}
+
+		@Override
+		public void onFailure(Call call, IOException e) {
+			token.completeExceptionally(e);
+		}
+
+		@Override
+		public void onResponse(Call call, Response response) {
+			try {
+				token.complete(readToken(response));
+			} catch (IOException e) {
+				token.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Waits for the token, for at most COMMAND_TIMEOUT_SECONDS; the request is cancelled if it takes longer.
+		 */
+		JsonNode get() throws IOException, InterruptedException {
+			try {
+				return token.get(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				call.cancel();
+				throw new InterruptedIOException("No execute token within " + COMMAND_TIMEOUT_SECONDS + " seconds");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+			} catch (InterruptedException e) {
+				call.cancel();
+				throw e;
+			}
+		}
+
+		void cancel() {
+			call.cancel();
+		}
+	}
+
 	/**
 	 * Logs a Docker stream passed through Rancher.
 	 *
 	 * @param bytes A byte array to send to RunDeck with its log level.
 	 */
 	public void logDockerStream(byte[] bytes) {
-		LogMessage message;
-		BufferedReader stringReader;
-		try (MessageReader reader = new MessageReader(ByteSource.wrap(bytes).openStream())) {
-			while ((message = reader.nextMessage()) != null) {
-				// If logging to RunDeck, we send lines beginning with STDERR_TOK to ERR_LEVEL.
-				// To do that, we make a BufferedReader and process it line-by-line in log function.
-				String nextMessage = new String(message.content.array(), StandardCharsets.UTF_8);
-				if (null != listener) {
-					stringReader = new BufferedReader(new StringReader(nextMessage));
-					log(stringReader);
-					stringReader.close();
-				} else {
-					output.append(nextMessage);
-				}
-				nextHeader = reader.nextHeader();
-			}
-		} catch (IOException e) {
-			log(ERR_LEVEL, e.getMessage());
-		}
+		logDockerStream(ByteBuffer.wrap(bytes));
+		// The bytes are the whole stream, so a last line without a line feed is complete.
+		flushLines();
+	}
+
+	/**
+	 * Logs the next message of a Docker stream passed through Rancher.
+	 *
+	 * @param message The message; frames may continue from the previous message or into the next one.
+	 */
+	private void logDockerStream(ByteBuffer message) {
+		demuxer.feed(message, this::logFrame);
 		if (output.length() > 0 && null != listener) {
 			log(currentOutputChannel, output.toString());
 			output = new StringBuilder();
@@ -418,26 +1526,112 @@ public class RancherWebSocketListener extends WebSocketListener {
 	}
 
 	/**
-	 * Read a Buffer line by line and send lines prefixed by STDERR_TOK to the
-	 * WARN_LEVEL channel of RunDeck's console.
+	 * Logs the payload of one Docker frame (or the part of it in the current message). Characters and
+	 * lines that continue in the next frame are held until they are complete.
 	 *
-	 * @param stringReader A buffer of text to be sent to the logger.
-	 * @throws IOException when reading buffer fails.
+	 * @param stream The Docker stream the frame belongs to.
+	 * @param payload The frame payload.
 	 */
-	private void log(BufferedReader stringReader) throws IOException {
-		String line;
-		while ((line = stringReader.readLine()) != null) {
-			if (output.length() > 0) {
-				log(currentOutputChannel, output.toString());
-				output = new StringBuilder();
+	private void logFrame(Stream stream, ByteBuffer payload) {
+		CaptureBuffer current = capture;
+		if (null != current) {
+			current.write(payload);
+		} else if (null == listener && null == sessionStatus) {
+			output.append(StandardCharsets.UTF_8.decode(payload));
+		} else if (stream == Stream.STDERR) {
+			stderrLines.feed(payload, this::logStderrLine);
+		} else {
+			stdoutLines.feed(payload, this::logStdoutLine);
+		}
+	}
+
+	/**
+	 * Logs the last line of each stream when it did not end with a line feed.
+	 */
+	private void flushLines() {
+		if (null != listener) {
+			stdoutLines.flush(this::logStdoutLine);
+			stderrLines.flush(this::logStderrLine);
+		}
+	}
+
+	/**
+	 * Logs a line from Docker's STDERR stream.
+	 *
+	 * @param line The line, without its terminator.
+	 */
+	private void logStderrLine(String line) {
+		logLine(Constants.WARN_LEVEL, line);
+	}
+
+	/**
+	 * Logs a line from Docker's STDOUT stream, after removing the exit status written by the job wrapper.
+	 * Unless STDERR is native, lines prefixed by STDERR_TOK are sent to the WARN_LEVEL channel of RunDeck's
+	 * console.
+	 *
+	 * @param line The line, without its terminator.
+	 */
+	private void logStdoutLine(String line) {
+		CompletableFuture<ExitStatus> pending = sessionStatus;
+		int status = exitMarker == null ? -1 : line.indexOf(exitMarker);
+		if (status >= 0) {
+			// Output that did not end in a newline shares the line with the status.
+			exitStatus = ExitStatus.parse(line.substring(status + exitMarker.length()));
+			line = line.substring(0, status);
+		}
+		if (status < 0 || !line.isEmpty()) {
+			logOutputLine(line);
+		}
+		if (status >= 0 && pending != null) {
+			// In a session, the status ends the command.
+			pending.complete(exitStatus);
+		}
+	}
+
+	private void logOutputLine(String line) {
+		if (nativeStderr) {
+			logLine(Constants.INFO_LEVEL, line);
+		} else if (line.startsWith(STDERR_TOKEN)) {
+			logLine(Constants.WARN_LEVEL, line.substring(STDERR_TOKEN_LENGTH));
+		} else if (line.contains(STDERR_TOKEN)) {
+			logLine(Constants.INFO_LEVEL, line.substring(0, line.indexOf(STDERR_TOKEN)));
+			logLine(Constants.WARN_LEVEL, line.substring(line.indexOf(STDERR_TOKEN) + STDERR_TOKEN_LENGTH));
+		} else {
+			logLine(Constants.INFO_LEVEL, line);
+		}
+	}
+
+	/**
+	 * Logs a line of the command's output, and writes it to the node's output file if there is one.
+	 *
+	 * @param level Log level.
+	 * @param line The line, without its terminator.
+	 */
+	private void logLine(int level, String line) {
+		NodeOutputSink sink = outputSink;
+		if (null != sink) {
+			try {
+				sink.write(level, linePrefix + line);
+			} catch (IOException e) {
+				// Stop writing the file, but keep logging.
+				outputSink = null;
+				log(Constants.WARN_LEVEL, "Could not write " + sink.getPath() + ": " + e.getMessage());
 			}
-			if (line.startsWith(STDERR_TOKEN)) {
-				log(Constants.WARN_LEVEL, line.substring(STDERR_TOKEN_LENGTH));
-			} else if (line.contains(STDERR_TOKEN)) {
-				log(Constants.INFO_LEVEL, line.substring(0, line.indexOf(STDERR_TOKEN)));
-				log(Constants.WARN_LEVEL, line.substring(line.indexOf(STDERR_TOKEN) + STDERR_TOKEN_LENGTH));
-			} else {
-				log(Constants.INFO_LEVEL, line);
+		}
+		log(level, line);
+	}
+
+	/**
+	 * Writes the lines held by the node's output file, which is closed until the next command.
+	 */
+	private void flushOutputSink() {
+		NodeOutputSink sink = outputSink;
+		if (null != sink) {
+			try {
+				sink.flush();
+			} catch (IOException e) {
+				outputSink = null;
+				log(Constants.WARN_LEVEL, "Could not write " + sink.getPath() + ": " + e.getMessage());
 			}
 		}
 	}
@@ -455,9 +1649,20 @@ public class RancherWebSocketListener extends WebSocketListener {
 			output = new StringBuilder();
 		}
 		currentOutputChannel = level;
-		if (null != listener) {
-			listener.log(level, message);
-		} else {
+		if (!linePrefix.isEmpty()) {
+			message = linePrefix + message;
+		}
+		LogBatcher logBatcher = batcher;
+		if (null != logBatcher) {
+			long start = System.nanoTime();
+			logBatcher.log(level, message);
+			logDeliveryNanos += System.nanoTime() - start;
+		} else if (null != listener) {
+			// Containers of a service may share one listener.
+			synchronized (listener) {
+				listener.log(level, message);
+			}
+		} else if (null == sessionStatus && null == capture) {
 			output.append(message);
 		}
 	}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020 BioRAFT, Inc. (http://bioraft.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shell kept open on a container so that consecutive steps of a Rundeck execution can run in it.
+ *
+ * Each command is written to the shell's STDIN, so after the first step a command costs one websocket
+ * message instead of an execute token, a handshake and a new process. Sessions are kept in a JVM-wide
+ * registry, keyed by execution and container. Rundeck does not tell node executors when an execution ends,
+ * so a session is closed once it has been idle for its idle timeout, when a step of another execution
+ * arrives for its container while it is idle, or when a command in it fails to report a status.
+ */
+public class ShellSession implements Closeable {
+
+    /**
+     * Opens the shell for a new session.
+     */
+    @FunctionalInterface
+    public interface Opener {
+        RancherWebSocketListener open() throws IOException, InterruptedException;
+    }
+
+    public static final int DEFAULT_IDLE_SECONDS = 10;
+
+    // How often idle sessions are looked for.
+    private static final long REAP_INTERVAL_SECONDS = 5;
+
+    private static final Map<String, ShellSession> sessions = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rancher-session-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        reaper.scheduleWithFixedDelay(ShellSession::closeIdle, REAP_INTERVAL_SECONDS, REAP_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    private final String key;
+
+    private final String execution;
+
+    private final String container;
+
+    private final RancherWebSocketListener shell;
+
+    private final long idleNanos;
+
+    // Serializes commands; the session's own monitor only guards the fields below, so checking for idle
+    // sessions never waits for a command.
+    private final Object runLock = new Object();
+
+    private long lastUsed = System.nanoTime();
+
+    private boolean busy;
+
+    private ShellSession(String execution, String container, RancherWebSocketListener shell, int idleSeconds) {
+        this.key = execution + " " + container;
+        this.execution = execution;
+        this.container = container;
+        this.shell = shell;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+    }
+
+    /**
+     * Gets the open session of an execution on a container, or opens one. Idle sessions of other executions on
+     * the container are closed, since their executions have most likely ended.
+     *
+     * @param execution The Rundeck execution ID.
+     * @param container The container's execute URL.
+     * @param idleSeconds Seconds without a command after which a new session is closed.
+     * @param opener Opens the shell if there is no open session.
+     * @return The session.
+     * @throws IOException When the shell cannot be opened.
+     * @throws InterruptedException When interrupted.
+     */
+    public static ShellSession acquire(String execution, String container, int idleSeconds, Opener opener)
+            throws IOException, InterruptedException {
+        closeSuperseded(execution, container);
+        String key = execution + " " + container;
+        ShellSession existing = sessions.get(key);
+        if (existing != null) {
+            synchronized (existing) {
+                if (existing.shell.isSessionOpen()) {
+                    // Keeps the reaper from closing it before it is used.
+                    existing.lastUsed = System.nanoTime();
+                    return existing;
+                }
+            }
+            sessions.remove(key, existing);
+        }
+        ShellSession opened = new ShellSession(execution, container, opener.open(), idleSeconds);
+        ShellSession raced = sessions.putIfAbsent(key, opened);
+        if (raced != null) {
+            opened.close();
+            return acquire(execution, container, idleSeconds, opener);
+        }
+        return opened;
+    }
+
+    /**
+     * @return The number of sessions in the registry.
+     */
+    public static int count() {
+        return sessions.size();
+    }
+
+    /**
+     * Closes the idle sessions that other executions have on a container.
+     */
+    private static void closeSuperseded(String execution, String container) {
+        for (ShellSession session : sessions.values()) {
+            if (session.container.equals(container) && !session.execution.equals(execution)) {
+                synchronized (session) {
+                    if (!session.busy) {
+                        session.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every session that has been idle for its idle timeout.
+     */
+    static void closeIdle() {
+        long now = System.nanoTime();
+        for (ShellSession session : sessions.values()) {
+            synchronized (session) {
+                if (!session.busy && now - session.lastUsed >= session.idleNanos) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every session.
+     */
+    public static void closeAll() {
+        for (ShellSession session : sessions.values()) {
+            session.close();
+        }
+    }
+
+    /**
+     * Runs a command in the session. If it fails to report a status (timeout, interrupt, or lost connection)
+     * the session is closed, since the shell's state is unknown.
+     *
+     * @param command The command to run.
+     * @param listener Log listener from Rundeck.
+     * @param metrics Metrics of the current node execution, or null.
+     * @param timeout Maximum seconds the command may run.
+     * @return The exit status.
+     * @throws IOException When the command times out or the session is lost.
+     * @throws InterruptedException When interrupted.
+     */
+    public ExitStatus run(String[] command, ExecutionListener listener, ExecutionMetrics metrics, int timeout)
+            throws IOException, InterruptedException {
+        synchronized (runLock) {
+            synchronized (this) {
+                busy = true;
+            }
+            try {
+                shell.setMetrics(metrics);
+                return shell.runInSession(command, listener, timeout);
+            } catch (IOException | InterruptedException e) {
+                close();
+                throw e;
+            } finally {
+                synchronized (this) {
+                    busy = false;
+                    lastUsed = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        sessions.remove(key, this);
+        shell.closeSession();
+    }
+}
@@ -2,14 +2,44 @@ package com.bioraft.rundeck.rancher;
 
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
 import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import com.dtolabs.rundeck.core.storage.StorageTree;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Storage {
 
+    // Secrets are cached in memory only, briefly, so one job does not re-read them for every node.
+    public static final long DEFAULT_CACHE_TTL_MILLIS = 30000;
+
+    // Longest wait for another caller's read of the same secret before reading it directly.
+    public static final long DEFAULT_SHARED_READ_TIMEOUT_MILLIS = 10000;
+
+    private static final Map<CacheKey, CachedValue> cache = new ConcurrentHashMap<>();
+
+    // Removes each value when it expires, so secrets do not stay in memory until the next read.
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rancher-storage-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private ExecutionContext executionContext;
 
+    private long cacheTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
+
+    private long sharedReadTimeoutMillis = DEFAULT_SHARED_READ_TIMEOUT_MILLIS;
+
     public Storage() {
     }
 
@@ -21,9 +51,32 @@ public class Storage {
         this.executionContext = executionContext;
     }
 
+    /**
+     * Set how long values read by this instance stay cached.
+     *
+     * @param cacheTtlMillis Time to live in milliseconds; 0 disables caching.
+     */
+    public void setCacheTtl(long cacheTtlMillis) {
+        this.cacheTtlMillis = Math.max(0, cacheTtlMillis);
+    }
+
+    /**
+     * Set how long to wait for another caller's read of the same value before reading it directly.
+     *
+     * @param sharedReadTimeoutMillis Timeout in milliseconds.
+     */
+    public void setSharedReadTimeout(long sharedReadTimeoutMillis) {
+        this.sharedReadTimeoutMillis = sharedReadTimeoutMillis;
+    }
+
     /**
      * Get a (secret) value from password storage.
      *
+     * Values are cached for a short time, keyed by storage path, project, and the (authorization-scoped)
+     * storage tree of the execution, so a user never sees a cached value read through someone else's tree.
+     * Concurrent callers for the same key wait for a single read, but only for a while: if it hangs, each
+     * reads the value itself, so one stuck read does not stall every node thread.
+     *
      * @param passwordStoragePath The path to look up in storage.
      * @return The requested secret or password.
      * @throws IOException When there is an IO Exception writing to stream.
@@ -35,10 +88,137 @@ public class Storage {
         if (null == passwordStoragePath) {
             throw new IOException("Storage path is not defined.");
         }
-        ResourceMeta contents = executionContext.getStorageTree().getResource(passwordStoragePath).getContents();
+        StorageTree storageTree = executionContext.getStorageTree();
+        if (cacheTtlMillis == 0) {
+            return read(storageTree, passwordStoragePath);
+        }
+
+        CacheKey key = new CacheKey(storageTree, executionContext.getFrameworkProject(), passwordStoragePath);
+        CachedValue fresh = new CachedValue();
+        CachedValue existing;
+        while ((existing = cache.putIfAbsent(key, fresh)) != null) {
+            if (!existing.isExpired()) {
+                String value = existing.await(sharedReadTimeoutMillis);
+                // Null if the other read is taking too long; this one is then not cached.
+                return value == null ? read(storageTree, passwordStoragePath) : value;
+            }
+            cache.remove(key, existing);
+        }
+
+        try {
+            String value = read(storageTree, passwordStoragePath);
+            fresh.complete(value, cacheTtlMillis);
+            sweeper.schedule(() -> cache.remove(key, fresh), cacheTtlMillis, TimeUnit.MILLISECONDS);
+            return value;
+        } catch (IOException | RuntimeException e) {
+            cache.remove(key, fresh);
+            fresh.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop cached values for a storage path in every project, e.g. after a key is rotated.
+     *
+     * @param passwordStoragePath The path to forget.
+     */
+    public static void invalidate(String passwordStoragePath) {
+        cache.keySet().removeIf(key -> key.path.equals(passwordStoragePath));
+    }
+
+    /**
+     * Drop all cached values.
+     */
+    public static void invalidateAll() {
+        cache.clear();
+    }
+
+    static int cachedCount() {
+        return cache.size();
+    }
+
+    private static String read(StorageTree storageTree, String passwordStoragePath) throws IOException {
+        ResourceMeta contents = storageTree.getResource(passwordStoragePath).getContents();
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         contents.writeContent(byteArrayOutputStream);
         return byteArrayOutputStream.toString();
     }
 
+    private static class CacheKey {
+        private final StorageTree storageTree;
+        private final String project;
+        private final String path;
+
+        CacheKey(StorageTree storageTree, String project, String path) {
+            this.storageTree = storageTree;
+            this.project = project;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return storageTree == other.storageTree && Objects.equals(project, other.project)
+                    && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(storageTree), project, path);
+        }
+    }
+
+    private static class CachedValue {
+        private final CompletableFuture<String> value = new CompletableFuture<>();
+        private volatile long expiresAt;
+
+        void complete(String secret, long ttlMillis) {
+            expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+            value.complete(secret);
+        }
+
+        void fail(Throwable t) {
+            value.completeExceptionally(t);
+        }
+
+        boolean isExpired() {
+            if (!value.isDone()) {
+                // Still being read; wait for it.
+                return false;
+            }
+            return value.isCompletedExceptionally() || System.nanoTime() - expiresAt >= 0;
+        }
+
+        /**
+         * @param timeoutMillis Longest time to wait.
+         * @return The value, or null if it was not read in time.
+         */
+        String await(long timeoutMillis) throws IOException {
+            try {
+                return value.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for shared storage read");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        @Override
+        public String toString() {
+            // Never expose the secret through logging or debugging output.
+            return "CachedValue";
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CaptureBufferTest {
+
+    @Test
+    public void smallOutputStaysInMemory() throws IOException {
+        try (CaptureBuffer subject = new CaptureBuffer(16, 0)) {
+            assertTrue(subject.write(bytes("hello ")));
+            assertTrue(subject.write(bytes("world")));
+            assertFalse(subject.isSpilled());
+            assertEquals(11, subject.size());
+            assertEquals("hello world", subject.asString());
+        }
+    }
+
+    @Test
+    public void largeOutputSpillsToFile() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        try (CaptureBuffer subject = new CaptureBuffer(100, 0)) {
+            for (int i = 0; i < 1000; i++) {
+                String line = "line " + i + "\n";
+                expected.append(line);
+                subject.write(bytes(line));
+            }
+            assertTrue(subject.isSpilled());
+            assertEquals(expected.length(), subject.size());
+            try (BufferedReader reader = new BufferedReader(subject.reader())) {
+                assertEquals("line 0", reader.readLine());
+                assertEquals("line 1", reader.readLine());
+            }
+            assertEquals(expected.toString(), subject.asString());
+        }
+    }
+
+    @Test
+    public void charactersSplitBetweenWritesAndFileAreDecoded() throws IOException {
+        byte[] text = "caf\u00e9 ol\u00e9".getBytes(StandardCharsets.UTF_8);
+        try (CaptureBuffer subject = new CaptureBuffer(4, 0)) {
+            // The memory limit falls inside the first two-byte character.
+            subject.write(ByteBuffer.wrap(Arrays.copyOfRange(text, 0, 3)));
+            subject.write(ByteBuffer.wrap(Arrays.copyOfRange(text, 3, text.length)));
+            assertEquals("caf\u00e9 ol\u00e9", subject.asString());
+        }
+    }
+
+    @Test
+    public void hardCapDropsTheRest() throws IOException {
+        try (CaptureBuffer subject = new CaptureBuffer(4, 10)) {
+            assertTrue(subject.write(bytes("12345678")));
+            ByteBuffer more = bytes("90abcdef");
+            assertFalse(subject.write(more));
+            assertFalse(more.hasRemaining());
+            assertFalse(subject.write(bytes("ghi")));
+            assertTrue(subject.isTruncated());
+            assertEquals(10, subject.size());
+            assertEquals("1234567890", subject.asString());
+        }
+    }
+
+    @Test
+    public void closeDeletesFile() throws IOException {
+        CaptureBuffer subject = new CaptureBuffer(0, 0);
+        subject.write(bytes("spilled"));
+        try (InputStream stream = subject.inputStream()) {
+            assertEquals('s', stream.read());
+        }
+        subject.close();
+        assertEquals(0, subject.size());
+        assertFalse(subject.isSpilled());
+        assertEquals("", subject.asString());
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,128 @@
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.common.Framework;
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.IRundeckProject;
+import com.dtolabs.rundeck.core.common.ProjectManager;
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.utils.IPropertyLookup;
+import com.google.common.collect.ImmutableMap;
+import okhttp3.Protocol;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.bioraft.rundeck.rancher.Constants.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientSettingsTest {
+
+    @Mock
+    ExecutionContext context;
+
+    @Mock
+    Framework framework;
+
+    @Mock
+    ProjectManager projectManager;
+
+    @Mock
+    IRundeckProject project;
+
+    @Mock
+    IPropertyLookup propertyLookup;
+
+    @Mock
+    INodeEntry node;
+
+    @Test
+    public void defaults() {
+        ClientSettings settings = ClientSettings.DEFAULTS;
+        assertEquals(10, settings.getConnectTimeout());
+        assertEquals(10, settings.getReadTimeout());
+        assertEquals(10, settings.getWriteTimeout());
+        assertEquals(0, settings.getCallTimeout());
+        assertEquals(5, settings.getPoolSize());
+        assertEquals(300, settings.getKeepAlive());
+        assertEquals(64, settings.getMaxRequestsPerHost());
+        assertEquals(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1), settings.getProtocols());
+        assertEquals(settings, ClientSettings.fromProperties(Collections.emptyMap()));
+        assertEquals(settings, ClientSettings.resolve(null, null));
+    }
+
+    @Test
+    public void nodeOverridesProjectOverridesFramework() {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(RANCHER_CONFIG_POOL_SIZE, "20");
+        when(node.getAttributes()).thenReturn(attributes);
+        when(context.getIFramework()).thenReturn(framework);
+        when(context.getFrameworkProject()).thenReturn("project");
+        when(framework.getFrameworkProjectMgr()).thenReturn(projectManager);
+        when(framework.getPropertyLookup()).thenReturn(propertyLookup);
+        when(projectManager.getFrameworkProject("project")).thenReturn(project);
+        // Shadowed values are never read.
+        lenient().when(project.hasProperty(PROJ_RANCHER_POOL_SIZE)).thenReturn(true);
+        lenient().when(project.getProperty(PROJ_RANCHER_POOL_SIZE)).thenReturn("10");
+        when(project.hasProperty(PROJ_RANCHER_KEEP_ALIVE)).thenReturn(true);
+        when(project.getProperty(PROJ_RANCHER_KEEP_ALIVE)).thenReturn("60");
+        lenient().when(propertyLookup.hasProperty(FMWK_RANCHER_KEEP_ALIVE)).thenReturn(true);
+        when(propertyLookup.hasProperty(FMWK_RANCHER_MAX_REQUESTS_PER_HOST)).thenReturn(true);
+        when(propertyLookup.getProperty(FMWK_RANCHER_MAX_REQUESTS_PER_HOST)).thenReturn("32");
+
+        ClientSettings settings = ClientSettings.resolve(context, node);
+        assertEquals(20, settings.getPoolSize());
+        assertEquals(60, settings.getKeepAlive());
+        assertEquals(32, settings.getMaxRequestsPerHost());
+        assertEquals(10, settings.getConnectTimeout());
+    }
+
+    @Test
+    public void missingProjectUsesDefaults() {
+        when(context.getIFramework()).thenReturn(framework);
+        when(framework.getFrameworkProjectMgr()).thenReturn(projectManager);
+        assertEquals(ClientSettings.DEFAULTS, ClientSettings.resolve(context, null));
+    }
+
+    @Test
+    public void invalidValuesFallBack() {
+        ClientSettings settings = ClientSettings.fromProperties(ImmutableMap.of(
+                RANCHER_CONFIG_CONNECT_TIMEOUT, "soon",
+                RANCHER_CONFIG_READ_TIMEOUT, " 30 ",
+                RANCHER_CONFIG_POOL_SIZE, "0",
+                RANCHER_CONFIG_CALL_TIMEOUT, "-5"));
+        assertEquals(10, settings.getConnectTimeout());
+        assertEquals(30, settings.getReadTimeout());
+        assertEquals(1, settings.getPoolSize());
+        assertEquals(0, settings.getCallTimeout());
+    }
+
+    @Test
+    public void protocolsAlwaysIncludeHttp11() {
+        assertEquals(Collections.singletonList(Protocol.HTTP_1_1), ClientSettings.parseProtocols("http/1.1"));
+        assertEquals(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1), ClientSettings.parseProtocols("H2"));
+        assertEquals(Arrays.asList(Protocol.HTTP_1_1, Protocol.HTTP_2),
+                ClientSettings.parseProtocols("http/1.1, h2, spdy/9, http/1.0"));
+        assertEquals(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE),
+                ClientSettings.parseProtocols("h2_prior_knowledge,http/1.1"));
+        assertEquals(Collections.singletonList(Protocol.HTTP_1_1), ClientSettings.parseProtocols(""));
+    }
+
+    @Test
+    public void equalSettingsAreEqual() {
+        ClientSettings a = ClientSettings.fromProperties(ImmutableMap.of(RANCHER_CONFIG_POOL_SIZE, "8"));
+        ClientSettings b = ClientSettings.fromProperties(ImmutableMap.of(RANCHER_CONFIG_POOL_SIZE, "8"));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertNotEquals(a, ClientSettings.DEFAULTS);
+        assertTrue(a.toString().contains("pool=8"));
+    }
+}
@@ -0,0 +1,106 @@
+package com.bioraft.rundeck.rancher;
+
+import com.bioraft.rundeck.rancher.LogMessage.Stream;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DockerStreamDemuxerTest {
+
+    private final DockerStreamDemuxer subject = new DockerStreamDemuxer();
+
+    private final List<String> payloads = new ArrayList<>();
+
+    private final DockerStreamDemuxer.FrameConsumer consumer = (stream, payload) ->
+            payloads.add(stream + ":" + StandardCharsets.UTF_8.decode(payload));
+
+    @Test
+    public void splitsFrames() {
+        byte[] stream = concat(frame(1, "out\n"), frame(2, "err\n"), frame(1, ""), frame(1, "more"));
+        subject.feed(ByteBuffer.wrap(stream), consumer);
+        assertEquals("[STDOUT:out\n, STDERR:err\n, STDOUT:more]", payloads.toString());
+        assertFalse(subject.isPartial());
+        assertEquals(4, subject.getFrames());
+        subject.reset();
+        assertEquals(0, subject.getFrames());
+    }
+
+    @Test
+    public void keepsStateBetweenMessages() {
+        byte[] stream = concat(frame(1, "abcdef"), frame(2, "ghijkl"));
+        // Split inside the first payload and inside the second header.
+        subject.feed(ByteBuffer.wrap(stream, 0, 11), consumer);
+        assertTrue(subject.isPartial());
+        subject.feed(ByteBuffer.wrap(stream, 11, 6), consumer);
+        assertTrue(subject.isPartial());
+        subject.feed(ByteBuffer.wrap(stream, 17, stream.length - 17), consumer);
+        assertEquals("[STDOUT:abc, STDOUT:def, STDERR:ghijkl]", payloads.toString());
+        assertFalse(subject.isPartial());
+    }
+
+    @Test
+    public void oneByteAtATime() {
+        byte[] stream = concat(frame(1, "ab"), frame(2, "cd"));
+        for (int i = 0; i < stream.length; i++) {
+            subject.feed(ByteBuffer.wrap(stream, i, 1), consumer);
+        }
+        assertEquals("[STDOUT:a, STDOUT:b, STDERR:c, STDERR:d]", payloads.toString());
+    }
+
+    @Test
+    public void payloadsAreSlicesOfTheMessage() {
+        byte[] stream = frame(1, "abcd");
+        ByteBuffer message = ByteBuffer.wrap(stream);
+        subject.feed(message, (s, payload) -> {
+            assertSame(stream, payload.array());
+            assertEquals(MessageReader.HEADER_SIZE, payload.arrayOffset() + payload.position());
+        });
+        assertFalse(message.hasRemaining());
+    }
+
+    @Test
+    public void textWithoutHeaderIsStdout() {
+        subject.feed(ByteBuffer.wrap("plain text".getBytes(StandardCharsets.UTF_8)), consumer);
+        assertEquals("[STDOUT:plain text]", payloads.toString());
+        assertFalse(subject.isPartial());
+    }
+
+    @Test
+    public void heldBytesThatAreNotAHeaderArePassedThrough() {
+        byte[] text = {1, 0, 'x', 'y'};
+        subject.feed(ByteBuffer.wrap(text, 0, 2), consumer);
+        assertTrue(payloads.isEmpty());
+        subject.feed(ByteBuffer.wrap(text, 2, 2), consumer);
+        assertEquals("[STDOUT:\u0001\u0000, STDOUT:xy]", payloads.toString());
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        byte[] stream = frame(2, "abcdef");
+        subject.feed(ByteBuffer.wrap(stream, 0, 10), consumer);
+        subject.reset();
+        assertFalse(subject.isPartial());
+        subject.feed(ByteBuffer.wrap(frame(1, "new")), consumer);
+        assertEquals("[STDERR:ab, STDOUT:new]", payloads.toString());
+    }
+
+    static byte[] frame(int stream, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(MessageReader.HEADER_SIZE + bytes.length)
+                .putInt(stream << 24).putInt(bytes.length).put(bytes).array();
+    }
+
+    static byte[] concat(byte[]... arrays) {
+        ByteBuffer buffer = ByteBuffer.allocate(Arrays.stream(arrays).mapToInt(a -> a.length).sum());
+        for (byte[] array : arrays) {
+            buffer.put(array);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,138 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExecutionGovernorTest {
+
+    private static final String URL = "https://rancher.example.com/v2-beta/projects/1a10/containers/1i10/?action=execute";
+
+    @Test
+    public void governorsAreKeyedByEndpointAndHost() {
+        ExecutionGovernor governor = ExecutionGovernor.forHost(URL, "1h1", 2);
+        String other = "https://rancher.example.com/v2-beta/projects/1a10/containers/1i11/?action=execute";
+
+        assertSame(governor, ExecutionGovernor.forHost(other, "1h1", 2));
+        assertNotSame(governor, ExecutionGovernor.forHost(URL, "1h2", 2));
+        assertNotSame(governor, ExecutionGovernor.forHost("http://rancher.example.com:8080/v2-beta", "1h1", 2));
+        assertEquals("https://rancher.example.com:443 1h1", governor.getKey());
+        assertEquals("https://rancher.example.com:443 unknown", ExecutionGovernor.forHost(URL, "", 2).getKey());
+    }
+
+    @Test
+    public void permitsLimitActiveCommands() throws InterruptedException {
+        ExecutionGovernor governor = ExecutionGovernor.forHost(URL, "1h-limit", 2);
+        ExecutionGovernor.Permit first = governor.acquire(null);
+        ExecutionGovernor.Permit second = governor.acquire(null);
+        assertEquals(2, governor.getActive());
+
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                governor.acquire(null).close();
+                admitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, governor.getQueueLength());
+
+        first.close();
+        // Closing twice releases only one permit.
+        first.close();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        second.close();
+        assertEquals(0, governor.getActive());
+        assertEquals(3, governor.getQueueWait().getCount());
+    }
+
+    @Test
+    public void waitersAreAdmittedInOrder() throws InterruptedException {
+        ExecutionGovernor governor = ExecutionGovernor.forHost(URL, "1h-fair", 1);
+        ExecutionGovernor.Permit held = governor.acquire(null);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        Thread[] waiters = new Thread[5];
+        for (int i = 0; i < waiters.length; i++) {
+            int id = i;
+            waiters[i] = new Thread(() -> {
+                try {
+                    ExecutionGovernor.Permit permit = governor.acquire(null);
+                    order.add(id);
+                    permit.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiters[i].start();
+            // Wait until this thread is queued before starting the next.
+            while (governor.getQueueLength() <= i) {
+                Thread.sleep(1);
+            }
+        }
+        held.close();
+        for (Thread waiter : waiters) {
+            waiter.join(5000);
+        }
+        assertEquals(5, order.size());
+        for (int i = 0; i < waiters.length; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test
+    public void limitCanChange() throws InterruptedException {
+        ExecutionGovernor governor = ExecutionGovernor.forHost(URL, "1h-resize", 1);
+        ExecutionGovernor.Permit first = governor.acquire(null);
+
+        ExecutionGovernor.forHost(URL, "1h-resize", 3);
+        assertEquals(3, governor.getLimit());
+        ExecutionGovernor.Permit second = governor.acquire(null);
+        ExecutionGovernor.Permit third = governor.acquire(null);
+        assertEquals(3, governor.getActive());
+
+        governor.setLimit(0);
+        assertEquals(1, governor.getLimit());
+        first.close();
+        second.close();
+        third.close();
+        governor.acquire(null);
+        assertEquals(1, governor.getActive());
+        Thread.currentThread().interrupt();
+        try {
+            governor.acquire(null);
+            fail("Expected InterruptedException");
+        } catch (InterruptedException e) {
+            assertEquals(1, governor.getActive());
+        }
+    }
+
+    @Test
+    public void largestConfiguredLimitWins() {
+        ExecutionGovernor governor = ExecutionGovernor.forHost(URL, "1h-projects", 4);
+        ExecutionGovernor.forHost(URL, "1h-projects", 2);
+        assertEquals(4, governor.getLimit());
+        ExecutionGovernor.forHost(URL, "1h-projects", 6);
+        assertEquals(6, governor.getLimit());
+        ExecutionGovernor.forHost(URL, "1h-projects", 4);
+        assertEquals(6, governor.getLimit());
+    }
+
+    @Test
+    public void queueWaitIsRecordedInMetrics() throws InterruptedException {
+        ExecutionGovernor governor = ExecutionGovernor.forHost(URL, "1h-metrics", 1);
+        ExecutionMetrics metrics = new ExecutionMetrics();
+        governor.acquire(metrics).close();
+
+        assertTrue(metrics.getNanos(ExecutionMetrics.PHASE_QUEUE) >= 0);
+        assertEquals(1, ExecutionGovernor.queueWaits().get("https://rancher.example.com:443 1h-metrics").getCount());
+    }
+}
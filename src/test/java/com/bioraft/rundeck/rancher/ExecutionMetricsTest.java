@@ -0,0 +1,63 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.bioraft.rundeck.rancher.ExecutionMetrics.*;
+import static org.junit.Assert.*;
+
+public class ExecutionMetricsTest {
+
+    @Before
+    public void setUp() {
+        ExecutionMetrics.reset();
+    }
+
+    @Test
+    public void phasesAreSummedAndAggregated() {
+        ExecutionMetrics metrics = new ExecutionMetrics();
+        metrics.record(PHASE_TOKEN, TimeUnit.MILLISECONDS.toNanos(12));
+        metrics.record(PHASE_TOKEN, TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.record(PHASE_STATUS, -1);
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(42), metrics.getNanos(PHASE_TOKEN));
+        assertEquals(-1, metrics.getNanos(PHASE_STATUS));
+        Map<String, LatencyHistogram.Snapshot> latencies = ExecutionMetrics.latencies();
+        assertEquals(2, latencies.get(PHASE_TOKEN).getCount());
+        assertFalse(latencies.containsKey(PHASE_STATUS));
+    }
+
+    @Test
+    public void countsStreamSizes() {
+        ExecutionMetrics first = new ExecutionMetrics();
+        ExecutionMetrics second = new ExecutionMetrics();
+        first.addBytes(100);
+        first.addFrames(2);
+        second.addBytes(50);
+        second.addFrames(1);
+
+        assertEquals(100, first.getBytes());
+        assertEquals(2, first.getFrames());
+        assertEquals(150, ExecutionMetrics.getTotalBytes());
+        assertEquals(3, ExecutionMetrics.getTotalFrames());
+    }
+
+    @Test
+    public void finishSummarizes() {
+        ExecutionMetrics metrics = new ExecutionMetrics();
+        metrics.record(PHASE_CREDENTIALS, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.record(PHASE_FIRST_BYTE, TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.addBytes(1234);
+        metrics.addFrames(5);
+
+        String summary = metrics.finish("node1");
+
+        assertTrue(summary, summary.matches("Metrics for node1: credentials=3ms token=- connect=- first-byte=40ms "
+                + "log-delivery=- status=- queue=- bytes=1234 frames=5 total=\\d+ms"));
+        assertEquals(1, ExecutionMetrics.getTotalExecutions());
+        assertEquals(1, ExecutionMetrics.latencies().get(PHASE_TOTAL).getCount());
+    }
+}
@@ -0,0 +1,201 @@
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.OkHttpClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many concurrent commands against {@link RancherApiSimulator} for a long time, to find thread and
+ * connection leaks in the websocket execution path, and writes the results as JSON.
+ *
+ * Each worker runs commands back to back through a shared OkHttpClient, as the node executor does. Thread
+ * count, pooled connections and heap are sampled as it runs. Once warmed up they should stay level, so the
+ * run fails if, at the end, either is higher than its peak in the first half of the run by more than the
+ * churn that commands in flight can cause (two threads or one connection per worker).
+ *
+ * @code
+ * ./gradlew soak -Psoak.seconds=3600 -Psoak.workers=50
+ * @code
+ */
+public class ExecutionSoak {
+
+    private int seconds = 60;
+    private int workers = 20;
+    private int outputBytes = 64 * 1024;
+    private int frameSize = 4096;
+    private double stderrRatio = 0.1;
+    private int sampleSeconds = 10;
+
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+
+    private final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ExecutionSoak soak = new ExecutionSoak()
+                .setSeconds(Integer.getInteger("soak.seconds", 3600))
+                .setWorkers(Integer.getInteger("soak.workers", 20));
+        ObjectNode results = soak.run();
+        File file = new File(System.getProperty("soak.results", "build/reports/soak/results.json"));
+        soak.write(results, file);
+        System.out.println(results.get("summary"));
+        System.out.println("Results written to " + file);
+        System.exit(results.get("summary").get("passed").asBoolean() ? 0 : 1);
+    }
+
+    public ExecutionSoak setSeconds(int seconds) {
+        this.seconds = seconds;
+        return this;
+    }
+
+    public ExecutionSoak setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    public ExecutionSoak setOutputBytes(int outputBytes) {
+        this.outputBytes = outputBytes;
+        return this;
+    }
+
+    public ExecutionSoak setSampleSeconds(int sampleSeconds) {
+        this.sampleSeconds = Math.max(1, sampleSeconds);
+        return this;
+    }
+
+    /**
+     * Runs the soak.
+     *
+     * @return Configuration, samples and summary; summary.passed is false if threads or connections leaked.
+     */
+    public ObjectNode run() throws IOException, InterruptedException {
+        ObjectNode results = mapper.createObjectNode();
+        results.putObject("config").put("seconds", seconds).put("workers", workers)
+                .put("outputBytes", outputBytes).put("frameSize", frameSize).put("stderrRatio", stderrRatio)
+                .put("sampleSeconds", sampleSeconds);
+        ArrayNode samples = results.putArray("samples");
+
+        int threadsBefore = threads.getThreadCount();
+        ExecutionMetrics.reset();
+        OkHttpClient client = new OkHttpClient();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        try (RancherApiSimulator rancher = new RancherApiSimulator().setContainers(workers)
+                .setOutputBytes(outputBytes).setFrameSize(frameSize).setStderrRatio(stderrRatio).start()) {
+            List<String> containers = rancher.containerIds();
+            for (int i = 0; i < workers; i++) {
+                String url = rancher.executeUrl(containers.get(i));
+                String temp = "/tmp/soak-" + i;
+                pool.execute(() -> work(client, url, temp, end));
+            }
+
+            // Samples from the first half of the run, after warm-up, set the baseline for leak checks.
+            long warmUp = start + Math.min(TimeUnit.SECONDS.toNanos(sampleSeconds), (end - start) / 4);
+            long half = start + (end - start) / 2;
+            int baseThreads = 0;
+            int baseConnections = 0;
+            for (long next = warmUp; next < end; next += TimeUnit.SECONDS.toNanos(sampleSeconds)) {
+                sleepUntil(next);
+                ObjectNode sample = sample(samples, start, client);
+                if (next <= half) {
+                    baseThreads = Math.max(baseThreads, sample.get("threads").asInt());
+                    baseConnections = Math.max(baseConnections, sample.get("connections").asInt());
+                }
+            }
+            sleepUntil(end);
+            // Taken while the last commands are still running, so it is comparable with the baseline.
+            ObjectNode last = sample(samples, start, client);
+            pool.shutdown();
+            if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+
+            int threadGrowth = last.get("threads").asInt() - baseThreads;
+            int connectionGrowth = last.get("connections").asInt() - baseConnections;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            ObjectNode summary = results.putObject("summary");
+            summary.put("executions", executions.get()).put("failures", failures.get())
+                    .put("executionsPerSecond", executions.get() / elapsed).put("lines", lines.get())
+                    .put("bytes", ExecutionMetrics.getTotalBytes())
+                    .put("megabytesPerSecond", ExecutionMetrics.getTotalBytes() / elapsed / (1024 * 1024))
+                    .put("threadsBefore", threadsBefore).put("peakThreads", threads.getPeakThreadCount())
+                    .put("threadGrowth", threadGrowth).put("connectionGrowth", connectionGrowth)
+                    .put("passed", threadGrowth <= 2 * workers && connectionGrowth <= workers);
+            ObjectNode latencies = results.putObject("latencyMillis");
+            ExecutionMetrics.latencies().forEach((phase, histogram) -> latencies.putObject(phase)
+                    .put("count", histogram.getCount()).put("mean", histogram.getMeanMillis())
+                    .put("p50", histogram.getPercentileMillis(50)).put("p99", histogram.getPercentileMillis(99))
+                    .put("max", histogram.getMaxMillis()));
+        } finally {
+            pool.shutdownNow();
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
+        return results;
+    }
+
+    public void write(ObjectNode results, File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mapper.writeValue(file, results);
+    }
+
+    private void work(OkHttpClient client, String url, String temp, long end) {
+        ExecutionListener listener = (level, message) -> lines.incrementAndGet();
+        String[] command = {"ls"};
+        while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+            RancherWebSocketListener socket = new RancherWebSocketListener(client);
+            ExecutionMetrics metrics = new ExecutionMetrics();
+            socket.setMetrics(metrics);
+            try {
+                if (socket.thisRunJob(url, "access", "secret", command, listener, temp, 30).isSuccess()) {
+                    executions.incrementAndGet();
+                } else {
+                    failures.incrementAndGet();
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                metrics.finish(url);
+            }
+        }
+    }
+
+    private ObjectNode sample(ArrayNode samples, long start, OkHttpClient client) {
+        return samples.addObject()
+                .put("millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .put("executions", executions.get()).put("failures", failures.get())
+                .put("threads", threads.getThreadCount())
+                .put("connections", client.connectionPool().connectionCount())
+                .put("heapBytes", memory.getHeapMemoryUsage().getUsed());
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long remaining = nanos - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.bioraft.rundeck.rancher;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ExecutionSoakTest {
+
+    @Test
+    public void shortSoakWritesResults() throws IOException, InterruptedException {
+        ExecutionSoak soak = new ExecutionSoak().setSeconds(3).setWorkers(4).setOutputBytes(4096).setSampleSeconds(1);
+        ObjectNode results = soak.run();
+
+        JsonNode summary = results.get("summary");
+        assertTrue(summary.get("executions").asLong() > 0);
+        assertEquals(0, summary.get("failures").asLong());
+        assertTrue(summary.get("lines").asLong() > 0);
+        assertTrue(summary.get("passed").asBoolean());
+        assertTrue(results.get("samples").size() >= 2);
+        assertTrue(results.get("latencyMillis").has(ExecutionMetrics.PHASE_TOTAL));
+
+        File file = File.createTempFile("soak", ".json");
+        try {
+            soak.write(results, file);
+            assertEquals(results.toString(), new ObjectMapper().readTree(file).toString());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+}
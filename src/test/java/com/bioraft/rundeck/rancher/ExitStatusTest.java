@@ -0,0 +1,31 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExitStatusTest {
+
+    @Test
+    public void parsesPidAndCode() {
+        ExitStatus status = ExitStatus.parse("123 2\n");
+        assertNotNull(status);
+        assertEquals("123", status.getPid());
+        assertEquals(2, status.getCode());
+        assertFalse(status.isSuccess());
+        assertEquals("Process 123 status 2", status.toString());
+    }
+
+    @Test
+    public void zeroIsSuccess() {
+        assertTrue(ExitStatus.parse(" 123 0").isSuccess());
+    }
+
+    @Test
+    public void missingCodeIsNull() {
+        assertNull(ExitStatus.parse(null));
+        assertNull(ExitStatus.parse(""));
+        assertNull(ExitStatus.parse("123"));
+        assertNull(ExitStatus.parse("123 done"));
+    }
+}
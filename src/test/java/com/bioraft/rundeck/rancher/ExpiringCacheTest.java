@@ -0,0 +1,56 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ExpiringCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void valuesExpire() {
+        ExpiringCache<String, Boolean> subject = new ExpiringCache<>(10, TimeUnit.SECONDS, 8, now::get);
+        subject.put("a", true);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        assertEquals(Boolean.TRUE, subject.get("a"));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(subject.get("a"));
+        assertEquals(0, subject.size());
+    }
+
+    @Test
+    public void putRestartsTheTimeToLive() {
+        ExpiringCache<String, Boolean> subject = new ExpiringCache<>(10, TimeUnit.SECONDS, 8, now::get);
+        subject.put("a", true);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        subject.put("a", false);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        assertEquals(Boolean.FALSE, subject.get("a"));
+    }
+
+    @Test
+    public void oldestValuesAreDroppedWhenFull() {
+        ExpiringCache<Integer, Integer> subject = new ExpiringCache<>(10, TimeUnit.SECONDS, 3, now::get);
+        for (int i = 0; i < 5; i++) {
+            subject.put(i, i);
+        }
+        assertEquals(3, subject.size());
+        assertNull(subject.get(0));
+        assertNull(subject.get(1));
+        assertEquals(Integer.valueOf(4), subject.get(4));
+    }
+
+    @Test
+    public void expiredValuesAreSweptOnPut() {
+        ExpiringCache<Integer, Integer> subject = new ExpiringCache<>(10, TimeUnit.SECONDS, 8, now::get);
+        subject.put(1, 1);
+        subject.put(2, 2);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        subject.put(3, 3);
+        assertEquals(1, subject.size());
+    }
+}
@@ -0,0 +1,91 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+
+    @Test
+    public void decodesLikeTheJdk() {
+        FrameBufferPool subject = new FrameBufferPool(256, 4);
+        Random random = new Random(1);
+        for (int length = 0; length < 100; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String padded = Base64.getEncoder().encodeToString(bytes);
+            String unpadded = Base64.getEncoder().withoutPadding().encodeToString(bytes);
+            assertArrayEquals(bytes, remaining(subject, padded));
+            assertArrayEquals(bytes, remaining(subject, unpadded));
+        }
+    }
+
+    @Test
+    public void buffersAreReused() {
+        FrameBufferPool subject = new FrameBufferPool(256, 4);
+        ByteBuffer first = subject.decodeBase64("aGVsbG8=");
+        subject.release(first);
+        ByteBuffer second = subject.decodeBase64("d29ybGQ=");
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(5, second.remaining());
+        subject.release(second);
+        assertEquals(1, subject.getAllocated());
+        assertEquals(1, subject.getFree());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        FrameBufferPool subject = new FrameBufferPool(16, 2);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = subject.acquire(16);
+        }
+        for (ByteBuffer buffer : buffers) {
+            subject.release(buffer);
+        }
+        assertEquals(3, subject.getAllocated());
+        assertEquals(2, subject.getFree());
+    }
+
+    @Test
+    public void largeMessagesGetTheirOwnBuffer() {
+        FrameBufferPool subject = new FrameBufferPool(4, 2);
+        ByteBuffer buffer = subject.decodeBase64("aGVsbG8gd29ybGQ=");
+        assertEquals("hello world", new String(remaining(buffer)));
+        subject.release(buffer);
+        assertEquals(0, subject.getFree());
+    }
+
+    @Test
+    public void invalidTextIsRejected() {
+        FrameBufferPool subject = new FrameBufferPool(256, 4);
+        for (String text : new String[]{"aGVs!G8=", "aGVsb", "aG=sbG8=", "\u00e9GVsbG8="}) {
+            try {
+                subject.decodeBase64(text);
+                fail("Expected IllegalArgumentException for " + text);
+            } catch (IllegalArgumentException e) {
+                assertEquals(1, subject.getFree());
+            }
+        }
+    }
+
+    private static byte[] remaining(FrameBufferPool pool, String text) {
+        ByteBuffer buffer = pool.decodeBase64(text);
+        try {
+            return remaining(buffer);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
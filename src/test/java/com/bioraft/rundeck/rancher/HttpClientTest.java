@@ -13,6 +13,7 @@ import org.mockito.junit.MockitoJUnitRunner;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
 import static com.bioraft.rundeck.rancher.TestHelper.*;
@@ -173,4 +174,109 @@ public class HttpClientTest {
             verify(logger, times(1)).log(anyInt(), anyString());
         }
     }
+
+    @Test
+    public void testConcurrentGetsShareOneRequest() throws Exception {
+        String url = "https://api.example.com/v2-beta/projects/1a1/services/1s1";
+        String text = "{\"key\": \"value\"}";
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(call.execute()).thenAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return response(text);
+        });
+        subject.setAccessKey("access");
+        subject.setSecretKey("secret");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<JsonNode> first = executor.submit(() -> subject.get(url));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<JsonNode> second = executor.submit(() -> subject.get(url));
+        Thread.sleep(100);
+        release.countDown();
+
+        JsonNode json1 = first.get(5, TimeUnit.SECONDS);
+        JsonNode json2 = second.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertEquals("value", json1.get("key").asText());
+        assertEquals(json1, json2);
+        assertNotSame(json1, json2);
+        verify(mockClient, times(1)).newCall(any());
+    }
+
+    @Test
+    public void testSlowSharedGetIsNotWaitedForBeyondTimeout() throws Exception {
+        String url = "https://api.example.com/v2-beta/projects/1a1/services/1s6";
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(mockClient.callTimeoutMillis()).thenReturn(100);
+        when(call.execute()).thenAnswer(invocation -> {
+            if (started.getCount() > 0) {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+            return response("{\"key\": \"value\"}");
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<JsonNode> first = executor.submit(() -> subject.get(url));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // Gives up on the stuck request and makes its own.
+            assertEquals("value", subject.get(url).get("key").asText());
+            release.countDown();
+            assertEquals("value", first.get(5, TimeUnit.SECONDS).get("key").asText());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        verify(mockClient, times(2)).newCall(any());
+    }
+
+    @Test
+    public void testCompletedGetIsNotReusedByDefault() throws IOException {
+        String url = "https://api.example.com/v2-beta/projects/1a1/services/1s2";
+        when(call.execute()).thenReturn(response("{\"key\": \"value\"}"), response("{\"key\": \"value\"}"));
+        subject.get(url);
+        subject.get(url);
+        verify(mockClient, times(2)).newCall(any());
+    }
+
+    @Test
+    public void testReuseWindow() throws IOException {
+        String url = "https://api.example.com/v2-beta/projects/1a1/services/1s3";
+        when(call.execute()).thenReturn(response("{\"key\": \"value\"}"));
+        subject.setReuseWindow(60000);
+        JsonNode json1 = subject.get(url);
+        JsonNode json2 = subject.get(url);
+        assertEquals(json1, json2);
+        verify(mockClient, times(1)).newCall(any());
+    }
+
+    @Test
+    public void testReuseWindowIsPerCredential() throws IOException {
+        String url = "https://api.example.com/v2-beta/projects/1a1/services/1s4";
+        when(call.execute()).thenReturn(response("{\"key\": \"value\"}"), response("{\"key\": \"value\"}"));
+        subject.setReuseWindow(60000);
+        subject.setAccessKey("access1");
+        subject.get(url);
+        subject.setAccessKey("access2");
+        subject.get(url);
+        verify(mockClient, times(2)).newCall(any());
+    }
+
+    @Test
+    public void testFailedGetIsNotReused() throws IOException {
+        String url = "https://api.example.com/v2-beta/projects/1a1/services/1s5";
+        when(call.execute()).thenReturn(response("{}", 500), response("{\"key\": \"value\"}"));
+        subject.setReuseWindow(60000);
+        try {
+            subject.get(url);
+            fail("This get should have thrown an exception");
+        } catch (IOException e) {
+            assertEquals("value", subject.get(url).get("key").asText());
+        }
+        verify(mockClient, times(2)).newCall(any());
+    }
 }
@@ -0,0 +1,120 @@
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionLogger;
+import okhttp3.*;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static com.bioraft.rundeck.rancher.HttpMetrics.*;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.matches;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HttpMetricsTest {
+
+    @Mock
+    ExecutionLogger logger;
+
+    MockWebServer mockWebServer;
+
+    OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        HttpMetrics.reset();
+        mockWebServer = new MockWebServer();
+        mockWebServer.start();
+        client = new OkHttpClient.Builder().eventListenerFactory(HttpMetrics.FACTORY).build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mockWebServer.shutdown();
+    }
+
+    @Test
+    public void testOperationTypes() {
+        assertEquals(OP_LIST, operation(request("/v2-beta/projects/1a10/services", null)));
+        assertEquals(OP_LIST, operation(request("/v2-beta/projects/1a10/containers/", null)));
+        assertEquals(OP_GET, operation(request("/v2-beta/projects/1a10/services/1s56", null)));
+        assertEquals(OP_ACTION, operation(request("/v2-beta/projects/1a10/services/1s56?action=restart", "")));
+        assertEquals(OP_EXECUTE_TOKEN, operation(request("/v2-beta/projects/1a10/containers/1i2/?action=execute", "")));
+        assertEquals(OP_CREATE, operation(request("/v2-beta/projects/1a10/services", "{}")));
+    }
+
+    @Test
+    public void testEndpointNormalization() {
+        assertEquals("GET /v2-beta/projects/{id}/services/{id}",
+                endpoint(request("/v2-beta/projects/1a10/services/1s56", null)));
+        assertEquals("POST /v2-beta/projects/{id}/containers/{id}?action=execute",
+                endpoint(request("/v2-beta/projects/1a10/containers/1i234/?action=execute", "")));
+    }
+
+    @Test
+    public void testRecordsLatencyAndStatus() throws IOException {
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(404).setBody("{}"));
+        execute(request("/v2-beta/projects/1a10/services", null));
+        execute(request("/v2-beta/projects/1a10/services/1s56", null));
+
+        Map<String, LatencyHistogram.Snapshot> latencies = HttpMetrics.latencies();
+        assertEquals(1, latencies.get(OP_LIST + " " + PHASE_TOTAL).getCount());
+        assertEquals(1, latencies.get(OP_LIST + " " + PHASE_TTFB).getCount());
+        assertEquals(1, latencies.get(OP_LIST + " " + PHASE_CONNECT).getCount());
+        assertEquals(1, latencies.get(OP_GET + " " + PHASE_TOTAL).getCount());
+        assertEquals(1, latencies.get("GET /v2-beta/projects/{id}/services").getCount());
+        assertNull(latencies.get(OP_LIST + " " + PHASE_TLS));
+
+        Map<String, Map<Integer, Long>> statusCounts = HttpMetrics.statusCounts();
+        assertEquals(Long.valueOf(1), statusCounts.get(OP_LIST).get(200));
+        assertEquals(Long.valueOf(1), statusCounts.get(OP_GET).get(404));
+    }
+
+    @Test
+    public void testFailedCallIsCounted() throws IOException {
+        Request request = request("/v2-beta/projects/1a10/services", null);
+        mockWebServer.shutdown();
+        try {
+            execute(request);
+            fail("Request to a stopped server should fail");
+        } catch (IOException e) {
+            assertEquals(Long.valueOf(1), HttpMetrics.statusCounts().get(OP_LIST).get(STATUS_FAILED));
+        }
+    }
+
+    @Test
+    public void testLogsTimingsToTaggedLogger() throws IOException {
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        Request request = request("/v2-beta/projects/1a10/services/1s56", null).newBuilder()
+                .tag(ExecutionLogger.class, logger).build();
+        execute(request);
+        verify(logger).log(eq(com.dtolabs.rundeck.core.Constants.DEBUG_LEVEL),
+                matches("get GET /v2-beta/projects/\\{id}/services/\\{id} 200 dns=.* total=[0-9]+ms"));
+    }
+
+    private Request request(String path, String post) {
+        Request.Builder builder = new Request.Builder().url(mockWebServer.url(path));
+        if (post != null) {
+            builder.post(RequestBody.create(MediaType.parse("application/json"), post));
+        }
+        return builder.build();
+    }
+
+    private void execute(Request request) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            assertNotNull(response.body());
+            response.body().string();
+        }
+    }
+}
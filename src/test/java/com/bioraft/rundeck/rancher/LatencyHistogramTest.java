@@ -0,0 +1,53 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMeanMillis(), 0.001);
+        assertEquals(0, snapshot.getPercentileMillis(99), 0.001);
+    }
+
+    @Test
+    public void testRecordFillsBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(150));
+        histogram.record(TimeUnit.MINUTES.toNanos(10));
+        histogram.record(-1);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        long[] buckets = snapshot.getBucketCounts();
+        assertEquals(4, snapshot.getCount());
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[2]);
+        assertEquals(1, buckets[7]);
+        assertEquals(1, buckets[buckets.length - 1]);
+        assertEquals(600000, snapshot.getMaxMillis(), 0.001);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(4));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1500));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(5, snapshot.getPercentileMillis(50), 0.001);
+        assertEquals(5, snapshot.getPercentileMillis(99), 0.001);
+        assertEquals(1500, snapshot.getPercentileMillis(100), 0.001);
+        assertTrue(snapshot.toString().startsWith("count=100 "));
+    }
+}
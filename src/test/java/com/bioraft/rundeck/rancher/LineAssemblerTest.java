@@ -0,0 +1,89 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LineAssemblerTest {
+
+    private final LineAssembler subject = new LineAssembler();
+
+    private final List<String> lines = new ArrayList<>();
+
+    @Test
+    public void splitsLines() {
+        feed("one\ntwo\r\nthree\rfour\n\nfive");
+        assertEquals(Arrays.asList("one", "two", "three", "four", ""), lines);
+        subject.flush(lines::add);
+        assertEquals("five", lines.get(5));
+    }
+
+    @Test
+    public void keepsPartialLines() {
+        feed("first ha");
+        feed("lf\nsecond");
+        feed(" half\n");
+        assertEquals(Arrays.asList("first half", "second half"), lines);
+    }
+
+    @Test
+    public void keepsCharactersSplitAcrossFrames() {
+        byte[] bytes = "\u00e9\u20ac\ud83d\ude00\n".getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            subject.feed(ByteBuffer.wrap(new byte[]{b}), lines::add);
+        }
+        assertEquals(Collections.singletonList("\u00e9\u20ac\ud83d\ude00"), lines);
+    }
+
+    @Test
+    public void crlfSplitAcrossFramesIsOneTerminator() {
+        feed("one\r");
+        feed("\ntwo\n");
+        assertEquals(Arrays.asList("one", "two"), lines);
+    }
+
+    @Test
+    public void malformedInputIsReplaced() {
+        subject.feed(ByteBuffer.wrap(new byte[]{'a', (byte) 0xff, 'b', '\n'}), lines::add);
+        assertEquals(Collections.singletonList("a\ufffdb"), lines);
+    }
+
+    @Test
+    public void truncatedCharacterIsReplacedAtEnd() {
+        subject.feed(ByteBuffer.wrap(new byte[]{'a', (byte) 0xe2, (byte) 0x82}), lines::add);
+        subject.flush(lines::add);
+        assertEquals(Collections.singletonList("a\ufffd"), lines);
+    }
+
+    @Test
+    public void longLinesAreEmittedInPieces() {
+        char[] text = new char[LineAssembler.MAX_LINE_CHARS + 10];
+        Arrays.fill(text, 'x');
+        feed(new String(text));
+        assertEquals(1, lines.size());
+        assertEquals(LineAssembler.MAX_LINE_CHARS, lines.get(0).length());
+        subject.flush(lines::add);
+        assertEquals(10, lines.get(1).length());
+    }
+
+    @Test
+    public void resetDropsPartialLine() {
+        feed("dropped");
+        subject.reset();
+        feed("kept\n");
+        assertEquals(Collections.singletonList("kept"), lines);
+        subject.flush(lines::add);
+        assertEquals(1, lines.size());
+    }
+
+    private void feed(String text) {
+        subject.feed(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), lines::add);
+    }
+}
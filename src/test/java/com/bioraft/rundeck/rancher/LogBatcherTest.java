@@ -0,0 +1,131 @@
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.dtolabs.rundeck.core.Constants.ERR_LEVEL;
+import static com.dtolabs.rundeck.core.Constants.INFO_LEVEL;
+import static com.dtolabs.rundeck.core.Constants.WARN_LEVEL;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LogBatcherTest {
+
+    @Mock
+    ExecutionListener listener;
+
+    @Test
+    public void linesOfOneLevelAreJoined() {
+        LogBatcher subject = new LogBatcher(listener, 1000, 10000);
+        subject.log(INFO_LEVEL, "one");
+        subject.log(INFO_LEVEL, "");
+        subject.log(INFO_LEVEL, "three");
+        subject.close();
+        verify(listener, times(1)).log(INFO_LEVEL, "one\n\nthree");
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void levelChangesKeepOrder() {
+        LogBatcher subject = new LogBatcher(listener, 1000, 10000);
+        subject.log(INFO_LEVEL, "out1");
+        subject.log(INFO_LEVEL, "out2");
+        subject.log(WARN_LEVEL, "err");
+        subject.log(INFO_LEVEL, "out3");
+        subject.close();
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).log(INFO_LEVEL, "out1\nout2");
+        inOrder.verify(listener).log(WARN_LEVEL, "err");
+        inOrder.verify(listener).log(INFO_LEVEL, "out3");
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void batchesAreLimitedInSize() {
+        LogBatcher subject = new LogBatcher(listener, 10, 10000);
+        subject.log(INFO_LEVEL, "12345");
+        subject.log(INFO_LEVEL, "6789");
+        subject.log(INFO_LEVEL, "abcd");
+        subject.close();
+        verify(listener).log(INFO_LEVEL, "12345\n6789");
+        verify(listener).log(INFO_LEVEL, "abcd");
+    }
+
+    @Test
+    public void batchesAreLimitedInTime() {
+        LogBatcher subject = new LogBatcher(listener, 1000, 50);
+        subject.log(INFO_LEVEL, "waiting");
+        verify(listener, timeout(2000)).log(INFO_LEVEL, "waiting");
+        subject.close();
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void slowListenerBlocksProducer() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(listener).log(anyInt(), anyString());
+        LogBatcher subject = new LogBatcher(listener, 1, 0);
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 10; i++) {
+                subject.log(INFO_LEVEL, "line " + i);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        release.countDown();
+        producer.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(producer.isAlive());
+        subject.close();
+        verify(listener, times(10)).log(eq(INFO_LEVEL), startsWith("line "));
+    }
+
+    @Test
+    public void listenerFailuresAreCountedAndDeliveryGoesOn() {
+        doThrow(new IllegalStateException("closed")).doNothing().when(listener).log(anyInt(), anyString());
+        LogBatcher subject = new LogBatcher(listener, 1000, 10000);
+        subject.log(INFO_LEVEL, "lost");
+        subject.log(WARN_LEVEL, "kept");
+        subject.close();
+        verify(listener).log(WARN_LEVEL, "kept");
+        assertEquals(1, subject.getFailures());
+        verify(listener).log(ERR_LEVEL, "Output was lost: Rundeck failed to log 1 batch(es) of lines");
+    }
+
+    @Test
+    public void batchersShareOneTimerThread() {
+        LogBatcher first = new LogBatcher(listener, 1000, 10);
+        LogBatcher second = new LogBatcher(listener, 1000, 10);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> threads.add(Thread.currentThread().getName())).when(listener).log(anyInt(), anyString());
+        first.log(INFO_LEVEL, "one");
+        second.log(INFO_LEVEL, "two");
+        verify(listener, timeout(2000).times(2)).log(eq(INFO_LEVEL), anyString());
+        assertEquals(Collections.singleton("rancher-log-batcher"), threads);
+    }
+
+    @Test
+    public void linesAfterCloseAreSentDirectly() {
+        LogBatcher subject = new LogBatcher(listener);
+        subject.close();
+        subject.close();
+        subject.log(WARN_LEVEL, "late");
+        verify(listener).log(WARN_LEVEL, "late");
+    }
+}
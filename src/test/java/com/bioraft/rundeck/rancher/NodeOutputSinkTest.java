@@ -0,0 +1,171 @@
+package com.bioraft.rundeck.rancher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static com.dtolabs.rundeck.core.Constants.INFO_LEVEL;
+import static com.dtolabs.rundeck.core.Constants.WARN_LEVEL;
+import static org.junit.Assert.*;
+
+public class NodeOutputSinkTest {
+
+    Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("node-output");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void linesAreWrittenWithTheirLevel() throws IOException {
+        NodeOutputSink subject = NodeOutputSink.forNode(directory, "dev_web-1", 0, 5);
+        subject.write(INFO_LEVEL, "out");
+        subject.write(WARN_LEVEL, "err");
+        // Buffered until flushed.
+        assertFalse(Files.exists(subject.getPath()) && Files.size(subject.getPath()) > 0);
+        subject.flush();
+
+        assertEquals(directory.resolve("dev_web-1.log").toAbsolutePath(), subject.getPath());
+        assertEquals("NORMAL out\nWARN err\n", read(subject.getPath()));
+    }
+
+    @Test
+    public void laterCommandsAppend() throws IOException {
+        NodeOutputSink subject = NodeOutputSink.forNode(directory, "node", 0, 5);
+        subject.write(INFO_LEVEL, "first");
+        subject.flush();
+        subject.write(INFO_LEVEL, "second");
+        subject.flush();
+        assertEquals("NORMAL first\nNORMAL second\n", read(subject.getPath()));
+    }
+
+    @Test
+    public void sinksAreSharedByNode() {
+        assertSame(NodeOutputSink.forNode(directory, "node", 0, 5), NodeOutputSink.forNode(directory, "node", 0, 5));
+        assertNotSame(NodeOutputSink.forNode(directory, "node", 0, 5), NodeOutputSink.forNode(directory, "other", 0, 5));
+    }
+
+    @Test
+    public void bufferIsFreedOnFlush() throws IOException {
+        NodeOutputSink subject = NodeOutputSink.forNode(directory, "buffer", 0, 5);
+        assertFalse(subject.isBuffered());
+        subject.write(INFO_LEVEL, "line");
+        assertTrue(subject.isBuffered());
+        subject.flush();
+        assertFalse(subject.isBuffered());
+    }
+
+    @Test
+    public void idleSinksAreEvicted() throws IOException {
+        NodeOutputSink idle = NodeOutputSink.forNode(directory, "idle", 0, 5);
+        NodeOutputSink open = NodeOutputSink.forNode(directory, "open", 0, 5);
+        idle.write(INFO_LEVEL, "done");
+        idle.flush();
+        open.write(INFO_LEVEL, "running");
+        int count = NodeOutputSink.count();
+
+        NodeOutputSink.evictIdle(System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+        assertTrue(NodeOutputSink.count() < count);
+        assertNotSame(idle, NodeOutputSink.forNode(directory, "idle", 0, 5));
+        assertSame(open, NodeOutputSink.forNode(directory, "open", 0, 5));
+        open.flush();
+        assertEquals("NORMAL done\n", read(idle.getPath()));
+    }
+
+    @Test
+    public void evictedSinksWriteThroughTheCurrentSink() throws IOException {
+        NodeOutputSink evicted = NodeOutputSink.forNode(directory, "late", 0, 5);
+        evicted.write(INFO_LEVEL, "first");
+        evicted.flush();
+        NodeOutputSink.evictIdle(System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+
+        evicted.write(INFO_LEVEL, "late");
+        NodeOutputSink current = NodeOutputSink.forNode(directory, "late", 0, 5);
+        assertNotSame(evicted, current);
+        assertTrue(current.isBuffered());
+        evicted.flush();
+        assertFalse(current.isBuffered());
+        assertEquals("NORMAL first\nNORMAL late\n", read(current.getPath()));
+    }
+
+    @Test
+    public void limitsAreUpdatedOnEachCall() throws IOException {
+        NodeOutputSink subject = NodeOutputSink.forNode(directory, "limits", 0, 5);
+        subject.write(INFO_LEVEL, "line 0");
+        subject.flush();
+        assertSame(subject, NodeOutputSink.forNode(directory, "limits", 20, 1));
+        subject.write(INFO_LEVEL, "line 1");
+        subject.flush();
+
+        assertEquals("NORMAL line 1\n", read(subject.getPath()));
+        assertEquals("NORMAL line 0\n", gunzip(subject.getPath().resolveSibling("limits.log.1.gz")));
+    }
+
+    @Test
+    public void unsafeNodeNamesAreReplaced() {
+        assertEquals("env_stack_.._svc.log", NodeOutputSink.fileName("env/stack/../svc"));
+    }
+
+    @Test
+    public void fullFilesAreCompressed() throws IOException {
+        NodeOutputSink subject = NodeOutputSink.forNode(directory, "rotating", 30, 2);
+        // Each line is 14 bytes, so two fit in a file.
+        for (int i = 0; i < 7; i++) {
+            subject.write(INFO_LEVEL, "line " + i);
+        }
+        subject.flush();
+
+        Path log = subject.getPath();
+        assertEquals("NORMAL line 6\n", read(log));
+        assertEquals("NORMAL line 4\nNORMAL line 5\n", gunzip(log.resolveSibling("rotating.log.1.gz")));
+        assertEquals("NORMAL line 2\nNORMAL line 3\n", gunzip(log.resolveSibling("rotating.log.2.gz")));
+        assertFalse(Files.exists(log.resolveSibling("rotating.log.3.gz")));
+    }
+
+    @Test
+    public void longLinesBypassTheBuffer() throws IOException {
+        NodeOutputSink subject = NodeOutputSink.forNode(directory, "long", 0, 5);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            line.append('x');
+        }
+        subject.write(INFO_LEVEL, "short");
+        subject.write(INFO_LEVEL, line.toString());
+        subject.flush();
+        assertEquals("NORMAL short\nNORMAL " + line + "\n", read(subject.getPath()));
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    private static String gunzip(Path path) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,861 @@
+package com.bioraft.rundeck.rancher;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static com.bioraft.rundeck.rancher.Constants.STDERR_TOKEN;
+
+/**
+ * An in-process Rancher v2-beta API for tests, benchmarks and load tests, built on MockWebServer.
+ *
+ * Serves one environment with paginated containers, services and stacks; service actions with state
+ * transitions; and execute tokens whose websockets stream Docker-multiplexed frames. Commands sent by the
+ * node executor and file copier are understood well enough to keep PID files and copied files in a simulated
+ * container file system. Latency, error rate and data sizes are configurable.
+ *
+ * @code
+ * try (RancherApiSimulator rancher = new RancherApiSimulator().setContainers(500).setLatency(20)) {
+ *     rancher.start();
+ *     HttpClient client = new HttpClient();
+ *     JsonNode page = client.get(rancher.projectUrl() + "/containers");
+ * }
+ * @code
+ */
+public class RancherApiSimulator extends Dispatcher implements Closeable {
+
+    public static final String PROJECT_ID = "1a10";
+
+    public static final int STDOUT = 1;
+    public static final int STDERR = 2;
+
+    // The wrapper built by RancherWebSocketListener: records the PID, runs the command, then records exit status.
+    private static final Pattern JOB_WRAPPER = Pattern.compile("^printf \\$\\$ >>(\\S+); \\( (.*) \\)",
+            Pattern.DOTALL);
+    private static final Pattern EXIT_STATUS = Pattern.compile("printf '%s %s %s\\\\n' (\\S+) \\$\\$ \\$rc$");
+    private static final Pattern HEREDOC = Pattern.compile("^cat <<'([^']+)'(>>?)(\\S+)\n(.*)\n\\1$",
+            Pattern.DOTALL);
+    private static final Pattern DECODE = Pattern.compile("^base64 -d (\\S+)( \\| gunzip)? > (\\S+); rm \\S+$");
+    // An upload through STDIN: copies a number of bytes to a file, then acknowledges with status and size.
+    private static final Pattern STDIN_PROBE = Pattern.compile("^head -c (\\d+) \\| wc -c$");
+
+    private static final Pattern STDIN_UPLOAD = Pattern.compile(
+            "^head -c (\\d+)( \\| gunzip)? > (\\S+); rc=\\$\\?; printf '%s %s %s\\\\n' (\\S+) \\$rc \\$\\(wc -c < \\S+\\)$");
+    // A command sent to a shell session: runs the command with STDIN closed, then prints its exit status.
+    private static final Pattern SESSION_COMMAND = Pattern.compile("^(\\{ )?\\( (.*) \\) </dev/null", Pattern.DOTALL);
+
+    private final MockWebServer server = new MockWebServer();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Random random = new Random(1);
+
+    private final Map<String, ObjectNode> containers = new LinkedHashMap<>();
+    private final Map<String, ObjectNode> services = new LinkedHashMap<>();
+    private final Map<String, ObjectNode> stacks = new LinkedHashMap<>();
+    private final Map<String, Transition> transitions = new ConcurrentHashMap<>();
+    private final Map<String, String[]> tokens = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextId = new AtomicInteger(1000);
+    private final AtomicInteger execCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final AtomicInteger sessionCommandCount = new AtomicInteger();
+    private final AtomicLong stdinBytes = new AtomicLong();
+
+    private int containerCount = 10;
+    private int serviceCount = 5;
+    private int stackCount = 2;
+    private int pageSize = 100;
+    private int transitionPolls = 1;
+    private volatile long latencyMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile int outputBytes = 1024;
+    private volatile int frameSize = 4096;
+    private volatile double stderrRatio = 0;
+    private volatile int exitCode = 0;
+    private volatile boolean base64Messages = true;
+    private volatile boolean stdin = true;
+    private volatile boolean gunzip = true;
+
+    /**
+     * Number of containers in the environment; they are spread evenly over the services.
+     */
+    public RancherApiSimulator setContainers(int count) {
+        containerCount = count;
+        return this;
+    }
+
+    public RancherApiSimulator setServices(int count) {
+        serviceCount = Math.max(1, count);
+        return this;
+    }
+
+    public RancherApiSimulator setStacks(int count) {
+        stackCount = Math.max(1, count);
+        return this;
+    }
+
+    /**
+     * Default page size for collections, used when the client does not send "limit".
+     */
+    public RancherApiSimulator setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, pageSize);
+        return this;
+    }
+
+    /**
+     * Number of GETs for which a service stays in a transitioning state (e.g. "upgrading") after an action.
+     */
+    public RancherApiSimulator setTransitionPolls(int polls) {
+        transitionPolls = Math.max(0, polls);
+        return this;
+    }
+
+    /**
+     * Delay before the headers of every response, including the websocket handshake.
+     */
+    public RancherApiSimulator setLatency(long millis) {
+        latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Fraction (0 to 1) of API requests answered with HTTP 500. Websocket handshakes never fail.
+     */
+    public RancherApiSimulator setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public RancherApiSimulator setSeed(long seed) {
+        random.setSeed(seed);
+        return this;
+    }
+
+    /**
+     * Approximate number of bytes of output produced by commands other than file operations.
+     */
+    public RancherApiSimulator setOutputBytes(int bytes) {
+        outputBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Maximum payload of a Docker frame; lines are never split unless they are longer than this.
+     */
+    public RancherApiSimulator setFrameSize(int bytes) {
+        frameSize = Math.max(1, bytes);
+        return this;
+    }
+
+    /**
+     * Fraction (0 to 1) of output lines written to STDERR.
+     */
+    public RancherApiSimulator setStderrRatio(double ratio) {
+        stderrRatio = ratio;
+        return this;
+    }
+
+    public RancherApiSimulator setExitCode(int exitCode) {
+        this.exitCode = exitCode;
+        return this;
+    }
+
+    /**
+     * Rancher sends Base64-encoded text messages; set to false to send binary messages instead.
+     */
+    public RancherApiSimulator setBase64Messages(boolean base64Messages) {
+        this.base64Messages = base64Messages;
+        return this;
+    }
+
+    /**
+     * Set to false to simulate a Rancher version that does not pass web socket messages to a command's STDIN.
+     */
+    public RancherApiSimulator setStdin(boolean stdin) {
+        this.stdin = stdin;
+        return this;
+    }
+
+    /**
+     * Set to false to simulate containers without gunzip.
+     */
+    public RancherApiSimulator setGunzip(boolean gunzip) {
+        this.gunzip = gunzip;
+        return this;
+    }
+
+    public RancherApiSimulator start() throws IOException {
+        server.setDispatcher(this);
+        server.start();
+        populate();
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    public MockWebServer getServer() {
+        return server;
+    }
+
+    /**
+     * @return The API end point, like "http://localhost:1234/v2-beta".
+     */
+    public String endpoint() {
+        String url = server.url("/v2-beta").toString();
+        return url;
+    }
+
+    public String projectUrl() {
+        return endpoint() + "/projects/" + PROJECT_ID;
+    }
+
+    public List<String> containerIds() {
+        return new ArrayList<>(containers.keySet());
+    }
+
+    public List<String> serviceIds() {
+        return new ArrayList<>(services.keySet());
+    }
+
+    public JsonNode container(String id) {
+        return containers.get(id).deepCopy();
+    }
+
+    public JsonNode service(String id) {
+        return services.get(id).deepCopy();
+    }
+
+    public String executeUrl(String containerId) {
+        return containers.get(containerId).path("actions").path(Constants.NODE_ACTION_EXECUTE).asText();
+    }
+
+    /**
+     * Gets a file from the simulated container file system (shared by all containers).
+     *
+     * @return The file contents or null if it does not exist.
+     */
+    public byte[] getFile(String path) {
+        return files.get(path);
+    }
+
+    public void putFile(String path, byte[] contents) {
+        files.put(path, contents);
+    }
+
+    public int getExecCount() {
+        return execCount.get();
+    }
+
+    public int getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return The number of bytes uploaded through the STDIN of commands.
+     */
+    public long getStdinBytes() {
+        return stdinBytes.get();
+    }
+
+    /**
+     * @return The number of commands run in shell sessions.
+     */
+    public int getSessionCommandCount() {
+        return sessionCommandCount.get();
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        MockResponse response;
+        String path = request.getRequestUrl().encodedPath().replaceAll("/+$", "");
+        if (path.equals("/v1/exec")) {
+            response = execute(request.getRequestUrl().queryParameter("token"));
+        } else if (errorRate > 0 && random.nextDouble() < errorRate) {
+            failureCount.incrementAndGet();
+            response = error(500, "InternalServerError", "Simulated failure");
+        } else {
+            try {
+                response = api(request, path);
+            } catch (IOException e) {
+                response = error(422, "InvalidBodyContent", e.getMessage());
+            }
+        }
+        return response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized MockResponse api(RecordedRequest request, String path) throws IOException {
+        String prefix = "/v2-beta/projects/" + PROJECT_ID;
+        if (!path.startsWith(prefix)) {
+            return error(404, "NotFound", "Not found");
+        }
+        String[] parts = path.substring(prefix.length()).replaceFirst("^/", "").split("/");
+        String action = request.getRequestUrl().queryParameter("action");
+        boolean isPost = request.getMethod().equals("POST");
+        String type = parts[0];
+        Map<String, ObjectNode> resources = type.equals("containers") ? containers
+                : type.equals("services") ? services : type.equals("stacks") ? stacks : null;
+
+        if (type.isEmpty()) {
+            return json(mapper.createObjectNode().put("id", PROJECT_ID).put("type", "project")
+                    .put("name", "Simulated"));
+        } else if (resources == null) {
+            return error(404, "NotFound", "Not found");
+        } else if (parts.length == 1 && isPost) {
+            return create(type, resources, mapper.readTree(request.getBody().readUtf8()));
+        } else if (parts.length == 1) {
+            return collection(request, type, resources.values());
+        }
+
+        ObjectNode resource = resources.get(parts[1]);
+        if (resource == null) {
+            return error(404, "NotFound", "Not found");
+        } else if (parts.length == 3 && type.equals("containers") && parts[2].equals("services")) {
+            String serviceId = resource.path("serviceIds").path(0).asText();
+            List<ObjectNode> owner = new ArrayList<>();
+            if (services.containsKey(serviceId)) {
+                owner.add(advance(services.get(serviceId)));
+            }
+            return collection(request, "services", owner);
+        } else if (isPost && Constants.NODE_ACTION_EXECUTE.equals(action)) {
+            return token(request);
+        } else if (isPost && action != null) {
+            return type.equals("services") ? serviceAction(resource, action)
+                    : error(422, "InvalidAction", "Invalid action " + action);
+        } else if (type.equals("services")) {
+            return json(advance(resource));
+        }
+        return json(resource);
+    }
+
+    private MockResponse collection(RecordedRequest request, String type, Iterable<ObjectNode> resources) {
+        String limitParameter = request.getRequestUrl().queryParameter("limit");
+        String marker = request.getRequestUrl().queryParameter("marker");
+        String name = request.getRequestUrl().queryParameter("name");
+        int limit = limitParameter == null ? pageSize : Integer.parseInt(limitParameter);
+        int offset = marker == null ? 0 : Integer.parseInt(marker.substring(1));
+
+        List<ObjectNode> matches = new ArrayList<>();
+        for (ObjectNode resource : resources) {
+            if (name == null || name.equals(resource.path("name").asText())) {
+                matches.add(resource);
+            }
+        }
+
+        ObjectNode root = mapper.createObjectNode().put("type", "collection").put("resourceType", type);
+        ArrayNode data = root.putArray("data");
+        for (int i = offset; i < Math.min(offset + limit, matches.size()); i++) {
+            data.add(type.equals("services") ? advance(matches.get(i)) : matches.get(i));
+        }
+        ObjectNode pagination = root.putObject(Constants.JSON_PAGINATION).put("limit", limit)
+                .put("total", matches.size());
+        if (offset + limit < matches.size()) {
+            pagination.put("partial", true).put("next", request.getRequestUrl().newBuilder()
+                    .setQueryParameter("limit", Integer.toString(limit))
+                    .setQueryParameter("marker", "m" + (offset + limit)).build().toString());
+        }
+        return json(root);
+    }
+
+    private MockResponse create(String type, Map<String, ObjectNode> resources, JsonNode body) {
+        String name = body.path("name").asText();
+        for (ObjectNode resource : resources.values()) {
+            if (resource.path("name").asText().equals(name)) {
+                return error(422, "NotUnique", "name is not unique");
+            }
+        }
+        ObjectNode resource;
+        if (type.equals("stacks")) {
+            resource = stack("1st" + nextId.incrementAndGet(), name);
+        } else if (type.equals("services")) {
+            resource = service("1s" + nextId.incrementAndGet(), name, body.path("stackId").asText());
+            if (body.has(Constants.LAUNCH_CONFIG)) {
+                resource.set(Constants.LAUNCH_CONFIG, body.get(Constants.LAUNCH_CONFIG));
+            }
+        } else {
+            return error(405, "MethodNotAllowed", "Method not allowed");
+        }
+        resources.put(resource.get("id").asText(), resource);
+        return json(resource, 201);
+    }
+
+    private MockResponse serviceAction(ObjectNode service, String action) {
+        String state = service.path(Constants.NODE_STATE).asText();
+        String transitioning;
+        String target;
+        if (action.equals("activate") && state.equals("inactive")) {
+            transitioning = "activating";
+            target = "active";
+        } else if (action.equals("deactivate") && state.equals("active")) {
+            transitioning = "deactivating";
+            target = "inactive";
+        } else if (action.equals("restart") && state.equals("active")) {
+            transitioning = "restarting";
+            target = "active";
+        } else if (action.equals("upgrade") && state.equals("active")) {
+            transitioning = "upgrading";
+            target = "upgraded";
+        } else if (action.equals("finishupgrade") && state.equals("upgraded")) {
+            transitioning = "finishing-upgrade";
+            target = "active";
+        } else {
+            return error(422, "InvalidState", "Cannot " + action + " a service that is " + state);
+        }
+        String id = service.get("id").asText();
+        if (transitionPolls == 0) {
+            setState(service, target);
+        } else {
+            setState(service, transitioning);
+            transitions.put(id, new Transition(target, transitionPolls));
+        }
+        return json(service, 202);
+    }
+
+    /**
+     * Moves a transitioning service one poll closer to its target state.
+     */
+    private ObjectNode advance(ObjectNode service) {
+        String id = service.get("id").asText();
+        Transition transition = transitions.get(id);
+        if (transition != null && --transition.polls <= 0) {
+            transitions.remove(id);
+            setState(service, transition.target);
+        }
+        return service;
+    }
+
+    private MockResponse token(RecordedRequest request) throws IOException {
+        JsonNode body = mapper.readTree(request.getBody().readUtf8());
+        List<String> command = new ArrayList<>();
+        body.path("command").forEach(atom -> command.add(atom.asText()));
+        String token = "token" + nextId.incrementAndGet();
+        tokens.put(token, command.toArray(new String[0]));
+        String url = server.url("/v1/exec/").toString().replaceFirst("^http", "ws");
+        return json(mapper.createObjectNode().put("url", url).put("token", token));
+    }
+
+    private MockResponse execute(String token) {
+        String[] command = token == null ? null : tokens.remove(token);
+        if (command == null) {
+            return error(401, "Unauthorized", "Invalid token");
+        }
+        execCount.incrementAndGet();
+        if (command.length == 1 && (command[0].equals("sh") || command[0].equals("bash"))) {
+            return new MockResponse().withWebSocketUpgrade(new ShellSession());
+        }
+        Matcher probe = command.length == 3 ? STDIN_PROBE.matcher(command[2]) : null;
+        if (probe != null && probe.find()) {
+            return new MockResponse().withWebSocketUpgrade(
+                    new StdinUpload(Integer.parseInt(probe.group(1)), false, null, null));
+        }
+        Matcher upload = command.length == 3 ? STDIN_UPLOAD.matcher(command[2]) : null;
+        if (upload != null && upload.find()) {
+            return new MockResponse().withWebSocketUpgrade(
+                    new StdinUpload(Integer.parseInt(upload.group(1)), upload.group(2) != null, upload.group(3),
+                            upload.group(4)));
+        }
+        List<byte[]> frames = run(command);
+        return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                send(webSocket, frames);
+                webSocket.close(1000, null);
+            }
+        });
+    }
+
+    private void send(WebSocket webSocket, List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            if (base64Messages) {
+                webSocket.send(Base64.getEncoder().encodeToString(frame));
+            } else {
+                webSocket.send(ByteString.of(frame));
+            }
+        }
+    }
+
+    /**
+     * Runs a command written to a shell session's STDIN.
+     *
+     * @return The Docker frames to stream back, ending with the exit status line.
+     */
+    List<byte[]> runInSession(String line) {
+        FrameWriter out = new FrameWriter();
+        Matcher matcher = SESSION_COMMAND.matcher(line);
+        Matcher status = EXIT_STATUS.matcher(line);
+        if (!matcher.find() || !status.find()) {
+            out.write(STDERR, "sh: syntax error\n");
+            return out.frames();
+        }
+        sessionCommandCount.incrementAndGet();
+        boolean noop = matcher.group(2).equals("true");
+        if (!noop) {
+            generateOutput(out, line.contains(STDERR_TOKEN) ? STDERR_TOKEN : null);
+        }
+        out.write(STDOUT, status.group(1) + " 100 " + (noop ? 0 : exitCode) + "\n");
+        return out.frames();
+    }
+
+    /**
+     * Runs a command against the simulated file system.
+     *
+     * @return The Docker frames to stream back.
+     */
+    List<byte[]> run(String[] command) {
+        String script = command.length == 3 && command[1].equals("-c") ? command[2] : String.join(" ", command);
+        FrameWriter out = new FrameWriter();
+
+        Matcher matcher = JOB_WRAPPER.matcher(script);
+        if (matcher.find()) {
+            String pid = Integer.toString(100 + execCount.get());
+            files.put(matcher.group(1), (pid + " " + exitCode).getBytes(StandardCharsets.UTF_8));
+            // The bash wrapper sends STDERR through STDOUT with a prefix token; the sh wrapper leaves it alone.
+            generateOutput(out, script.contains(STDERR_TOKEN) ? STDERR_TOKEN : null);
+            Matcher status = EXIT_STATUS.matcher(script);
+            if (status.find()) {
+                out.write(STDOUT, status.group(1) + " " + pid + " " + exitCode + "\n");
+            }
+            return out.frames();
+        }
+
+        if (command.length == 2 && command[0].equals("cat")) {
+            byte[] contents = files.get(command[1]);
+            if (contents == null) {
+                out.write(STDERR, "cat: " + command[1] + ": No such file or directory\n");
+            } else {
+                out.write(STDOUT, contents);
+            }
+            return out.frames();
+        }
+
+        matcher = HEREDOC.matcher(script);
+        if (matcher.find()) {
+            byte[] text = (matcher.group(4) + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] existing = matcher.group(2).equals(">>") ? files.get(matcher.group(3)) : null;
+            files.put(matcher.group(3), existing == null ? text : concat(existing, text));
+            return out.frames();
+        }
+
+        matcher = DECODE.matcher(script);
+        if (matcher.find()) {
+            byte[] encoded = files.remove(matcher.group(1));
+            String text = encoded == null ? "" : new String(encoded, StandardCharsets.UTF_8).replaceAll("\\s", "");
+            byte[] decoded = Base64.getDecoder().decode(text);
+            files.put(matcher.group(3), matcher.group(2) == null ? decoded : gunzip(decoded));
+            return out.frames();
+        }
+
+        if (script.equals("command -v gunzip")) {
+            if (gunzip) {
+                out.write(STDOUT, "/bin/gunzip\n");
+            }
+            return out.frames();
+        }
+
+        generateOutput(out, null);
+        return out.frames();
+    }
+
+    /**
+     * Produces about outputBytes of numbered lines, some of them on STDERR.
+     *
+     * @param stderrToken If not null, STDERR lines are sent on STDOUT with this prefix.
+     */
+    private void generateOutput(FrameWriter out, String stderrToken) {
+        int written = 0;
+        for (int line = 1; written < outputBytes; line++) {
+            String text = String.format("line %06d of simulated output from the Rancher API simulator%n", line);
+            written += text.length();
+            if (random.nextDouble() >= stderrRatio) {
+                out.write(STDOUT, text);
+            } else if (stderrToken != null) {
+                out.write(STDOUT, stderrToken + text);
+            } else {
+                out.write(STDERR, text);
+            }
+        }
+    }
+
+    private void populate() {
+        containers.clear();
+        services.clear();
+        stacks.clear();
+        for (int k = 0; k < stackCount; k++) {
+            ObjectNode stack = stack("1st" + (10 + k), "stack-" + k);
+            stacks.put(stack.get("id").asText(), stack);
+        }
+        List<String> stackIds = new ArrayList<>(stacks.keySet());
+        for (int j = 0; j < serviceCount; j++) {
+            String stackId = stackIds.get(j % stackCount);
+            ObjectNode service = service("1s" + (100 + j), "service-" + j, stackId);
+            services.put(service.get("id").asText(), service);
+            ((ArrayNode) stacks.get(stackId).get("serviceIds")).add(service.get("id").asText());
+        }
+        List<String> serviceIds = new ArrayList<>(services.keySet());
+        for (int i = 0; i < containerCount; i++) {
+            ObjectNode service = services.get(serviceIds.get(i % serviceCount));
+            String stackName = stacks.get(service.get("stackId").asText()).get("name").asText();
+            ObjectNode container = container("1i" + (1000 + i), service, stackName, i / serviceCount + 1);
+            containers.put(container.get("id").asText(), container);
+            ((ArrayNode) service.get("instanceIds")).add(container.get("id").asText());
+        }
+    }
+
+    private ObjectNode container(String id, ObjectNode service, String stackName, int index) {
+        String self = projectUrl() + "/containers/" + id;
+        String serviceName = service.get("name").asText();
+        ObjectNode container = mapper.createObjectNode().put("id", id).put("type", "container")
+                .put("kind", "container").put("name", stackName + "-" + serviceName + "-" + index)
+                .put("state", "running").put("accountId", PROJECT_ID).put("hostId", "1h1")
+                .put("externalId", Integer.toHexString(id.hashCode()))
+                .put("imageUuid", service.path(Constants.LAUNCH_CONFIG).path("imageUuid").asText());
+        container.putArray("serviceIds").add(service.get("id").asText());
+        container.putObject("labels").put("io.rancher.stack.name", stackName)
+                .put("io.rancher.stack_service.name", stackName + "/" + serviceName);
+        container.putObject("links").put("self", self).put("services", self + "/services");
+        container.putObject("actions").put(Constants.NODE_ACTION_EXECUTE, self + "/?action=execute");
+        return container;
+    }
+
+    private ObjectNode service(String id, String name, String stackId) {
+        ObjectNode service = mapper.createObjectNode().put("id", id).put("type", "service").put("kind", "service")
+                .put("name", name).put("accountId", PROJECT_ID).put("stackId", stackId).put("scale", 1);
+        service.putArray("instanceIds");
+        ObjectNode launchConfig = service.putObject(Constants.LAUNCH_CONFIG)
+                .put("imageUuid", "docker:example/" + name + ":1.0");
+        launchConfig.putObject("labels");
+        launchConfig.putObject("environment");
+        service.putObject("links").put("self", projectUrl() + "/services/" + id)
+                .put("instances", projectUrl() + "/services/" + id + "/instances");
+        setState(service, "active");
+        return service;
+    }
+
+    private ObjectNode stack(String id, String name) {
+        ObjectNode stack = mapper.createObjectNode().put("id", id).put("type", "stack").put("kind", "stack")
+                .put("name", name).put("state", "active").put("accountId", PROJECT_ID);
+        stack.putArray("serviceIds");
+        stack.putObject("links").put("self", projectUrl() + "/stacks/" + id);
+        return stack;
+    }
+
+    /**
+     * Sets service state and the actions Rancher allows in that state.
+     */
+    private void setState(ObjectNode service, String state) {
+        service.put("state", state);
+        service.put("transitioning", state.endsWith("ing") ? "yes" : "no");
+        String self = service.path("links").path("self").asText();
+        ObjectNode actions = service.putObject("actions");
+        List<String> allowed = new ArrayList<>();
+        if (state.equals("active")) {
+            allowed.add("upgrade");
+            allowed.add("restart");
+            allowed.add("deactivate");
+        } else if (state.equals("inactive")) {
+            allowed.add("activate");
+        } else if (state.equals("upgraded")) {
+            allowed.add("finishupgrade");
+            allowed.add("rollback");
+        }
+        allowed.add("update");
+        allowed.add("remove");
+        for (String action : allowed) {
+            actions.put(action, self + "/?action=" + action);
+        }
+    }
+
+    private MockResponse json(JsonNode body) {
+        return json(body, 200);
+    }
+
+    private MockResponse json(JsonNode body, int code) {
+        return new MockResponse().setResponseCode(code).setHeader("Content-Type", "application/json")
+                .setBody(body.toString());
+    }
+
+    private MockResponse error(int status, String code, String message) {
+        ObjectNode body = mapper.createObjectNode().put("type", "error").put("status", status).put("code", code)
+                .put("message", message);
+        return json(body, status);
+    }
+
+    private static byte[] gunzip(byte[] compressed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * A shell that reads commands from the Base64 messages Rancher passes to its STDIN.
+     */
+    private class ShellSession extends WebSocketListener {
+        private final StringBuilder stdin = new StringBuilder();
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            stdin.append(new String(Base64.getDecoder().decode(text), StandardCharsets.UTF_8));
+            for (int end = stdin.indexOf("\n"); end >= 0; end = stdin.indexOf("\n")) {
+                String line = stdin.substring(0, end);
+                stdin.delete(0, end + 1);
+                if (line.equals("exit")) {
+                    webSocket.close(1000, null);
+                    return;
+                }
+                send(webSocket, runInSession(line));
+            }
+        }
+    }
+
+    /**
+     * Copies bytes from the Base64 messages Rancher passes to STDIN into a file, as head -c does, decompressing
+     * them if they are piped through gunzip. Without a path, it counts them instead, as wc -c does.
+     */
+    private class StdinUpload extends WebSocketListener {
+        private final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        private final int size;
+        private final boolean compressed;
+        private final String path;
+        private final String marker;
+
+        StdinUpload(int size, boolean compressed, String path, String marker) {
+            this.size = size;
+            this.compressed = compressed;
+            this.path = path;
+            this.marker = marker;
+        }
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            // Without STDIN, head reads nothing.
+            if (size == 0 || !stdin) {
+                finish(webSocket);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            if (contents.size() < size) {
+                byte[] bytes = Base64.getDecoder().decode(text);
+                int length = Math.min(bytes.length, size - contents.size());
+                contents.write(bytes, 0, length);
+                if (path != null) {
+                    stdinBytes.addAndGet(length);
+                }
+                if (contents.size() == size) {
+                    finish(webSocket);
+                }
+            }
+        }
+
+        private void finish(WebSocket webSocket) {
+            FrameWriter out = new FrameWriter();
+            if (path == null) {
+                out.write(STDOUT, contents.size() + "\n");
+            } else {
+                byte[] written = compressed && contents.size() > 0 ? gunzip(contents.toByteArray()) : contents.toByteArray();
+                files.put(path, written);
+                out.write(STDOUT, marker + " 0 " + written.length + "\n");
+            }
+            send(webSocket, out.frames());
+            webSocket.close(1000, null);
+        }
+    }
+
+    private static class Transition {
+        private final String target;
+        private int polls;
+
+        Transition(String target, int polls) {
+            this.target = target;
+            this.polls = polls;
+        }
+    }
+
+    /**
+     * Packs output into Docker frames of at most frameSize bytes, starting a new frame when the stream changes.
+     */
+    private class FrameWriter {
+        private final List<byte[]> frames = new ArrayList<>();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private int pendingStream = STDOUT;
+
+        void write(int stream, String text) {
+            write(stream, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void write(int stream, byte[] bytes) {
+            if (stream != pendingStream || pending.size() + bytes.length > frameSize) {
+                flush();
+            }
+            pendingStream = stream;
+            for (int i = 0; i < bytes.length; i += frameSize) {
+                int length = Math.min(frameSize, bytes.length - i);
+                if (pending.size() + length > frameSize) {
+                    flush();
+                }
+                pending.write(bytes, i, length);
+            }
+        }
+
+        void flush() {
+            if (pending.size() > 0) {
+                frames.add(ByteBuffer.allocate(MessageReader.HEADER_SIZE + pending.size())
+                        .putInt(pendingStream << 24).putInt(pending.size()).put(pending.toByteArray()).array());
+                pending.reset();
+            }
+        }
+
+        List<byte[]> frames() {
+            flush();
+            return frames;
+        }
+    }
+}
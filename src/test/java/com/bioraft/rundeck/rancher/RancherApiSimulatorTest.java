@@ -0,0 +1,513 @@
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import com.fasterxml.jackson.databind.JsonNode;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.bioraft.rundeck.rancher.Constants.STDERR_TOKEN;
+import static com.dtolabs.rundeck.core.Constants.INFO_LEVEL;
+import static com.dtolabs.rundeck.core.Constants.WARN_LEVEL;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RancherApiSimulatorTest {
+
+    RancherApiSimulator rancher;
+
+    HttpClient client;
+
+    @Mock
+    ExecutionListener listener;
+
+    @Before
+    public void setUp() {
+        rancher = new RancherApiSimulator();
+        client = new HttpClient();
+        client.setAccessKey("access");
+        client.setSecretKey("secret");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        rancher.close();
+    }
+
+    @Test
+    public void collectionsArePaginated() throws IOException {
+        rancher.setContainers(25).setServices(4).setStacks(2).setPageSize(10).start();
+        String next = rancher.projectUrl() + "/containers";
+        int pages = 0;
+        int containers = 0;
+        while (next != null) {
+            JsonNode page = client.get(next);
+            pages++;
+            containers += page.path("data").size();
+            next = page.path(Constants.JSON_PAGINATION).path("next").textValue();
+        }
+        assertEquals(3, pages);
+        assertEquals(25, containers);
+        assertEquals(4, client.get(rancher.projectUrl() + "/services").path("data").size());
+        assertEquals(2, client.get(rancher.projectUrl() + "/stacks").path("data").size());
+    }
+
+    @Test
+    public void containersLinkToTheirService() throws IOException {
+        rancher.setContainers(4).setServices(2).start();
+        String containerId = rancher.containerIds().get(1);
+        JsonNode container = client.get(rancher.projectUrl() + "/containers/" + containerId);
+        JsonNode service = client.get(container.path("links").path("services").asText()).path("data").path(0);
+        assertEquals(rancher.serviceIds().get(1), service.path("id").asText());
+        assertTrue(service.path("instanceIds").toString().contains(containerId));
+    }
+
+    @Test
+    public void serviceActionsTransitionState() throws IOException {
+        rancher.setTransitionPolls(2).start();
+        String self = rancher.projectUrl() + "/services/" + rancher.serviceIds().get(0);
+
+        JsonNode service = client.post(client.get(self).path("actions").path("upgrade").asText(), "{}");
+        assertEquals("upgrading", service.path("state").asText());
+        assertEquals("upgrading", client.get(self).path("state").asText());
+        service = client.get(self);
+        assertEquals("upgraded", service.path("state").asText());
+        assertFalse(service.path("actions").has("upgrade"));
+
+        client.post(service.path("actions").path("finishupgrade").asText(), "");
+        client.get(self);
+        assertEquals("active", client.get(self).path("state").asText());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidActionsAreRejected() throws IOException {
+        rancher.setTransitionPolls(0).start();
+        String self = rancher.projectUrl() + "/services/" + rancher.serviceIds().get(0);
+        client.post(client.get(self).path("actions").path("deactivate").asText(), "");
+        client.post(self + "/?action=finishupgrade", "");
+    }
+
+    @Test
+    public void errorRateFailsRequests() throws IOException {
+        rancher.setErrorRate(1).start();
+        try {
+            client.get(rancher.projectUrl());
+            fail("Expected simulated failure");
+        } catch (IOException e) {
+            assertEquals(1, rancher.getFailureCount());
+        }
+    }
+
+    @Test
+    public void latencyDelaysResponses() throws IOException {
+        rancher.setLatency(100).start();
+        long start = System.nanoTime();
+        client.get(rancher.projectUrl());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+    }
+
+    @Test
+    public void runJobStreamsOutputAndRecordsExitStatus() throws IOException, InterruptedException {
+        // 100 lines of 63 bytes, 15 lines per frame.
+        rancher.setOutputBytes(6300).setFrameSize(1000).setStderrRatio(0.25).setExitCode(3).start();
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+
+        String[] command = {"ls"};
+        ExitStatus exitStatus = socket.thisRunJob(url, "access", "secret", command, listener, "/tmp/job", 10);
+        assertEquals(3, exitStatus.getCode());
+
+        ArgumentCaptor<Integer> levels = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<String> messages = ArgumentCaptor.forClass(String.class);
+        verify(listener, atLeastOnce()).log(levels.capture(), messages.capture());
+        int stdout = 0;
+        int stderr = 0;
+        for (int i = 0; i < messages.getAllValues().size(); i++) {
+            String message = messages.getAllValues().get(i);
+            assertFalse(message.contains(Constants.EXIT_STATUS_TOKEN));
+            // Lines are delivered in batches.
+            int lines = message.startsWith("line ") ? message.split("\n").length : 0;
+            stdout += levels.getAllValues().get(i) == INFO_LEVEL ? lines : 0;
+            stderr += levels.getAllValues().get(i) == WARN_LEVEL ? lines : 0;
+        }
+        assertEquals(100, stdout + stderr);
+        assertTrue(stderr > 0);
+        String status = new RancherWebSocketListener().thisGetFile(url, "access", "secret", "/tmp/job.pid");
+        assertTrue(status.endsWith(" 3"));
+        assertEquals(2, rancher.getExecCount());
+    }
+
+    @Test
+    public void nativeStderrRoutesByStream() throws IOException, InterruptedException {
+        rancher.setOutputBytes(6300).setFrameSize(1000).setStderrRatio(0.25).setExitCode(0).start();
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setNativeStderr(true);
+
+        String[] command = {"ls"};
+        assertTrue(socket.thisRunJob(url, "access", "secret", command, listener, "/tmp/job", 10).isSuccess());
+
+        ArgumentCaptor<Integer> levels = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<String> messages = ArgumentCaptor.forClass(String.class);
+        verify(listener, atLeastOnce()).log(levels.capture(), messages.capture());
+        int stdout = 0;
+        int stderr = 0;
+        for (int i = 0; i < messages.getAllValues().size(); i++) {
+            String message = messages.getAllValues().get(i);
+            assertFalse(message.contains(STDERR_TOKEN));
+            int lines = message.startsWith("line ") ? message.split("\n").length : 0;
+            stdout += levels.getAllValues().get(i) == INFO_LEVEL ? lines : 0;
+            stderr += levels.getAllValues().get(i) == WARN_LEVEL ? lines : 0;
+        }
+        assertEquals(100, stdout + stderr);
+        assertTrue(stderr > 0);
+    }
+
+    @Test
+    public void exitStatusSplitAcrossFramesIsFound() throws IOException, InterruptedException {
+        rancher.setOutputBytes(630).setFrameSize(16).setExitCode(0).start();
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+
+        String[] command = {"ls"};
+        ExitStatus exitStatus = socket.thisRunJob(url, "access", "secret", command, listener, "/tmp/job", 10);
+
+        assertTrue(exitStatus.isSuccess());
+        assertEquals(1, rancher.getExecCount());
+        verify(listener, never()).log(anyInt(), contains(Constants.EXIT_STATUS_TOKEN.substring(0, 4)));
+    }
+
+    @Test
+    public void jobRecordsExecutionMetrics() throws IOException, InterruptedException {
+        rancher.setOutputBytes(1000).setFrameSize(100).start();
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        ExecutionMetrics metrics = new ExecutionMetrics();
+        socket.setMetrics(metrics);
+
+        String[] command = {"ls"};
+        socket.thisRunJob(url, "access", "secret", command, listener, "/tmp/job", 10);
+
+        assertTrue(metrics.getNanos(ExecutionMetrics.PHASE_TOKEN) >= 0);
+        assertTrue(metrics.getNanos(ExecutionMetrics.PHASE_CONNECT) >= 0);
+        assertTrue(metrics.getNanos(ExecutionMetrics.PHASE_FIRST_BYTE) >= 0);
+        assertTrue(metrics.getNanos(ExecutionMetrics.PHASE_LOG_DELIVERY) >= 0);
+        // Output plus the exit status line, each frame with an 8 byte header.
+        assertTrue(metrics.getFrames() >= 10);
+        assertTrue(metrics.getBytes() >= 1000 + 8 * metrics.getFrames());
+    }
+
+    @Test
+    public void openCommandsDoNotHoldApiRequestSlots() throws IOException, InterruptedException {
+        rancher.start();
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(1);
+        OkHttpClient transport = new OkHttpClient.Builder().dispatcher(dispatcher).build();
+        RancherWebSocketListener session = new RancherWebSocketListener(transport);
+        session.openSession(rancher.executeUrl(rancher.containerIds().get(0)), "access", "secret");
+        try {
+            // The session's websocket stays open, but other commands still run.
+            RancherWebSocketListener socket = new RancherWebSocketListener(transport);
+            String url = rancher.executeUrl(rancher.containerIds().get(1));
+            assertTrue(socket.thisRunJob(url, "access", "secret", new String[]{"ls"}, listener, "/tmp/job", 5).isSuccess());
+        } finally {
+            session.closeSession();
+        }
+    }
+
+    @Test
+    public void hostIdIsReadFromContainer() throws IOException {
+        rancher.start();
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        assertEquals("1h1", socket.thisGetHostId(url, "access", "secret"));
+        assertNull(socket.thisGetHostId(url.replace(rancher.containerIds().get(0), "1i999999"), "access", "secret"));
+    }
+
+    @Test
+    public void shellSessionRunsConsecutiveCommands() throws IOException, InterruptedException {
+        rancher.setOutputBytes(630).setFrameSize(100).setStderrRatio(0.25).setExitCode(2).start();
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+
+        socket.openSession(url, "access", "secret");
+        String[] command = {"ls"};
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, socket.runInSession(command, listener, 10).getCode());
+        }
+        assertTrue(socket.isSessionOpen());
+        socket.closeSession();
+
+        assertEquals(1, rancher.getExecCount());
+        // The handshake and three commands.
+        assertEquals(4, rancher.getSessionCommandCount());
+        ArgumentCaptor<String> messages = ArgumentCaptor.forClass(String.class);
+        verify(listener, atLeastOnce()).log(anyInt(), messages.capture());
+        int lines = 0;
+        for (String message : messages.getAllValues()) {
+            assertFalse(message.contains(Constants.EXIT_STATUS_TOKEN));
+            assertFalse(message.contains(STDERR_TOKEN));
+            lines += message.split("\n").length;
+        }
+        assertEquals(30, lines);
+        verify(listener, atLeastOnce()).log(eq(WARN_LEVEL), anyString());
+        assertFalse(socket.isSessionOpen());
+    }
+
+    @Test
+    public void putFileAssemblesCopy() throws IOException, InterruptedException {
+        rancher.start();
+        byte[] contents = new byte[20000];
+        new Random(0).nextBytes(contents);
+        File file = File.createTempFile("simulator", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        new RancherWebSocketListener(new OkHttpClient()).putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+    }
+
+    @Test
+    public void putFileSendsOneCommandPerChunk() throws IOException, InterruptedException {
+        rancher.start();
+        // Three full 3750 byte chunks and one byte.
+        byte[] contents = new byte[3 * 3750 + 1];
+        new Random(1).nextBytes(contents);
+        File file = File.createTempFile("simulator", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setStdinUpload(false);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        // Four chunks, then the decode.
+        assertEquals(5, rancher.getExecCount());
+    }
+
+    @Test
+    public void putFileCopiesEmptyFile() throws IOException, InterruptedException {
+        rancher.start();
+        File file = File.createTempFile("simulator", ".bin");
+        file.deleteOnExit();
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setStdinUpload(false);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertArrayEquals(new byte[0], rancher.getFile("/tmp/copy"));
+        assertEquals(1, rancher.getExecCount());
+    }
+
+    @Test
+    public void putFileThroughStdinUsesOneCommand() throws IOException, InterruptedException {
+        rancher.start();
+        // Several STDIN messages, the last one partly filled.
+        byte[] contents = new byte[200001];
+        new Random(2).nextBytes(contents);
+        File file = File.createTempFile("simulator", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        new RancherWebSocketListener(new OkHttpClient()).putFile(url, "access", "secret", file, "/tmp/copy");
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        // The probe for STDIN, then the upload.
+        assertEquals(2, rancher.getExecCount());
+
+        // The probe's result is kept for the end point.
+        new RancherWebSocketListener(new OkHttpClient()).putFile(url, "access", "secret", file, "/tmp/again");
+        assertArrayEquals(contents, rancher.getFile("/tmp/again"));
+        assertEquals(3, rancher.getExecCount());
+    }
+
+    @Test
+    public void putFileFallsBackToChunksWithoutStdin() throws IOException, InterruptedException {
+        rancher.setStdin(false).start();
+        byte[] contents = new byte[3 * 3750 + 1];
+        new Random(3).nextBytes(contents);
+        File file = File.createTempFile("simulator", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        new RancherWebSocketListener(new OkHttpClient()).putFile(url, "access", "secret", file, "/tmp/copy");
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        // The probe for STDIN, which counts no bytes, then four chunks and the decode.
+        assertEquals(6, rancher.getExecCount());
+
+        // The end point is remembered, so the next upload goes straight to chunks.
+        new RancherWebSocketListener(new OkHttpClient()).putFile(url, "access", "secret", file, "/tmp/again");
+        assertArrayEquals(contents, rancher.getFile("/tmp/again"));
+        assertEquals(11, rancher.getExecCount());
+    }
+
+    @Test
+    public void putFileCompressesText() throws IOException, InterruptedException {
+        rancher.start();
+        byte[] contents = text(100000);
+        File file = File.createTempFile("simulator", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setGzipUpload(true);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        assertTrue(rancher.getStdinBytes() < contents.length / 5);
+        // The checks for gunzip and STDIN, then the upload.
+        assertEquals(3, rancher.getExecCount());
+
+        // The checks are not repeated for the same container.
+        socket.putFile(url, "access", "secret", file, "/tmp/again");
+        assertArrayEquals(contents, rancher.getFile("/tmp/again"));
+        assertEquals(4, rancher.getExecCount());
+    }
+
+    @Test
+    public void putFileCompressesChunks() throws IOException, InterruptedException {
+        rancher.start();
+        byte[] contents = text(100000);
+        File file = File.createTempFile("simulator", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setStdinUpload(false);
+        socket.setGzipUpload(true);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        // The check for gunzip, a few chunks instead of the 27 the text would take, then the decode.
+        assertTrue(rancher.getExecCount() < 10);
+    }
+
+    @Test
+    public void putFileIsNotCompressedWithoutGunzip() throws IOException, InterruptedException {
+        rancher.setGunzip(false).start();
+        byte[] contents = text(10000);
+        File file = File.createTempFile("simulator", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setGzipUpload(true);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        assertEquals(contents.length, rancher.getStdinBytes());
+        assertEquals(3, rancher.getExecCount());
+    }
+
+    @Test
+    public void putFileIsNotCompressedWhenItDoesNotShrink() throws IOException, InterruptedException {
+        rancher.start();
+        byte[] contents = new byte[10000];
+        new Random(4).nextBytes(contents);
+        File file = File.createTempFile("simulator", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setGzipUpload(true);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        assertEquals(contents.length, rancher.getStdinBytes());
+        // No check for gunzip, which would not help: the probe for STDIN, then the upload.
+        assertEquals(2, rancher.getExecCount());
+    }
+
+    @Test
+    public void smallFilesAreNotCompressed() throws IOException, InterruptedException {
+        rancher.start();
+        byte[] contents = text(2000);
+        File file = File.createTempFile("simulator", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setGzipUpload(true);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertArrayEquals(contents, rancher.getFile("/tmp/copy"));
+        assertEquals(contents.length, rancher.getStdinBytes());
+        assertEquals(2, rancher.getExecCount());
+    }
+
+    private static byte[] text(int bytes) {
+        StringBuilder text = new StringBuilder();
+        for (int line = 1; text.length() < bytes; line++) {
+            text.append("{\"line\": ").append(line).append(", \"message\": \"configuration value\"}\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void readFileSpillsLargeContents() throws IOException, InterruptedException {
+        rancher.start();
+        byte[] contents = new byte[200000];
+        Arrays.fill(contents, (byte) 'x');
+        rancher.putFile("/tmp/large", contents);
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setCaptureLimits(4096, 0);
+
+        try (CaptureBuffer capture = socket.thisReadFile(url, "access", "secret", "/tmp/large")) {
+            assertTrue(capture.isSpilled());
+            assertEquals(contents.length, capture.size());
+            assertEquals(new String(contents, StandardCharsets.UTF_8), capture.asString());
+        }
+    }
+
+    @Test
+    public void readFileFailsPastHardCap() throws IOException, InterruptedException {
+        rancher.start();
+        rancher.putFile("/tmp/large", new byte[200000]);
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setCaptureLimits(4096, 10000);
+
+        try {
+            socket.thisGetFile(url, "access", "secret", "/tmp/large");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Output exceeded 10000 bytes", e.getMessage());
+        }
+    }
+
+    @Test
+    public void catReportsMissingFileOnStderr() throws IOException, InterruptedException {
+        rancher.start();
+        rancher.putFile("/tmp/present", "hello".getBytes(StandardCharsets.UTF_8));
+        String url = rancher.executeUrl(rancher.containerIds().get(0));
+        RancherWebSocketListener socket = new RancherWebSocketListener();
+        assertEquals("hello", socket.thisGetFile(url, "access", "secret", "/tmp/present"));
+        assertTrue(socket.thisGetFile(url, "access", "secret", "/tmp/absent").contains("No such file"));
+    }
+}
@@ -0,0 +1,68 @@
+package com.bioraft.rundeck.rancher;
+
+import com.google.common.collect.ImmutableMap;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static com.bioraft.rundeck.rancher.Constants.*;
+import static org.junit.Assert.*;
+
+public class RancherClientFactoryTest {
+
+    @Test
+    public void equalSettingsShareOneClient() {
+        ClientSettings settings = ClientSettings.fromProperties(ImmutableMap.of(RANCHER_CONFIG_POOL_SIZE, "7"));
+        ClientSettings same = ClientSettings.fromProperties(ImmutableMap.of(RANCHER_CONFIG_POOL_SIZE, "7"));
+        assertSame(RancherClientFactory.getClient(settings), RancherClientFactory.getClient(same));
+        assertSame(RancherClientFactory.getClient(), RancherClientFactory.getClient(ClientSettings.DEFAULTS));
+        assertNotSame(RancherClientFactory.getClient(), RancherClientFactory.getClient(settings));
+    }
+
+    @Test
+    public void settingsAreApplied() {
+        ClientSettings settings = ClientSettings.fromProperties(ImmutableMap.<String, String>builder()
+                .put(RANCHER_CONFIG_CONNECT_TIMEOUT, "3")
+                .put(RANCHER_CONFIG_READ_TIMEOUT, "4")
+                .put(RANCHER_CONFIG_WRITE_TIMEOUT, "5")
+                .put(RANCHER_CONFIG_CALL_TIMEOUT, "6")
+                .put(RANCHER_CONFIG_MAX_REQUESTS_PER_HOST, "50")
+                .put(RANCHER_CONFIG_PROTOCOLS, "http/1.1")
+                .build());
+        OkHttpClient client = RancherClientFactory.getClient(settings);
+        assertEquals(3000, client.connectTimeoutMillis());
+        assertEquals(4000, client.readTimeoutMillis());
+        assertEquals(5000, client.writeTimeoutMillis());
+        assertEquals(6000, client.callTimeoutMillis());
+        assertEquals(50, client.dispatcher().getMaxRequestsPerHost());
+        assertEquals(Collections.singletonList(Protocol.HTTP_1_1), client.protocols());
+        assertSame(HttpMetrics.FACTORY, client.eventListenerFactory());
+    }
+
+    @Test
+    public void streamClientHasNoDispatcherLimits() {
+        OkHttpClient client = RancherClientFactory.getClient();
+        OkHttpClient streams = RancherClientFactory.streamClient(client);
+        assertSame(client.connectionPool(), streams.connectionPool());
+        assertEquals(client.pingIntervalMillis(), streams.pingIntervalMillis());
+        assertEquals(Integer.MAX_VALUE, streams.dispatcher().getMaxRequestsPerHost());
+        assertSame(streams, RancherClientFactory.streamClient(streams));
+        assertSame(streams.dispatcher(), RancherClientFactory.streamClient(new OkHttpClient()).dispatcher());
+        assertEquals(ClientSettings.DEFAULT_MAX_REQUESTS_PER_HOST, client.dispatcher().getMaxRequestsPerHost());
+    }
+
+    @Test
+    public void httpClientKeepsInjectedClient() {
+        OkHttpClient injected = new OkHttpClient();
+        HttpClient client = new HttpClient(injected);
+        client.configure(ClientSettings.fromProperties(ImmutableMap.of(RANCHER_CONFIG_POOL_SIZE, "9")));
+        assertSame(injected, client.client);
+
+        HttpClient shared = new HttpClient();
+        ClientSettings settings = ClientSettings.fromProperties(ImmutableMap.of(RANCHER_CONFIG_POOL_SIZE, "9"));
+        shared.configure(settings);
+        assertSame(RancherClientFactory.getClient(settings), shared.client);
+    }
+}
@@ -125,6 +125,36 @@ public class RancherFileCopierTest {
         );
         subject.copyFile(executionContext, file, node, destination);
         verify(listener, times(1)).putFile(eq(null), anyString(), anyString(), eq(file), anyString());
+        verify(listener).setStdinUpload(true);
+    }
+
+    @Test
+    public void testCopyFileInChunks() throws FileCopierException, IOException, InterruptedException {
+        this.setUpContainer();
+        when(rundeckProject.hasProperty(PROJ_RANCHER_UPLOAD_MODE)).thenReturn(true);
+        when(rundeckProject.getProperty(PROJ_RANCHER_UPLOAD_MODE)).thenReturn(UPLOAD_MODE_CHUNKED);
+        RancherFileCopier subject = new RancherFileCopier(listener);
+        File file = new File(
+                Objects.requireNonNull(getClass().getClassLoader().getResource("stack.json")).getFile()
+        );
+        subject.copyFile(executionContext, file, node, "/tmp/file.txt");
+        verify(listener).setStdinUpload(false);
+        verify(listener).setGzipUpload(false);
+        verify(listener, times(1)).putFile(eq(null), anyString(), anyString(), eq(file), anyString());
+    }
+
+    @Test
+    public void testCopyFileCompressed() throws FileCopierException, IOException, InterruptedException {
+        this.setUpContainer();
+        when(propertyLookup.hasProperty(FMWK_RANCHER_UPLOAD_COMPRESSION)).thenReturn(true);
+        when(propertyLookup.getProperty(FMWK_RANCHER_UPLOAD_COMPRESSION)).thenReturn(UPLOAD_COMPRESSION_GZIP);
+        RancherFileCopier subject = new RancherFileCopier(listener);
+        File file = new File(
+                Objects.requireNonNull(getClass().getClassLoader().getResource("stack.json")).getFile()
+        );
+        subject.copyFile(executionContext, file, node, "/tmp/file.txt");
+        verify(listener).setGzipUpload(true);
+        verify(listener, times(1)).putFile(eq(null), anyString(), anyString(), eq(file), anyString());
     }
 
     @Test
@@ -122,6 +122,8 @@ public class RancherManageServiceTest {
         subject.executeNodeStep(ctx, cfg, node);
         verify(client, times(1)).get(any());
         verify(client, times(1)).post(any(), eq(""));
+        // A completed service document must not be reused by other nodes' steps.
+        verify(client).setReuseWindow(0);
         verify(logger, times(1)).
                 log(eq(com.dtolabs.rundeck.core.Constants.INFO_LEVEL), matches("Step deactivate complete on .*"));
     }
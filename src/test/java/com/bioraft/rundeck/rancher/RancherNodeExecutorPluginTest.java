@@ -17,11 +17,23 @@ import org.mockito.junit.MockitoJUnitRunner;
 import org.rundeck.storage.api.Resource;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.bioraft.rundeck.rancher.Constants.*;
+import static com.dtolabs.rundeck.core.Constants.DEBUG_LEVEL;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
@@ -75,6 +87,8 @@ public class RancherNodeExecutorPluginTest {
         jobContext.put("project", "project");
         jobContext.put("execid", "execid");
         dataContext.put("job", jobContext);
+        // Tests of interrupted jobs leave the runner's thread interrupted.
+        Thread.interrupted();
     }
 
     @Test
@@ -119,7 +133,7 @@ public class RancherNodeExecutorPluginTest {
 
         RancherNodeExecutorPlugin subject = new RancherNodeExecutorPlugin(rancherWebSocketListener, webSocketFileCopier, storage);
         subject.executeCommand(executionContext, command, node);
-        verify(executionLogger, times(6)).log(anyInt(), anyString());
+        verify(executionLogger, times(7)).log(anyInt(), anyString());
         verify(rancherWebSocketListener, times(2)).thisRunJob(any(), eq(accessKey), eq(secretKey), any(), any(), anyString(), anyInt());
         verify(webSocketFileCopier, times(1)).thisGetFile(eq(expectedUrl1), anyString(), anyString(), anyString());
         verify(webSocketFileCopier, times(1)).thisGetFile(eq(expectedUrl2), anyString(), anyString(), anyString());
@@ -201,6 +215,68 @@ public class RancherNodeExecutorPluginTest {
         testExecutor(fileContents);
     }
 
+    @Test
+    public void testExitStatusFromOutput() throws IOException, InterruptedException {
+        String[] command = {"ls"};
+
+        when(rancherWebSocketListener.thisRunJob(anyString(), anyString(), anyString(), eq(command), any(), anyString(), anyInt()))
+                .thenReturn(new ExitStatus("123", 2));
+
+        nodeAttributes.put("type", "container");
+        nodeAttributes.put(CONFIG_ACCESSKEY_PATH, "access_key");
+        nodeAttributes.put(CONFIG_SECRETKEY_PATH, "secret_key");
+        nodeAttributes.put("execute", "execute");
+        nodeAttributes.put(RANCHER_CONFIG_EXECUTOR_TIMEOUT, "30");
+        when(node.getAttributes()).thenReturn(nodeAttributes);
+
+        when(storage.loadStoragePathData(nodeAttributes.get(CONFIG_ACCESSKEY_PATH))).thenReturn("access");
+        when(storage.loadStoragePathData(nodeAttributes.get(CONFIG_SECRETKEY_PATH))).thenReturn("secret");
+
+        when(executionContext.getIFramework()).thenReturn(framework);
+        when(framework.getFrameworkProjectMgr()).thenReturn(projectManager);
+
+        when(executionContext.getExecutionLogger()).thenReturn(executionLogger);
+        when(executionContext.getDataContext()).thenReturn(dataContext);
+
+        RancherNodeExecutorPlugin subject = new RancherNodeExecutorPlugin(rancherWebSocketListener, webSocketFileCopier, storage);
+        NodeExecutorResult result = subject.executeCommand(executionContext, command, node);
+        assertEquals("Process 123 status 2", result.getFailureMessage());
+        assertEquals(StepFailureReason.PluginFailed, result.getFailureReason());
+        verify(webSocketFileCopier, never()).thisGetFile(anyString(), anyString(), anyString(), anyString());
+        verify(executionLogger, times(3)).log(anyInt(), anyString());
+        verify(rancherWebSocketListener).setMetrics(any(ExecutionMetrics.class));
+        verify(executionLogger).log(eq(DEBUG_LEVEL), matches("Metrics for null: credentials=\\d+ms token=- .* total=\\d+ms"));
+    }
+
+    @Test
+    public void testNativeStderrMode() throws IOException, InterruptedException {
+        String[] command = {"ls"};
+
+        when(rancherWebSocketListener.thisRunJob(anyString(), anyString(), anyString(), eq(command), any(), anyString(), anyInt()))
+                .thenReturn(new ExitStatus("123", 0));
+
+        nodeAttributes.put("type", "container");
+        nodeAttributes.put(CONFIG_ACCESSKEY_PATH, "access_key");
+        nodeAttributes.put(CONFIG_SECRETKEY_PATH, "secret_key");
+        nodeAttributes.put("execute", "execute");
+        nodeAttributes.put(RANCHER_CONFIG_EXECUTOR_TIMEOUT, "30");
+        nodeAttributes.put(RANCHER_CONFIG_STDERR_MODE, STDERR_MODE_NATIVE);
+        when(node.getAttributes()).thenReturn(nodeAttributes);
+
+        when(storage.loadStoragePathData(nodeAttributes.get(CONFIG_ACCESSKEY_PATH))).thenReturn("access");
+        when(storage.loadStoragePathData(nodeAttributes.get(CONFIG_SECRETKEY_PATH))).thenReturn("secret");
+
+        when(executionContext.getIFramework()).thenReturn(framework);
+        when(framework.getFrameworkProjectMgr()).thenReturn(projectManager);
+
+        when(executionContext.getExecutionLogger()).thenReturn(executionLogger);
+        when(executionContext.getDataContext()).thenReturn(dataContext);
+
+        RancherNodeExecutorPlugin subject = new RancherNodeExecutorPlugin(rancherWebSocketListener, webSocketFileCopier, storage);
+        assertTrue(subject.executeCommand(executionContext, command, node).isSuccess());
+        verify(rancherWebSocketListener, times(1)).setNativeStderr(true);
+    }
+
     public void testExecutor(String fileContents) throws IOException, InterruptedException {
         when(webSocketFileCopier.thisGetFile(anyString(), anyString(), anyString(), anyString()))
                 .thenReturn(fileContents);
@@ -224,7 +300,7 @@ public class RancherNodeExecutorPluginTest {
 
         RancherNodeExecutorPlugin subject = new RancherNodeExecutorPlugin(rancherWebSocketListener, webSocketFileCopier, storage);
         subject.executeCommand(executionContext, command, node);
-        verify(executionLogger, times(3)).log(anyInt(), anyString());
+        verify(executionLogger, times(4)).log(anyInt(), anyString());
     }
 
     @Test
@@ -348,4 +424,250 @@ public class RancherNodeExecutorPluginTest {
         assertEquals(StepFailureReason.Interrupted, result.getFailureReason());
         assertEquals(-1, result.getResultCode());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parallelServiceRunAllReportsEveryFailure() throws IOException {
+        List<String> prefixes = new CopyOnWriteArrayList<>();
+        Supplier<RancherWebSocketListener> sockets = containers(prefixes, url ->
+                url.contains("1i11") || url.contains("1i13") ? new ExitStatus("123", 2) : new ExitStatus("123", 0));
+
+        NodeExecutorResult result = runService("1i10,1i11,1i12,1i13", "3", FAILURE_POLICY_RUN_ALL, sockets);
+        assertFalse(result.isSuccess());
+        assertEquals(StepFailureReason.PluginFailed, result.getFailureReason());
+        assertTrue(result.getFailureMessage().startsWith("Failed on 2 of 4 containers: "));
+        assertTrue(result.getFailureMessage().contains("1i11: Process 123 status 2"));
+        assertTrue(result.getFailureMessage().contains("1i13: Process 123 status 2"));
+        assertTrue(prefixes.containsAll(Arrays.asList("[1i10] ", "[1i11] ", "[1i12] ", "[1i13] ")));
+    }
+
+    @Test
+    public void parallelServiceSucceeds() throws IOException {
+        Supplier<RancherWebSocketListener> sockets = containers(new CopyOnWriteArrayList<>(), url -> new ExitStatus("123", 0));
+        assertTrue(runService("1i10,1i11", "2", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+    }
+
+    @Test
+    public void parallelServiceThreadsHaveDistinctNames() throws IOException {
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        CountDownLatch together = new CountDownLatch(3);
+        Supplier<RancherWebSocketListener> sockets = containers(new CopyOnWriteArrayList<>(), url -> {
+            names.add(Thread.currentThread().getName());
+            together.countDown();
+            try {
+                together.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ExitStatus("123", 0);
+        });
+
+        assertTrue(runService("1i10,1i11,1i12", "3", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+        assertEquals(3, names.size());
+    }
+
+    @Test
+    public void parallelServiceFailFastStopsOtherContainers() throws IOException {
+        AtomicInteger interrupted = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(2);
+        Supplier<RancherWebSocketListener> sockets = containers(new CopyOnWriteArrayList<>(), url -> {
+            try {
+                if (url.contains("1i10")) {
+                    // Fail once the others are running, so they are stopped rather than never started.
+                    started.await(5, TimeUnit.SECONDS);
+                    return new ExitStatus("123", 1);
+                }
+                started.countDown();
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+            }
+            return new ExitStatus("123", 0);
+        });
+
+        NodeExecutorResult result = runService("1i10,1i11,1i12", "3", FAILURE_POLICY_FAIL_FAST, sockets);
+        assertEquals("Failed on 1 of 3 containers: 1i10: Process 123 status 1; stopped 2 after the first failure",
+                result.getFailureMessage());
+        assertEquals(2, interrupted.get());
+    }
+
+    @Test
+    public void parallelServiceRespectsConcurrencyLimit() throws IOException {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch together = new CountDownLatch(2);
+        Supplier<RancherWebSocketListener> sockets = containers(new CopyOnWriteArrayList<>(), url -> {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            together.countDown();
+            try {
+                together.await(5, TimeUnit.SECONDS);
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            active.decrementAndGet();
+            return new ExitStatus("123", 0);
+        });
+
+        assertTrue(runService("1i10,1i11,1i12,1i13,1i14", "2", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+        assertEquals(2, peak.get());
+    }
+
+    @Test
+    public void hostConcurrencyLimitsParallelService() throws IOException {
+        AtomicInteger peak = new AtomicInteger();
+        Supplier<RancherWebSocketListener> sockets = containers(new CopyOnWriteArrayList<>(), peakTracker(peak),
+                url -> "1h-service");
+        nodeAttributes.put(RANCHER_CONFIG_HOST_CONCURRENCY, "1");
+
+        assertTrue(runService("1i10,1i11,1i12,1i13", "4", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+        assertEquals(1, peak.get());
+    }
+
+    @Test
+    public void hostConcurrencyIsPerContainerHost() throws IOException {
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch together = new CountDownLatch(2);
+        Function<String, ExitStatus> tracker = peakTracker(peak);
+        Supplier<RancherWebSocketListener> sockets = containers(new CopyOnWriteArrayList<>(), url -> {
+            together.countDown();
+            try {
+                together.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return tracker.apply(url);
+        }, url -> url.contains("1i10") ? "1h-first" : "1h-second");
+        nodeAttributes.put(RANCHER_CONFIG_HOST_CONCURRENCY, "1");
+
+        assertTrue(runService("1i10,1i11", "2", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+        assertEquals(0, together.getCount());
+    }
+
+    @Test
+    public void hostConcurrencyDoesNotLimitUnknownHosts() throws IOException {
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch together = new CountDownLatch(3);
+        Function<String, ExitStatus> tracker = peakTracker(peak);
+        Supplier<RancherWebSocketListener> sockets = containers(new CopyOnWriteArrayList<>(), url -> {
+            together.countDown();
+            try {
+                together.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return tracker.apply(url);
+        });
+        nodeAttributes.put(RANCHER_CONFIG_HOST_CONCURRENCY, "1");
+
+        assertTrue(runService("1i10,1i11,1i12", "3", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+        assertEquals(0, together.getCount());
+    }
+
+    private static Function<String, ExitStatus> peakTracker(AtomicInteger peak) {
+        AtomicInteger active = new AtomicInteger();
+        return url -> {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            active.decrementAndGet();
+            return new ExitStatus("123", 0);
+        };
+    }
+
+    @Test
+    public void shellSessionsAreReusedAcrossSteps() throws IOException, InterruptedException {
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger ran = new AtomicInteger();
+        Supplier<RancherWebSocketListener> sockets = () -> mock(RancherWebSocketListener.class, invocation -> {
+            String method = invocation.getMethod().getName();
+            if (method.equals("openSession")) {
+                opened.incrementAndGet();
+            } else if (method.equals("isSessionOpen")) {
+                return true;
+            } else if (method.equals("runInSession")) {
+                ran.incrementAndGet();
+                return new ExitStatus("123", 0);
+            }
+            return null;
+        });
+        nodeAttributes.put(RANCHER_CONFIG_SHELL_SESSION, "true");
+        try {
+            assertTrue(runService("1i10,1i11", "1", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+            assertTrue(runService("1i10,1i11", "1", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+        } finally {
+            ShellSession.closeAll();
+        }
+
+        assertEquals(2, opened.get());
+        assertEquals(4, ran.get());
+        verify(rancherWebSocketListener, never()).thisRunJob(any(), any(), any(), any(), any(), any(), anyInt());
+    }
+
+    @Test
+    public void stepsRunWithoutSessionWhenShellDoesNotStart() throws IOException, InterruptedException {
+        Supplier<RancherWebSocketListener> sockets = () -> mock(RancherWebSocketListener.class, invocation -> {
+            if (invocation.getMethod().getName().equals("openSession")) {
+                throw new IOException("no stdin");
+            }
+            return null;
+        });
+        when(rancherWebSocketListener.thisRunJob(any(), any(), any(), any(), any(), any(), anyInt()))
+                .thenReturn(new ExitStatus("123", 0));
+        nodeAttributes.put(RANCHER_CONFIG_SHELL_SESSION, "true");
+
+        assertTrue(runService("1i10", "1", FAILURE_POLICY_FAIL_FAST, sockets).isSuccess());
+        verify(executionLogger).log(DEBUG_LEVEL, "Running without a shell session: no stdin");
+        assertEquals(0, ShellSession.count());
+    }
+
+    /**
+     * Supplies mock sockets whose jobs finish with the status computed from the container URL.
+     */
+    private static Supplier<RancherWebSocketListener> containers(List<String> prefixes, Function<String, ExitStatus> job) {
+        return containers(prefixes, job, url -> null);
+    }
+
+    private static Supplier<RancherWebSocketListener> containers(List<String> prefixes, Function<String, ExitStatus> job,
+                                                                 Function<String, String> hosts) {
+        return () -> mock(RancherWebSocketListener.class, invocation -> {
+            String method = invocation.getMethod().getName();
+            if (method.equals("setLinePrefix")) {
+                prefixes.add(invocation.getArgument(0));
+            } else if (method.equals("thisRunJob")) {
+                return job.apply(invocation.getArgument(0));
+            } else if (method.equals("thisGetHostId")) {
+                return hosts.apply(invocation.getArgument(0));
+            }
+            return null;
+        });
+    }
+
+    private NodeExecutorResult runService(String instanceIds, String parallelism, String policy,
+                                          Supplier<RancherWebSocketListener> sockets) throws IOException {
+        String[] command = {"ls"};
+        nodeAttributes.put("type", "service");
+        nodeAttributes.put(CONFIG_ACCESSKEY_PATH, "access_key");
+        nodeAttributes.put(CONFIG_SECRETKEY_PATH, "secret_key");
+        nodeAttributes.put(RANCHER_CONFIG_EXECUTOR_TIMEOUT, "30");
+        nodeAttributes.put(RANCHER_CONFIG_SERVICE_PARALLELISM, parallelism);
+        nodeAttributes.put(RANCHER_CONFIG_SERVICE_FAILURE_POLICY, policy);
+        nodeAttributes.put(NODE_ATT_SELF, "https://rancher.example.com/v2-beta/projects/1a10/services/1s56");
+        nodeAttributes.put("instanceIds", instanceIds);
+        when(node.getAttributes()).thenReturn(nodeAttributes);
+
+        when(storage.loadStoragePathData(nodeAttributes.get(CONFIG_ACCESSKEY_PATH))).thenReturn("access");
+        when(storage.loadStoragePathData(nodeAttributes.get(CONFIG_SECRETKEY_PATH))).thenReturn("secret");
+
+        when(executionContext.getIFramework()).thenReturn(framework);
+        when(framework.getFrameworkProjectMgr()).thenReturn(projectManager);
+
+        when(executionContext.getExecutionLogger()).thenReturn(executionLogger);
+        when(executionContext.getDataContext()).thenReturn(dataContext);
+
+        RancherNodeExecutorPlugin subject = new RancherNodeExecutorPlugin(rancherWebSocketListener, webSocketFileCopier, storage, sockets);
+        return subject.executeCommand(executionContext, command, node);
+    }
+}
@@ -2,20 +2,49 @@ package com.bioraft.rundeck.rancher;
 
 import com.dtolabs.rundeck.core.execution.ExecutionListener;
 import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.bioraft.rundeck.rancher.Constants.STDERR_TOKEN;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.*;
 
 public class RancherWebSocketListenerTest {
@@ -63,13 +92,17 @@ public class RancherWebSocketListenerTest {
         MockResponse mockedResponse = new MockResponse();
         mockedResponse.setResponseCode(200);
         mockedResponse.setBody("{\"url\":\"" + url + "\", \"token\":\"6chars\"}");
-        RancherWebSocketListener serverListener = new RancherWebSocketListener();
+        WebSocketListener serverListener = new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                webSocket.close(1000, "done");
+            }
+        };
         MockResponse upgrade = new MockResponse().withWebSocketUpgrade(serverListener);
         mockWebServer.enqueue(mockedResponse);
-        mockWebServer.enqueue(upgrade.setBody("6chars-plus-more"));
+        mockWebServer.enqueue(upgrade);
         mockWebServer.takeRequest(200, TimeUnit.MILLISECONDS);
         mockWebServer.enqueue(mockedResponse);
-        doNothing().when(listener).log(anyInt(), anyString());
         RancherWebSocketListener.runJob(url, accessKey, secretKey, command, listener, temp, timeout);
         assertEquals(2, mockWebServer.getRequestCount());
         mockWebServer.close();
@@ -77,6 +110,307 @@ public class RancherWebSocketListenerTest {
         // verify(listener, times(0)).log(anyInt(), anyString());
     }
 
+    @Test(expected = InterruptedIOException.class)
+    public void runJobTimesOutWhenStreamStaysOpen() throws InterruptedException, IOException {
+        String url = mockWebServer.url("/v2-beta/").toString();
+        String[] command = {"sleep", "60"};
+        MockResponse mockedResponse = new MockResponse();
+        mockedResponse.setResponseCode(200);
+        mockedResponse.setBody("{\"url\":\"" + url + "\", \"token\":\"6chars\"}");
+        mockWebServer.enqueue(mockedResponse);
+        mockWebServer.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+        }));
+        RancherWebSocketListener.runJob(url, "access", "secret", command, listener, "", 1);
+    }
+
+    @Test
+    public void runJobFailsWhenContainerStops() throws InterruptedException {
+        String url = mockWebServer.url("/v2-beta/containers/1i10/?action=execute").toString();
+        String[] command = {"sleep", "60"};
+        mockWebServer.enqueue(new MockResponse().setBody("{\"url\":\"" + url + "\", \"token\":\"6chars\"}"));
+        mockWebServer.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+        }));
+        mockWebServer.enqueue(new MockResponse().setBody("{\"state\":\"stopped\"}"));
+        RancherWebSocketListener subject = new RancherWebSocketListener();
+        subject.setLiveness(0, 1);
+        long start = System.nanoTime();
+        try {
+            subject.thisRunJob(url, "access", "secret", command, listener, "", 30);
+            fail("Job on a stopped container should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("/v2-beta/containers/1i10 is stopped"));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void runJobWaitsWhileContainerRuns() throws InterruptedException, IOException {
+        String url = mockWebServer.url("/v2-beta/containers/1i10/?action=execute").toString();
+        String[] command = {"sleep", "60"};
+        mockWebServer.enqueue(new MockResponse().setBody("{\"url\":\"" + url + "\", \"token\":\"6chars\"}"));
+        mockWebServer.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+        }));
+        for (int i = 0; i < 5; i++) {
+            mockWebServer.enqueue(new MockResponse().setBody("{\"state\":\"running\"}"));
+        }
+        RancherWebSocketListener subject = new RancherWebSocketListener();
+        subject.setLiveness(0, 1);
+        subject.thisRunJob(url, "access", "secret", command, listener, "", 3);
+    }
+
+    @Test
+    public void runJobStopsRemoteProcessWhenTimedOut() throws InterruptedException {
+        List<String> posts = dispatchUntilKilled();
+        String url = mockWebServer.url("/v2-beta/containers/1i10/?action=execute").toString();
+        String[] command = {"sleep", "60"};
+        try {
+            new RancherWebSocketListener(new OkHttpClient()).thisRunJob(url, "access", "secret", command, listener, "/tmp/job", 1);
+            fail("Expected a timeout");
+        } catch (IOException e) {
+            assertTrue(e instanceof InterruptedIOException);
+        }
+        assertEquals(2, posts.size());
+        assertTrue(posts.get(1).contains("cat /tmp/job.pid"));
+        assertTrue(posts.get(1).contains("kill -TERM -- -$1"));
+    }
+
+    @Test
+    public void runJobStopsRemoteProcessWhenInterrupted() throws InterruptedException {
+        List<String> posts = dispatchUntilKilled();
+        String url = mockWebServer.url("/v2-beta/containers/1i10/?action=execute").toString();
+        String[] command = {"sleep", "60"};
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread job = new Thread(() -> {
+            try {
+                new RancherWebSocketListener(new OkHttpClient()).thisRunJob(url, "access", "secret", command, listener, "/tmp/job", 30);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            } catch (IOException e) {
+                // Not expected.
+            }
+        });
+        job.start();
+        while (mockWebServer.getRequestCount() < 2) {
+            Thread.sleep(10);
+        }
+        job.interrupt();
+        job.join(10000);
+
+        assertTrue(interrupted.get());
+        assertEquals(2, posts.size());
+        assertTrue(posts.get(1).contains("kill -TERM"));
+    }
+
+    @Test
+    public void nativeStderrStillRunsUnderBash() {
+        String[] command = {"[[", "-n", "$HOME", "]]"};
+        String[] marked = RancherWebSocketListener.remoteCommand(command, "/tmp/job", "marker", false);
+        String[] plain = RancherWebSocketListener.remoteCommand(command, "/tmp/job", "marker", true);
+        assertEquals("bash", marked[0]);
+        assertEquals("bash", plain[0]);
+        assertTrue(marked[2].contains(STDERR_TOKEN));
+        assertFalse(plain[2].contains(STDERR_TOKEN));
+    }
+
+    @Test
+    public void testKillCommands() {
+        String[] job = RancherWebSocketListener.killJobCommand("/tmp/job.pid");
+        assertEquals("sh", job[0]);
+        assertTrue(job[2].startsWith("set -- $(cat /tmp/job.pid 2>/dev/null); [ $# -eq 1 ] || exit 0; "));
+        String[] session = RancherWebSocketListener.killSessionCommand("123");
+        assertTrue(session[2].startsWith("kill -TERM -- -123 2>/dev/null || { p=123; "));
+        assertTrue(session[2].contains("/proc/[0-9]*/stat"));
+        assertTrue(session[2].endsWith("kill -TERM $all 2>/dev/null; }; exit 0"));
+    }
+
+    @Test
+    public void killCommandStopsGrandchildren() throws IOException, InterruptedException {
+        assumeTrue(new File("/proc/self/stat").exists() && new File("/bin/sh").canExecute());
+        // Like a command run by Rancher, the wrapper does not lead a process group; its child starts a grandchild.
+        Process wrapper = new ProcessBuilder("/bin/sh", "-c", "echo $$; sh -c 'sleep 60 & echo $!; wait'; echo done")
+                .start();
+        String grandchild = null;
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(wrapper.getInputStream(), StandardCharsets.UTF_8))) {
+            String shell = out.readLine();
+            grandchild = out.readLine();
+            assertTrue(isRunning(grandchild));
+
+            Process kill = new ProcessBuilder(RancherWebSocketListener.killSessionCommand(shell)).start();
+            assertTrue(kill.waitFor(10, TimeUnit.SECONDS));
+            assertEquals(0, kill.exitValue());
+            assertTrue(wrapper.waitFor(10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (isRunning(grandchild) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(isRunning(grandchild));
+        } finally {
+            wrapper.destroyForcibly();
+            if (grandchild != null && isRunning(grandchild)) {
+                new ProcessBuilder("kill", "-KILL", grandchild).start().waitFor();
+            }
+        }
+    }
+
+    /**
+     * @return True if the process exists and is not a zombie waiting to be reaped.
+     */
+    private static boolean isRunning(String pid) throws IOException {
+        Path stat = Paths.get("/proc", pid, "stat");
+        try {
+            String line = new String(Files.readAllBytes(stat), StandardCharsets.UTF_8);
+            return !line.substring(line.lastIndexOf(')') + 1).trim().startsWith("Z");
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serves a job whose stream stays open, and a kill command whose stream closes at once.
+     *
+     * @return The bodies of the execute requests.
+     */
+    private List<String> dispatchUntilKilled() {
+        String socketUrl = mockWebServer.url("/v1/exec/").toString();
+        List<String> posts = new CopyOnWriteArrayList<>();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getMethod().equals("POST")) {
+                    posts.add(request.getBody().readUtf8());
+                    return new MockResponse().setBody("{\"url\":\"" + socketUrl + "\", \"token\":\"t" + posts.size() + "\"}");
+                }
+                boolean job = "t1".equals(request.getRequestUrl().queryParameter("token"));
+                return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+                    @Override
+                    public void onOpen(WebSocket webSocket, Response response) {
+                        if (!job) {
+                            webSocket.close(1000, null);
+                        }
+                    }
+                });
+            }
+        });
+        return posts;
+    }
+
+    @Test(expected = IOException.class)
+    public void putFileFailsForMissingFile() throws IOException, InterruptedException {
+        String url = mockWebServer.url("/v2-beta/containers/1i10/?action=execute").toString();
+        File file = new File(mockWebServer.getHostName() + "-missing-" + System.nanoTime());
+        try {
+            new RancherWebSocketListener(new OkHttpClient()).putFile(url, "access", "secret", file, "/tmp/copy");
+        } finally {
+            assertEquals(0, mockWebServer.getRequestCount());
+        }
+    }
+
+    @Test
+    public void putFileRequestsNextTokenWhileCommandRuns() throws IOException, InterruptedException {
+        String url = mockWebServer.url("/v2-beta/containers/1i10/?action=execute").toString();
+        String socketUrl = mockWebServer.url("/v1/exec/").toString();
+        AtomicInteger tokens = new AtomicInteger();
+        CountDownLatch secondToken = new CountDownLatch(1);
+        AtomicBoolean overlapped = new AtomicBoolean();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getMethod().equals("POST")) {
+                    if (tokens.incrementAndGet() == 2) {
+                        secondToken.countDown();
+                    }
+                    return new MockResponse().setBody("{\"url\":\"" + socketUrl + "\", \"token\":\"t" + tokens.get() + "\"}");
+                }
+                boolean first = "t1".equals(request.getRequestUrl().queryParameter("token"));
+                return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+                    @Override
+                    public void onOpen(WebSocket webSocket, Response response) {
+                        if (first) {
+                            // Keep the first command running until the token for the next one is requested.
+                            try {
+                                overlapped.set(secondToken.await(5, TimeUnit.SECONDS));
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        webSocket.close(1000, null);
+                    }
+                });
+            }
+        });
+        File file = File.createTempFile("upload", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "contents".getBytes(StandardCharsets.UTF_8));
+
+        RancherWebSocketListener socket = new RancherWebSocketListener(new OkHttpClient());
+        socket.setStdinUpload(false);
+        socket.putFile(url, "access", "secret", file, "/tmp/copy");
+
+        assertEquals(2, tokens.get());
+        assertTrue(overlapped.get());
+    }
+
+    @Test
+    public void putFileThroughStdinFailsWhenDestinationCannotBeWritten() throws IOException {
+        String url = mockWebServer.url("/v2-beta/containers/1i10/?action=execute").toString();
+        String socketUrl = mockWebServer.url("/v1/exec/").toString();
+        Pattern acknowledgement = Pattern.compile("printf '%s %s %s[^']*' (\\S+) ");
+        AtomicReference<String> marker = new AtomicReference<>();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getMethod().equals("POST")) {
+                    Matcher matcher = acknowledgement.matcher(request.getBody().readUtf8());
+                    marker.set(matcher.find() ? matcher.group(1) : null);
+                    return new MockResponse().setBody("{\"url\":\"" + socketUrl + "\", \"token\":\"t\"}");
+                }
+                String probed = marker.get();
+                return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+                    @Override
+                    public void onOpen(WebSocket webSocket, Response response) {
+                        // The probe for STDIN counts its bytes; then the upload fails.
+                        String reply = probed == null ? "4\n"
+                                : "sh: can't create /missing/copy: nonexistent directory\n" + probed + " 2 \n";
+                        webSocket.send(Base64.getEncoder().encodeToString(frame(reply.getBytes(StandardCharsets.UTF_8))));
+                        webSocket.close(1000, null);
+                    }
+                });
+            }
+        });
+        File file = File.createTempFile("upload", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "contents".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            new RancherWebSocketListener(new OkHttpClient()).putFile(url, "access", "secret", file, "/missing/copy");
+            fail("Expected IOException");
+        } catch (IOException | InterruptedException e) {
+            assertEquals("Could not write /missing/copy: sh: can't create /missing/copy: nonexistent directory",
+                    e.getMessage());
+        }
+        // The probe, then no fallback to chunks: the upload reached the command, which could not write the file.
+        assertEquals(4, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testContainerUrl() {
+        String container = "https://rancher.example.com/v2-beta/projects/1a10/containers/1i234";
+        assertEquals(container, RancherWebSocketListener.containerUrl(container + "/?action=execute"));
+        assertEquals(container, RancherWebSocketListener.containerUrl(container + "?action=execute"));
+    }
+
+    @Test
+    public void testSessionCommand() {
+        String[] command = {"echo", "hi"};
+        assertEquals("( echo hi ) </dev/null; rc=$?; printf '%s %s %s\\n' MARK $$ $rc",
+                RancherWebSocketListener.sessionCommand(command, "MARK", true));
+        String marked = RancherWebSocketListener.sessionCommand(command, "MARK", false);
+        assertTrue(marked.startsWith("{ ( echo hi ) </dev/null 2>&1 1>&3 3>&- | "));
+        assertTrue(marked.contains(STDERR_TOKEN));
+        assertTrue(marked.endsWith("rc=${PIPESTATUS[0]}; } 3>&1; printf '%s %s %s\\n' MARK $$ $rc"));
+    }
+
     @Test(expected = IOException.class)
     public void throwExceptionWhenTokenInvalid() throws IOException, InterruptedException {
         String url = mockWebServer.url("/v2-beta/").toString();
@@ -166,6 +500,67 @@ public class RancherWebSocketListenerTest {
         verify(listener, times(1)).log(1, "string3");
     }
 
+    @Test
+    public void testLogDockerStreamNative() {
+        RancherWebSocketListener subject = new RancherWebSocketListener(listener, new StringBuilder());
+        subject.setNativeStderr(true);
+        byte[] bytes = DockerStreamDemuxerTest.concat(DockerStreamDemuxerTest.frame(1, "out1\nout2\n"),
+                DockerStreamDemuxerTest.frame(2, STDERR_TOKEN + "err\n"));
+        subject.logDockerStream(bytes);
+        verify(listener, times(1)).log(2, "out1");
+        verify(listener, times(1)).log(2, "out2");
+        verify(listener, times(1)).log(1, STDERR_TOKEN + "err");
+    }
+
+    @Test
+    public void testLogDockerStreamSplitCharacter() {
+        RancherWebSocketListener subject = new RancherWebSocketListener(listener, new StringBuilder());
+        byte[] text = "caf\u00e9 ol\u00e9\n".getBytes(StandardCharsets.UTF_8);
+        // Split inside the two-byte "\u00e9" and inside the line.
+        byte[] bytes = DockerStreamDemuxerTest.concat(
+                DockerStreamDemuxerTest.frame(1, new String(text, 0, 3, StandardCharsets.UTF_8)),
+                frame(Arrays.copyOfRange(text, 3, 4)), frame(Arrays.copyOfRange(text, 4, text.length)));
+        subject.logDockerStream(bytes);
+        verify(listener, times(1)).log(2, "caf\u00e9 ol\u00e9");
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void testBase64MessagesReusePooledBuffers() {
+        RancherWebSocketListener subject = new RancherWebSocketListener(listener, new StringBuilder());
+        String message = Base64.getEncoder().encodeToString(DockerStreamDemuxerTest.frame(1, "out1\nout2\n"));
+        subject.onMessage(null, message);
+        long allocated = FrameBufferPool.shared().getAllocated();
+        subject.onMessage(null, message);
+        assertEquals(allocated, FrameBufferPool.shared().getAllocated());
+        verify(listener, times(2)).log(2, "out1");
+        verify(listener, times(2)).log(2, "out2");
+    }
+
+    @Test
+    public void testLogDockerStreamToOutputSink() throws IOException {
+        Path directory = Files.createTempDirectory("node-output");
+        try {
+            NodeOutputSink sink = NodeOutputSink.forNode(directory, "node", 0, 0);
+            RancherWebSocketListener subject = new RancherWebSocketListener(listener, new StringBuilder());
+            subject.setOutputSink(sink);
+            subject.logDockerStream(("out\n" + STDERR_TOKEN + "err\n").getBytes());
+            sink.flush();
+            verify(listener, times(1)).log(2, "out");
+            verify(listener, times(1)).log(1, "err");
+            assertEquals("NORMAL out\nWARN err\n",
+                    new String(Files.readAllBytes(sink.getPath()), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(directory.resolve("node.log"));
+            Files.delete(directory);
+        }
+    }
+
+    private static byte[] frame(byte[] payload) {
+        return ByteBuffer.allocate(MessageReader.HEADER_SIZE + payload.length)
+                .putInt(1 << 24).putInt(payload.length).put(payload).array();
+    }
+
     @Test
     public void testLogDockerStreamWithNoListener() {
         StringBuilder stringBuilder = new StringBuilder();
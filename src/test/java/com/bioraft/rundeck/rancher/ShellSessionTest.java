@@ -0,0 +1,159 @@
+package com.bioraft.rundeck.rancher;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ShellSessionTest {
+
+    @Mock
+    RancherWebSocketListener shell;
+
+    @Mock
+    ExecutionListener listener;
+
+    AtomicInteger opened = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        ShellSession.closeAll();
+    }
+
+    private RancherWebSocketListener open() {
+        opened.incrementAndGet();
+        return shell;
+    }
+
+    @Test
+    public void acquireReusesOpenSession() throws IOException, InterruptedException {
+        when(shell.isSessionOpen()).thenReturn(true);
+        ShellSession first = ShellSession.acquire("1", "url", 30, this::open);
+        ShellSession second = ShellSession.acquire("1", "url", 30, this::open);
+
+        assertSame(first, second);
+        assertEquals(1, opened.get());
+        assertEquals(1, ShellSession.count());
+    }
+
+    @Test
+    public void acquireReplacesClosedSession() throws IOException, InterruptedException {
+        when(shell.isSessionOpen()).thenReturn(false);
+        ShellSession first = ShellSession.acquire("1", "url", 30, this::open);
+        ShellSession second = ShellSession.acquire("1", "url", 30, this::open);
+
+        assertNotSame(first, second);
+        assertEquals(2, opened.get());
+        assertEquals(1, ShellSession.count());
+    }
+
+    @Test
+    public void sessionsAreKeyedByExecutionAndContainer() throws IOException, InterruptedException {
+        ShellSession.acquire("1", "url", 30, this::open);
+        ShellSession.acquire("1", "other", 30, this::open);
+
+        assertEquals(2, opened.get());
+        assertEquals(2, ShellSession.count());
+    }
+
+    @Test
+    public void idleSessionsOfEarlierExecutionsAreClosed() throws IOException, InterruptedException {
+        ShellSession earlier = ShellSession.acquire("1", "url", 30, this::open);
+        ShellSession.acquire("1", "other", 30, this::open);
+        ShellSession later = ShellSession.acquire("2", "url", 30, this::open);
+
+        assertNotSame(earlier, later);
+        verify(shell).closeSession();
+        // The earlier execution's session on the other container is left alone.
+        assertEquals(2, ShellSession.count());
+    }
+
+    @Test
+    public void busySessionsOfOtherExecutionsAreKept() throws IOException, InterruptedException {
+        String[] command = {"sleep", "1"};
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(shell.runInSession(command, listener, 10)).thenAnswer(invocation -> {
+            running.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new ExitStatus("1", 0);
+        });
+        ShellSession first = ShellSession.acquire("1", "url", 30, this::open);
+        Thread step = new Thread(() -> {
+            try {
+                first.run(command, listener, null, 10);
+            } catch (IOException | InterruptedException e) {
+                fail(e.getMessage());
+            }
+        });
+        step.start();
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        ShellSession.acquire("2", "url", 30, this::open);
+        release.countDown();
+        step.join();
+
+        verify(shell, never()).closeSession();
+        assertEquals(2, ShellSession.count());
+    }
+
+    @Test
+    public void runPassesCommandToShell() throws IOException, InterruptedException {
+        String[] command = {"ls"};
+        ExecutionMetrics metrics = new ExecutionMetrics();
+        when(shell.runInSession(command, listener, 10)).thenReturn(new ExitStatus("1", 0));
+
+        ShellSession session = ShellSession.acquire("1", "url", 30, this::open);
+
+        assertTrue(session.run(command, listener, metrics, 10).isSuccess());
+        verify(shell).setMetrics(metrics);
+        verify(shell, never()).closeSession();
+    }
+
+    @Test
+    public void failedRunClosesSession() throws IOException, InterruptedException {
+        String[] command = {"sleep", "100"};
+        when(shell.runInSession(command, listener, 1)).thenThrow(new InterruptedIOException("timeout"));
+
+        ShellSession session = ShellSession.acquire("1", "url", 30, this::open);
+        try {
+            session.run(command, listener, null, 1);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("timeout", e.getMessage());
+        }
+
+        verify(shell).closeSession();
+        assertEquals(0, ShellSession.count());
+    }
+
+    @Test
+    public void idleSessionsAreClosed() throws IOException, InterruptedException {
+        ShellSession.acquire("1", "url", 0, this::open);
+        ShellSession.closeIdle();
+
+        verify(shell).closeSession();
+        assertEquals(0, ShellSession.count());
+    }
+
+    @Test
+    public void activeSessionsAreKept() throws IOException, InterruptedException {
+        ShellSession.acquire("1", "url", 30, this::open);
+        ShellSession.closeIdle();
+
+        verify(shell, never()).closeSession();
+        assertEquals(1, ShellSession.count());
+    }
+}
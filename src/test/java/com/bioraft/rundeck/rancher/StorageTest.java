@@ -15,13 +15,30 @@
  */
 package com.bioraft.rundeck.rancher;
 
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import com.dtolabs.rundeck.core.storage.StorageTree;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.rundeck.storage.api.Resource;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
 
 /**
  * Tests for Nexus3OptionProvider.
@@ -32,10 +49,188 @@ import static org.junit.Assert.assertNull;
 @RunWith(MockitoJUnitRunner.class)
 public class StorageTest {
 
+    @Mock
+    ExecutionContext executionContext;
+
+    @Mock
+    ExecutionContext otherContext;
+
+    @Mock
+    StorageTree storageTree;
+
+    @Mock
+    StorageTree otherTree;
+
+    @Mock
+    Resource<ResourceMeta> resource;
+
+    @Mock
+    ResourceMeta contents;
+
+    @Before
+    public void setUp() {
+        Storage.invalidateAll();
+    }
+
     @Test(expected = IOException.class)
     public void testLoadStorageException() throws IOException {
         Storage storage = new Storage(null);
         String test = storage.loadStoragePathData(null);
         assertNull(test);
     }
+
+    @Test
+    public void testValueIsCached() throws IOException {
+        mockStorage(executionContext, storageTree, "project");
+        Storage storage = new Storage(executionContext);
+        assertEquals("secret", storage.loadStoragePathData("keys/rancher/secret.key"));
+        assertEquals("secret", storage.loadStoragePathData("keys/rancher/secret.key"));
+        assertEquals("secret", new Storage(executionContext).loadStoragePathData("keys/rancher/secret.key"));
+        verify(storageTree, times(1)).getResource("keys/rancher/secret.key");
+    }
+
+    @Test
+    public void testCacheIsKeyedByProjectAndTree() throws IOException {
+        mockStorage(executionContext, storageTree, "project1");
+        mockStorage(otherContext, otherTree, "project2");
+        new Storage(executionContext).loadStoragePathData("keys/rancher/secret.key");
+        new Storage(otherContext).loadStoragePathData("keys/rancher/secret.key");
+        verify(storageTree, times(1)).getResource("keys/rancher/secret.key");
+        verify(otherTree, times(1)).getResource("keys/rancher/secret.key");
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        mockStorage(executionContext, storageTree, "project");
+        Storage storage = new Storage(executionContext);
+        storage.loadStoragePathData("keys/rancher/secret.key");
+        Storage.invalidate("keys/rancher/secret.key");
+        storage.loadStoragePathData("keys/rancher/secret.key");
+        verify(storageTree, times(2)).getResource("keys/rancher/secret.key");
+    }
+
+    @Test
+    public void testZeroTtlDisablesCache() throws IOException {
+        when(executionContext.getStorageTree()).thenReturn(storageTree);
+        when(storageTree.getResource(anyString())).thenReturn(resource);
+        when(resource.getContents()).thenReturn(contents);
+        when(contents.writeContent(any())).thenAnswer(this::writeSecret);
+        Storage storage = new Storage(executionContext);
+        storage.setCacheTtl(0);
+        storage.loadStoragePathData("keys/rancher/secret.key");
+        storage.loadStoragePathData("keys/rancher/secret.key");
+        verify(storageTree, times(2)).getResource("keys/rancher/secret.key");
+    }
+
+    @Test
+    public void testFailureIsNotCached() throws IOException {
+        when(executionContext.getStorageTree()).thenReturn(storageTree);
+        when(executionContext.getFrameworkProject()).thenReturn("project");
+        when(storageTree.getResource(anyString())).thenReturn(resource);
+        when(resource.getContents()).thenReturn(contents);
+        when(contents.writeContent(any())).thenThrow(new IOException("Storage failure.")).thenAnswer(this::writeSecret);
+        Storage storage = new Storage(executionContext);
+        try {
+            storage.loadStoragePathData("keys/rancher/secret.key");
+            fail("First read should fail");
+        } catch (IOException e) {
+            assertEquals("Storage failure.", e.getMessage());
+        }
+        assertEquals("secret", storage.loadStoragePathData("keys/rancher/secret.key"));
+    }
+
+    @Test
+    public void testExpiredValuesAreRemovedWithoutAnotherRead() throws IOException, InterruptedException {
+        mockStorage(executionContext, storageTree, "project");
+        Storage storage = new Storage(executionContext);
+        storage.setCacheTtl(50);
+        storage.loadStoragePathData("keys/rancher/secret.key");
+        assertEquals(1, Storage.cachedCount());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Storage.cachedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, Storage.cachedCount());
+    }
+
+    @Test
+    public void testConcurrentReadsShareOneRead() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(executionContext.getStorageTree()).thenReturn(storageTree);
+        when(executionContext.getFrameworkProject()).thenReturn("project");
+        when(storageTree.getResource(anyString())).thenReturn(resource);
+        when(resource.getContents()).thenReturn(contents);
+        doAnswer(invocation -> {
+            reading.countDown();
+            release.await();
+            return writeSecret(invocation);
+        }).when(contents).writeContent(any());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(
+                    () -> new Storage(executionContext).loadStoragePathData("keys/rancher/secret.key"));
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            Future<String> second = executor.submit(
+                    () -> new Storage(executionContext).loadStoragePathData("keys/rancher/secret.key"));
+            // Let the second caller find the read in progress before it finishes.
+            Thread.sleep(100);
+            assertEquals(1, Storage.cachedCount());
+            release.countDown();
+            assertEquals("secret", first.get(5, TimeUnit.SECONDS));
+            assertEquals("secret", second.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        verify(storageTree, times(1)).getResource("keys/rancher/secret.key");
+    }
+
+    @Test
+    public void testStuckReadIsNotWaitedForBeyondTimeout() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(executionContext.getStorageTree()).thenReturn(storageTree);
+        when(executionContext.getFrameworkProject()).thenReturn("project");
+        when(storageTree.getResource(anyString())).thenReturn(resource);
+        when(resource.getContents()).thenReturn(contents);
+        doAnswer(invocation -> {
+            if (reading.getCount() > 0) {
+                reading.countDown();
+                release.await();
+            }
+            return writeSecret(invocation);
+        }).when(contents).writeContent(any());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> stuck = executor.submit(
+                    () -> new Storage(executionContext).loadStoragePathData("keys/rancher/secret.key"));
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            Storage storage = new Storage(executionContext);
+            storage.setSharedReadTimeout(50);
+            assertEquals("secret", storage.loadStoragePathData("keys/rancher/secret.key"));
+            release.countDown();
+            assertEquals("secret", stuck.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        verify(storageTree, times(2)).getResource("keys/rancher/secret.key");
+    }
+
+    private void mockStorage(ExecutionContext context, StorageTree tree, String project) throws IOException {
+        when(context.getStorageTree()).thenReturn(tree);
+        when(context.getFrameworkProject()).thenReturn(project);
+        when(tree.getResource(anyString())).thenReturn(resource);
+        when(resource.getContents()).thenReturn(contents);
+        doAnswer(this::writeSecret).when(contents).writeContent(any());
+    }
+
+    private long writeSecret(org.mockito.invocation.InvocationOnMock invocation) throws IOException {
+        OutputStream stream = invocation.getArgument(0);
+        stream.write("secret".getBytes());
+        return 6;
+    }
 }